@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary encoding of the response to an update-request. The class lives in
+ * the source folder <code>TrafficCommon</code>, which is compiled into the
+ * server and the client, so it only depends on <code>java.io</code>. The
+ * client asks for the encoding with the <code>format</code> in the meta-part
+ * of its request, all other responses and errors are still sent as JSON.
+ * <p>
+ * The data starts with <code>MAGIC</code>, which can never start a JSON-text,
+ * and the <code>WIRE_VERSION</code> of the layout. Data of another layout is
+ * rejected by {@link #decode(byte[])}, so every change of the layout must
+ * increase the version. Then follow the version of the update, a byte with
+ * the flags and four sections, each with the number of its records:
+ * <ul>
+ * <li>traffic: int id, short maxspeed, float speed, byte quality</li>
+ * <li>removed strips: int id</li>
+ * <li>congestions: int id, byte type, double lat, double lon, long time</li>
+ * <li>removed congestions: int id</li>
+ * </ul>
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 265 $
+ */
+public class UpdateCodec {
+
+	/** Format of the JSON-responses */
+	public static final int FORMAT_JSON = 0;
+
+	/** Format of the binary responses */
+	public static final int FORMAT_BINARY = 1;
+
+	/** The first byte of a binary response */
+	public static final byte MAGIC = (byte) 0xB1;
+
+	/** The version of the layout, the second byte of a binary response */
+	public static final byte WIRE_VERSION = 1;
+
+	/** Flag for an update with only the changes */
+	private static final int FLAG_DELTA = 1;
+
+	/** Flag for a changed route */
+	private static final int FLAG_ROUTING = 2;
+
+	/** The version of the update */
+	private long version;
+
+	/** Is the update a delta */
+	private boolean delta;
+
+	/** Has the route changed */
+	private boolean routing;
+
+	/** The number of strips */
+	private int traffic;
+
+	/** The ids of the strips */
+	private int[] trafficIds = new int[16];
+
+	/** The speed limits of the strips */
+	private short[] maxspeeds = new short[16];
+
+	/** The speeds of the strips */
+	private float[] speeds = new float[16];
+
+	/** The qualities of the speeds */
+	private byte[] qualities = new byte[16];
+
+	/** The number of removed strips */
+	private int removed;
+
+	/** The ids of the removed strips */
+	private int[] removedIds = new int[16];
+
+	/** The number of congestions */
+	private int congestions;
+
+	/** The ids of the congestions */
+	private int[] congestionIds = new int[16];
+
+	/** The types of the congestions */
+	private byte[] types = new byte[16];
+
+	/** The latitudes of the congestions */
+	private double[] lats = new double[16];
+
+	/** The longitudes of the congestions */
+	private double[] lons = new double[16];
+
+	/** The reporting times of the congestions */
+	private long[] times = new long[16];
+
+	/** The number of removed congestions */
+	private int removedCongestions;
+
+	/** The ids of the removed congestions */
+	private int[] removedCongestionIds = new int[16];
+
+	/**
+	 * Adds a strip.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @param maxspeed
+	 *            The speed limit
+	 * @param speed
+	 *            The speed
+	 * @param quality
+	 *            The quality of the speed
+	 */
+	public void addTraffic(int id, int maxspeed, double speed, int quality) {
+		if (traffic == trafficIds.length) {
+			int length = traffic * 2;
+			trafficIds = copyOf(trafficIds, length);
+			short[] m = new short[length];
+			System.arraycopy(maxspeeds, 0, m, 0, traffic);
+			maxspeeds = m;
+			float[] s = new float[length];
+			System.arraycopy(speeds, 0, s, 0, traffic);
+			speeds = s;
+			byte[] q = new byte[length];
+			System.arraycopy(qualities, 0, q, 0, traffic);
+			qualities = q;
+		}
+		trafficIds[traffic] = id;
+		maxspeeds[traffic] = (short) maxspeed;
+		speeds[traffic] = (float) speed;
+		qualities[traffic] = (byte) quality;
+		traffic++;
+	}
+
+	/**
+	 * Adds a removed strip.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 */
+	public void addRemoved(int id) {
+		if (removed == removedIds.length) {
+			removedIds = copyOf(removedIds, removed * 2);
+		}
+		removedIds[removed++] = id;
+	}
+
+	/**
+	 * Adds a congestion.
+	 * 
+	 * @param id
+	 *            The id of the congestion
+	 * @param type
+	 *            The type
+	 * @param lat
+	 *            The latitude
+	 * @param lon
+	 *            The longitude
+	 * @param time
+	 *            The reporting time in millis
+	 */
+	public void addCongestion(int id, int type, double lat, double lon,
+			long time) {
+		if (congestions == congestionIds.length) {
+			int length = congestions * 2;
+			congestionIds = copyOf(congestionIds, length);
+			byte[] t = new byte[length];
+			System.arraycopy(types, 0, t, 0, congestions);
+			types = t;
+			double[] la = new double[length];
+			System.arraycopy(lats, 0, la, 0, congestions);
+			lats = la;
+			double[] lo = new double[length];
+			System.arraycopy(lons, 0, lo, 0, congestions);
+			lons = lo;
+			long[] ti = new long[length];
+			System.arraycopy(times, 0, ti, 0, congestions);
+			times = ti;
+		}
+		congestionIds[congestions] = id;
+		types[congestions] = (byte) type;
+		lats[congestions] = lat;
+		lons[congestions] = lon;
+		times[congestions] = time;
+		congestions++;
+	}
+
+	/**
+	 * Adds a removed congestion.
+	 * 
+	 * @param id
+	 *            The id of the congestion
+	 */
+	public void addRemovedCongestion(int id) {
+		if (removedCongestions == removedCongestionIds.length) {
+			removedCongestionIds = copyOf(removedCongestionIds,
+					removedCongestions * 2);
+		}
+		removedCongestionIds[removedCongestions++] = id;
+	}
+
+	/**
+	 * Encodes the update.
+	 * 
+	 * @return The encoded data
+	 */
+	public byte[] encode() {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(32 + traffic
+				* 11 + removed * 4 + congestions * 29 + removedCongestions * 4);
+		DataOutputStream out = new DataOutputStream(buffer);
+		try {
+			out.writeByte(MAGIC);
+			out.writeByte(WIRE_VERSION);
+			out.writeLong(version);
+			out.writeByte((delta ? FLAG_DELTA : 0)
+					| (routing ? FLAG_ROUTING : 0));
+			out.writeInt(traffic);
+			for (int i = 0; i < traffic; i++) {
+				out.writeInt(trafficIds[i]);
+				out.writeShort(maxspeeds[i]);
+				out.writeFloat(speeds[i]);
+				out.writeByte(qualities[i]);
+			}
+			writeIds(out, removedIds, removed);
+			out.writeInt(congestions);
+			for (int i = 0; i < congestions; i++) {
+				out.writeInt(congestionIds[i]);
+				out.writeByte(types[i]);
+				out.writeDouble(lats[i]);
+				out.writeDouble(lons[i]);
+				out.writeLong(times[i]);
+			}
+			writeIds(out, removedCongestionIds, removedCongestions);
+			out.flush();
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not fail
+			throw new IllegalStateException(e.getMessage());
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Decodes an update.
+	 * 
+	 * @param data
+	 *            The encoded data
+	 * @return The update
+	 * @throws IOException
+	 *             The data is no binary update, has an unknown layout or is
+	 *             incomplete
+	 */
+	public static UpdateCodec decode(byte[] data) throws IOException {
+		if (!isBinary(data)) {
+			throw new IOException("no binary update");
+		}
+		if (data.length < 2 || data[1] != WIRE_VERSION) {
+			throw new IOException("unknown layout of the binary update: "
+					+ ((data.length < 2) ? "none" : String.valueOf(data[1])));
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				data, 2, data.length - 2));
+		UpdateCodec u = new UpdateCodec();
+		u.version = in.readLong();
+		int flags = in.readByte();
+		u.delta = (flags & FLAG_DELTA) != 0;
+		u.routing = (flags & FLAG_ROUTING) != 0;
+		for (int i = in.readInt(); i > 0; i--) {
+			u.addTraffic(in.readInt(), in.readShort(), in.readFloat(),
+					in.readByte());
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			u.addRemoved(in.readInt());
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			u.addCongestion(in.readInt(), in.readByte(), in.readDouble(),
+					in.readDouble(), in.readLong());
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			u.addRemovedCongestion(in.readInt());
+		}
+		return u;
+	}
+
+	/**
+	 * Checks whether the data is a binary update.
+	 * 
+	 * @param data
+	 *            The received data
+	 * @return <code>true</code>, if the data starts with <code>MAGIC</code>
+	 */
+	public static boolean isBinary(byte[] data) {
+		return data != null && data.length > 0 && data[0] == MAGIC;
+	}
+
+	/**
+	 * Returns the version of the update.
+	 * 
+	 * @return The version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Sets the version of the update.
+	 * 
+	 * @param version
+	 *            The new version
+	 */
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Returns whether the update contains only the changes.
+	 * 
+	 * @return <code>true</code>, if it is a delta
+	 */
+	public boolean isDelta() {
+		return delta;
+	}
+
+	/**
+	 * Sets whether the update contains only the changes.
+	 * 
+	 * @param delta
+	 *            The new status
+	 */
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+
+	/**
+	 * Returns whether the route has changed.
+	 * 
+	 * @return <code>true</code>, if the route has changed
+	 */
+	public boolean isRouting() {
+		return routing;
+	}
+
+	/**
+	 * Sets whether the route has changed.
+	 * 
+	 * @param routing
+	 *            The new status
+	 */
+	public void setRouting(boolean routing) {
+		this.routing = routing;
+	}
+
+	/**
+	 * Returns the number of strips.
+	 * 
+	 * @return The number of strips
+	 */
+	public int getTrafficCount() {
+		return traffic;
+	}
+
+	/**
+	 * Returns the id of a strip.
+	 * 
+	 * @param i
+	 *            The index of the strip
+	 * @return The id
+	 */
+	public int getTrafficId(int i) {
+		return trafficIds[i];
+	}
+
+	/**
+	 * Returns the speed limit of a strip.
+	 * 
+	 * @param i
+	 *            The index of the strip
+	 * @return The speed limit
+	 */
+	public int getMaxspeed(int i) {
+		return maxspeeds[i];
+	}
+
+	/**
+	 * Returns the speed of a strip.
+	 * 
+	 * @param i
+	 *            The index of the strip
+	 * @return The speed
+	 */
+	public double getSpeed(int i) {
+		return speeds[i];
+	}
+
+	/**
+	 * Returns the quality of the speed of a strip.
+	 * 
+	 * @param i
+	 *            The index of the strip
+	 * @return The quality
+	 */
+	public int getQuality(int i) {
+		return qualities[i];
+	}
+
+	/**
+	 * Returns the ids of the removed strips.
+	 * 
+	 * @return The ids
+	 */
+	public int[] getRemoved() {
+		return copyOf(removedIds, removed);
+	}
+
+	/**
+	 * Returns the number of congestions.
+	 * 
+	 * @return The number of congestions
+	 */
+	public int getCongestionCount() {
+		return congestions;
+	}
+
+	/**
+	 * Returns the id of a congestion.
+	 * 
+	 * @param i
+	 *            The index of the congestion
+	 * @return The id
+	 */
+	public int getCongestionId(int i) {
+		return congestionIds[i];
+	}
+
+	/**
+	 * Returns the type of a congestion.
+	 * 
+	 * @param i
+	 *            The index of the congestion
+	 * @return The type
+	 */
+	public int getType(int i) {
+		return types[i];
+	}
+
+	/**
+	 * Returns the latitude of a congestion.
+	 * 
+	 * @param i
+	 *            The index of the congestion
+	 * @return The latitude
+	 */
+	public double getLat(int i) {
+		return lats[i];
+	}
+
+	/**
+	 * Returns the longitude of a congestion.
+	 * 
+	 * @param i
+	 *            The index of the congestion
+	 * @return The longitude
+	 */
+	public double getLon(int i) {
+		return lons[i];
+	}
+
+	/**
+	 * Returns the reporting time of a congestion.
+	 * 
+	 * @param i
+	 *            The index of the congestion
+	 * @return The time in millis
+	 */
+	public long getTime(int i) {
+		return times[i];
+	}
+
+	/**
+	 * Returns the ids of the removed congestions.
+	 * 
+	 * @return The ids
+	 */
+	public int[] getRemovedCongestions() {
+		return copyOf(removedCongestionIds, removedCongestions);
+	}
+
+	/**
+	 * Writes a section of ids.
+	 * 
+	 * @param out
+	 *            The stream
+	 * @param ids
+	 *            The ids
+	 * @param count
+	 *            The number of ids
+	 * @throws IOException
+	 *             Writing failed
+	 */
+	private static void writeIds(DataOutputStream out, int[] ids, int count)
+			throws IOException {
+		out.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			out.writeInt(ids[i]);
+		}
+	}
+
+	/**
+	 * Copies the first values of an array into a new array.
+	 * 
+	 * @param array
+	 *            The array
+	 * @param length
+	 *            The length of the new array
+	 * @return The new array
+	 */
+	private static int[] copyOf(int[] array, int length) {
+		int[] result = new int[length];
+		System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+		return result;
+	}
+}
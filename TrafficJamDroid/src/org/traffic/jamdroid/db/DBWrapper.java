@@ -19,7 +19,10 @@
 package org.traffic.jamdroid.db;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -34,9 +37,20 @@ import android.util.Log;
 
 /**
  * This class contains several functions for the work with the database-files.
+ * The geometries are read with the {@link TileReader}, files with the old
+ * WKT-format are still supported.
+ * <p>
+ * The database-files are opened once and kept open, so the statements
+ * compiled by {@link SQLiteDatabase} are reused. The ids of an update are
+ * fetched with one query per file and the decoded geometries are kept in a
+ * cache as micro-degrees, which the
+ * {@link org.traffic.jamdroid.views.overlays.DrawableOverlayItem} takes
+ * without converting them. The cache which drops the least recently used strips when it exceeds
+ * <code>CACHE_BYTES</code>. The files of an id are found with the
+ * {@link TileIndex}.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 225 $
+ * @version $LastChangedRevision: 257 $
  * @see SQLiteDatabase
  */
 public class DBWrapper {
@@ -44,23 +58,62 @@ public class DBWrapper {
 	/** The debug-tag */
 	private static final String TAG = "DBWrapper";
 
-	/** Sql to search the linestring for an id */
-	private static final String SELECT_SQL = "SELECT way FROM roadstrips WHERE id = ?";
+	/** Sql to search the linestrings for several ids, the list is appended */
+	private static final String SELECT_SQL = "SELECT id, way FROM roadstrips WHERE id IN (";
 
 	/** Sql to search the minimal and maximal id */
 	private static final String MINMAX_SQL = "SELECT MIN(id) AS min, MAX(id) AS max FROM roadstrips";
 
+	/** Maximal number of ids in one query */
+	private static final int MAX_IDS = 500;
+
+	/** Maximal estimated size of the cached geometries in bytes */
+	private static final int CACHE_BYTES = 1024 * 1024;
+
+	/** Estimated size of a cached strip without its points in bytes */
+	private static final int BYTES_PER_STRIP = 64;
+
+	/** Size of a cached point in bytes */
+	private static final int BYTES_PER_POINT = 8;
+
 	/** The one and only instance */
 	private static DBWrapper instance = new DBWrapper();
 
-	/** A list of all databases */
-	private final Map<Borders, File> databases;
+	/** The ranges of the ids of all databases */
+	private final TileIndex databases;
+
+	/** The format-version of each database */
+	private final Map<File, Integer> versions;
+
+	/** The opened databases */
+	private final Map<File, SQLiteDatabase> opened;
+
+	/**
+	 * The decoded geometries by id in the order of their last use, the
+	 * latitude and longitude of each point in micro-degrees
+	 */
+	private final LinkedHashMap<Integer, int[]> cache;
+
+	/** The estimated size of the cached geometries in bytes */
+	private int cachedBytes;
+
+	/** Number of strips answered by the cache */
+	private int hits;
+
+	/** Number of strips read from the databases */
+	private int misses;
+
+	/** Number of local databases at the last search */
+	private int knownDBs = -1;
 
 	/**
 	 * Default-Constructor
 	 */
 	private DBWrapper() {
-		databases = new HashMap<Borders, File>();
+		databases = new TileIndex();
+		versions = new HashMap<File, Integer>();
+		opened = new HashMap<File, SQLiteDatabase>();
+		cache = new LinkedHashMap<Integer, int[]>(256, 0.75f, true);
 		updateDBs();
 	}
 
@@ -71,41 +124,155 @@ public class DBWrapper {
 	 *            The id of the street
 	 * @return A list of all points
 	 */
-	public List<GeoPoint> fetchPoints(final int id) {
+	public synchronized List<GeoPoint> fetchPoints(final int id) {
+		final int[] points = fetchPoints(new int[] { id }).get(id);
+		return (points != null) ? TileReader.toGeoPoints(points)
+				: new LinkedList<GeoPoint>();
+	}
+
+	/**
+	 * Fetches the points of several streets. The streets, which are not
+	 * cached, are read with one query per database-file. The arrays are
+	 * shared with the cache and must not be changed.
+	 * 
+	 * @param ids
+	 *            The ids of the streets
+	 * @return The latitude and longitude of the points in micro-degrees by
+	 *         id, unknown ids are missing
+	 */
+	public synchronized Map<Integer, int[]> fetchPoints(final int[] ids) {
 		updateDBs();
-		SQLiteDatabase db = null;
-		Cursor c = null;
+		final Map<Integer, int[]> result = new HashMap<Integer, int[]>();
 
-		try {
-			// searching the database-file
-			final Borders search = new Borders(id, id);
-			if (databases.get(search) != null) {
-				db = SQLiteDatabase.openOrCreateDatabase(databases.get(search),
-						null);
-				if (db != null) {
-					c = db.rawQuery(SELECT_SQL, new String[] { "" + id });
-					if (c != null) {
-						c.moveToFirst();
+		// searching the database-files of the missing ids
+		final Map<Integer, List<File>> candidates = new HashMap<Integer, List<File>>();
+		for (int id : ids) {
+			final int[] points = cache.get(id);
+			if (points != null) {
+				hits++;
+				result.put(id, points);
+			} else if (!candidates.containsKey(id)) {
+				misses++;
+				candidates.put(id, databases.find(id));
+			}
+		}
+
+		// the ranges may overlap, so an id is searched in the next file, if
+		// it was not found in the previous one
+		for (int round = 0; !candidates.isEmpty(); round++) {
+			final Map<File, List<Integer>> missing = new HashMap<File, List<Integer>>();
+			final Iterator<Map.Entry<Integer, List<File>>> it = candidates
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				final Map.Entry<Integer, List<File>> entry = it.next();
+				if (result.containsKey(entry.getKey())
+						|| round >= entry.getValue().size()) {
+					it.remove();
+					continue;
+				}
+				final File database = entry.getValue().get(round);
+				List<Integer> list = missing.get(database);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					missing.put(database, list);
+				}
+				list.add(entry.getKey());
+			}
+			read(missing, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the points of the ids from the database-files and adds them to
+	 * the result and the cache.
+	 * 
+	 * @param missing
+	 *            The ids by their database-file
+	 * @param result
+	 *            The points by id
+	 */
+	private void read(final Map<File, List<Integer>> missing,
+			final Map<Integer, int[]> result) {
+		for (Map.Entry<File, List<Integer>> entry : missing.entrySet()) {
+			Cursor c = null;
+			try {
+				final SQLiteDatabase db = open(entry.getKey());
+				final Integer version = versions.get(entry.getKey());
+				final boolean binary = version != null
+						&& version >= TileReader.VERSION_BINARY;
+				final List<Integer> list = entry.getValue();
+				for (int from = 0; from < list.size(); from += MAX_IDS) {
+					final int to = Math.min(list.size(), from + MAX_IDS);
+					final StringBuffer sql = new StringBuffer(SELECT_SQL);
+					final String[] args = new String[to - from];
+					for (int i = from; i < to; i++) {
+						sql.append((i == from) ? "?" : ",?");
+						args[i - from] = "" + list.get(i);
+					}
+					sql.append(")");
+					c = db.rawQuery(sql.toString(), args);
+					while (c.moveToNext()) {
 						// extracting the points
-						String linestring = c
-								.getString(c.getColumnIndex("way"));
-						return extractPoints(linestring);
+						final int[] points = binary ? TileReader.decode(c
+								.getBlob(1)) : extractPoints(c.getString(1));
+						result.put(c.getInt(0), points);
+						cache(c.getInt(0), points);
 					}
+					c.close();
+					c = null;
+				}
+			} catch (Exception ex) {
+				Log.e(TAG,
+						ex.getClass().getSimpleName() + "@fetchPoints: "
+								+ ex.getMessage());
+			} finally {
+				if (c != null) {
+					c.close();
 				}
 			}
-		} catch (Exception ex) {
-			Log.e(TAG,
-					ex.getClass().getSimpleName() + "@fetchPoints: "
-							+ ex.getMessage());
-		} finally {
-			if (c != null) {
-				c.close();
-			}
-			if (db != null) {
-				db.close();
-			}
 		}
-		return new LinkedList<GeoPoint>();
+	}
+
+	/**
+	 * Adds a geometry to the cache and drops the least recently used ones, if
+	 * the cache is too big.
+	 * 
+	 * @param id
+	 *            The id of the street
+	 * @param points
+	 *            The micro-degrees of the points of the street
+	 */
+	private void cache(final int id, final int[] points) {
+		final int[] old = cache.put(id, points);
+		if (old != null) {
+			cachedBytes -= BYTES_PER_STRIP + old.length / 2 * BYTES_PER_POINT;
+		}
+		cachedBytes += BYTES_PER_STRIP + points.length / 2 * BYTES_PER_POINT;
+		final Iterator<int[]> it = cache.values().iterator();
+		while (cachedBytes > CACHE_BYTES && it.hasNext()) {
+			cachedBytes -= BYTES_PER_STRIP + it.next().length / 2
+					* BYTES_PER_POINT;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns the opened database of a file and opens it, if necessary.
+	 * 
+	 * @param database
+	 *            The database-file
+	 * @return The opened database
+	 */
+	private SQLiteDatabase open(final File database) {
+		SQLiteDatabase db = opened.get(database);
+		if (db == null || !db.isOpen()) {
+			db = SQLiteDatabase.openDatabase(database.getAbsolutePath(), null,
+					SQLiteDatabase.OPEN_READONLY
+							| SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			opened.put(database, db);
+		}
+		return db;
 	}
 
 	/**
@@ -113,22 +280,22 @@ public class DBWrapper {
 	 * 
 	 * @param linestring
 	 *            The linestring with the data
-	 * @return A list of all points
+	 * @return The latitude and longitude of each point in micro-degrees
 	 */
-	private List<GeoPoint> extractPoints(String linestring) {
+	private int[] extractPoints(String linestring) {
 		try {
-			final List<GeoPoint> points = new LinkedList<GeoPoint>();
 			linestring = linestring.substring(12, linestring.length() - 1);
 			String[] strPoints = linestring.split(",");
-			for (String text : strPoints) {
-				String[] pos = text.trim().split(" ");
-				points.add(new GeoPoint(Double.parseDouble(pos[1]), Double
-						.parseDouble(pos[0])));
+			final int[] points = new int[2 * strPoints.length];
+			for (int i = 0; i < strPoints.length; i++) {
+				String[] pos = strPoints[i].trim().split(" ");
+				points[2 * i] = (int) (Double.parseDouble(pos[1]) * 1E6);
+				points[2 * i + 1] = (int) (Double.parseDouble(pos[0]) * 1E6);
 			}
 			return points;
 		} catch (Exception ex) {
 			Log.e(TAG, ex.getClass() + "@extractPoints: " + ex.getMessage());
-			return new LinkedList<GeoPoint>();
+			return new int[0];
 		}
 	}
 
@@ -139,16 +306,16 @@ public class DBWrapper {
 	 *            The database-file
 	 */
 	private void getDBInfo(final File database) {
-		SQLiteDatabase db = null;
 		Cursor c = null;
 		try {
-			db = SQLiteDatabase.openOrCreateDatabase(database, null);
+			final SQLiteDatabase db = open(database);
 			c = db.rawQuery(MINMAX_SQL, null);
 			if (c != null && c.getCount() > 0) {
 				c.moveToFirst();
 				final int min = c.getInt(c.getColumnIndex("min"));
 				final int max = c.getInt(c.getColumnIndex("max"));
-				databases.put(new Borders(min, max), database);
+				versions.put(database, TileReader.readVersion(db));
+				databases.put(min, max, database);
 			}
 		} catch (Exception ex) {
 			Log.e(TAG,
@@ -158,21 +325,38 @@ public class DBWrapper {
 			if (c != null) {
 				c.close();
 			}
-			if (db != null) {
-				db.close();
-			}
 		}
 	}
 
 	/**
-	 * Searches for local database-files and adds them to the list.
+	 * Adds a database-file, e.g. after it was downloaded.
+	 * 
+	 * @param database
+	 *            The database-file
+	 */
+	public synchronized void addDatabase(final File database) {
+		if (!databases.contains(database)) {
+			getDBInfo(database);
+		}
+	}
+
+	/**
+	 * Searches for local database-files and adds them to the list. The
+	 * directories are only searched, if the number of local databases has
+	 * changed.
 	 */
 	private void updateDBs() {
+		final int local = LocalDBMonitor.getLocaleDBs().size();
+		if (local == knownDBs) {
+			return;
+		}
+		knownDBs = local;
+
 		// searching local databases
 		File checkPath = new File(IConstants.INTERN_DB_PATH);
 		if (checkPath.exists()) {
 			for (File f : checkPath.listFiles()) {
-				if (f.getName().endsWith(".db") && !databases.containsValue(f)
+				if (f.getName().endsWith(".db") && !databases.contains(f)
 						&& LocalDBMonitor.getLocaleDBs().contains(f.getName())) {
 					getDBInfo(f);
 				}
@@ -183,7 +367,7 @@ public class DBWrapper {
 		checkPath = new File(IConstants.EXTERN_DB_PATH);
 		if (checkPath.exists()) {
 			for (File f : checkPath.listFiles()) {
-				if (f.getName().endsWith(".db") && !databases.containsValue(f)
+				if (f.getName().endsWith(".db") && !databases.contains(f)
 						&& LocalDBMonitor.getLocaleDBs().contains(f.getName())) {
 					getDBInfo(f);
 				}
@@ -191,6 +375,34 @@ public class DBWrapper {
 		}
 	}
 
+	/**
+	 * Closes all opened databases.
+	 */
+	public synchronized void close() {
+		for (SQLiteDatabase db : opened.values()) {
+			db.close();
+		}
+		opened.clear();
+	}
+
+	/**
+	 * Returns the number of strips answered by the cache.
+	 * 
+	 * @return The number of hits
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of strips read from the databases.
+	 * 
+	 * @return The number of misses
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
 	/**
 	 * Provides the one and only instance of this class.
 	 * 
@@ -200,4 +412,10 @@ public class DBWrapper {
 		return instance;
 	}
 
+	@Override
+	public synchronized String toString() {
+		return "strips: " + cache.size() + " (" + cachedBytes + " bytes), hits: "
+				+ hits + ", misses: " + misses;
+	}
+
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.jamdroid.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the ids of the strips to the database-files containing them. Each file
+ * covers the range from its minimal to its maximal id. The ranges are kept
+ * sorted by their minimal id together with the highest maximal id up to each
+ * position, so the files of an id are found with a binary search and a short
+ * scan.
+ * <p>
+ * The ranges of neighbouring files may overlap, because the ids of the strips
+ * are not ordered by their position. A lookup therefore returns all files,
+ * whose range contains the id. This class is not synchronized.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 257 $
+ */
+public class TileIndex {
+
+	/** The minimal ids in ascending order */
+	private int[] mins = new int[0];
+
+	/** The maximal ids */
+	private int[] maxs = new int[0];
+
+	/** The highest maximal id of all ranges up to each position */
+	private int[] reach = new int[0];
+
+	/** The files of the ranges */
+	private File[] files = new File[0];
+
+	/**
+	 * Adds the range of a file.
+	 * 
+	 * @param min
+	 *            The minimal id
+	 * @param max
+	 *            The maximal id
+	 * @param file
+	 *            The database-file
+	 */
+	public void put(final int min, final int max, final File file) {
+		final int n = mins.length;
+		final int pos = upperBound(min);
+		mins = insert(mins, pos, min);
+		maxs = insert(maxs, pos, max);
+		final File[] f = new File[n + 1];
+		System.arraycopy(files, 0, f, 0, pos);
+		System.arraycopy(files, pos, f, pos + 1, n - pos);
+		f[pos] = file;
+		files = f;
+
+		// updating the reach behind the new range
+		reach = new int[n + 1];
+		for (int i = 0; i <= n; i++) {
+			reach[i] = (i == 0) ? maxs[0] : Math.max(reach[i - 1], maxs[i]);
+		}
+	}
+
+	/**
+	 * Returns the files, whose range contains the id. The file with the
+	 * nearest minimal id comes first.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @return The files, empty if no range contains the id
+	 */
+	public List<File> find(final int id) {
+		final List<File> result = new ArrayList<File>(2);
+		for (int i = upperBound(id) - 1; i >= 0 && reach[i] >= id; i--) {
+			if (maxs[i] >= id) {
+				result.add(files[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks whether the range of a file was added.
+	 * 
+	 * @param file
+	 *            The database-file
+	 * @return <code>true</code>, if the file is known
+	 */
+	public boolean contains(final File file) {
+		for (File f : files) {
+			if (f.equals(file)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of files.
+	 * 
+	 * @return The number of files
+	 */
+	public int size() {
+		return files.length;
+	}
+
+	/**
+	 * Searches the first position with a minimal id greater than the value.
+	 * 
+	 * @param value
+	 *            The value
+	 * @return The position
+	 */
+	private int upperBound(final int value) {
+		int low = 0;
+		int high = mins.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (mins[mid] <= value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Inserts a value into a copy of an array.
+	 * 
+	 * @param array
+	 *            The array
+	 * @param pos
+	 *            The position of the new value
+	 * @param value
+	 *            The value
+	 * @return The new array
+	 */
+	private static int[] insert(final int[] array, final int pos,
+			final int value) {
+		final int[] result = new int[array.length + 1];
+		System.arraycopy(array, 0, result, 0, pos);
+		System.arraycopy(array, pos, result, pos + 1, array.length - pos);
+		result[pos] = value;
+		return result;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.jamdroid.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.osmdroid.util.GeoPoint;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Reads the geometries of the database-files. The current files store each
+ * strip as a BLOB: the number of points followed by the latitude and longitude
+ * of each point in micro-degrees as difference to the previous point, all as
+ * zigzag-encoded varints. The format is marked by the <code>user_version</code>
+ * of the file, older files without it contain the geometries as WKT.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 255 $
+ */
+public class TileReader {
+
+	/** Version of the files with WKT-geometries */
+	public static final int VERSION_WKT = 0;
+
+	/** Version of the files with encoded geometries */
+	public static final int VERSION_BINARY = 1;
+
+	/**
+	 * Default-Constructor
+	 */
+	private TileReader() {
+	}
+
+	/**
+	 * Reads the version of the format of a database-file.
+	 * 
+	 * @param db
+	 *            The opened database
+	 * @return The version
+	 */
+	public static int readVersion(final SQLiteDatabase db) {
+		Cursor c = null;
+		try {
+			c = db.rawQuery("PRAGMA user_version", null);
+			return (c != null && c.moveToFirst()) ? c.getInt(0) : VERSION_WKT;
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Decodes a geometry into the micro-degrees of its points.
+	 * 
+	 * @param blob
+	 *            The encoded geometry
+	 * @return The latitude and longitude of each point one after the other
+	 */
+	public static int[] decode(final byte[] blob) {
+		final int[] pos = new int[1];
+		final int n = readVarint(blob, pos);
+		final int[] points = new int[2 * n];
+		int lat = 0;
+		int lon = 0;
+		for (int i = 0; i < n; i++) {
+			lat += unzigzag(readVarint(blob, pos));
+			lon += unzigzag(readVarint(blob, pos));
+			points[2 * i] = lat;
+			points[2 * i + 1] = lon;
+		}
+		return points;
+	}
+
+	/**
+	 * Converts the micro-degrees of a geometry into a list of
+	 * {@link GeoPoint}s.
+	 * 
+	 * @param points
+	 *            The latitude and longitude of each point one after the other
+	 * @return A list of all points
+	 */
+	public static List<GeoPoint> toGeoPoints(final int[] points) {
+		final List<GeoPoint> result = new ArrayList<GeoPoint>(
+				points.length / 2);
+		for (int i = 0; i < points.length; i += 2) {
+			result.add(new GeoPoint(points[i], points[i + 1]));
+		}
+		return result;
+	}
+
+	/**
+	 * Reads an unsigned value with seven bits per byte, the highest bit marks
+	 * a following byte.
+	 * 
+	 * @param blob
+	 *            The data
+	 * @param pos
+	 *            The position to read from, moved behind the value
+	 * @return The value
+	 */
+	private static int readVarint(final byte[] blob, final int[] pos) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = blob[pos[0]++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Restores a signed value from its zigzag-encoding.
+	 * 
+	 * @param value
+	 *            The encoded value
+	 * @return The signed value
+	 */
+	private static int unzigzag(final int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -28,6 +28,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
+import org.traffic.jamdroid.db.DBWrapper;
 import org.traffic.jamdroid.utils.IConstants;
 
 import android.content.Context;
@@ -38,7 +39,7 @@ import android.util.Log;
  * Class to handle the local database-files.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 225 $
+ * @version $LastChangedRevision: 257 $
  */
 public class LocalDBMonitor {
 
@@ -179,6 +180,7 @@ public class LocalDBMonitor {
 					fos.close();
 					gis.close();
 					localDBs.add(dbname);
+					DBWrapper.getInstance().addDatabase(database);
 					Log.d(TAG, dbname + " is existant");
 				}
 			}
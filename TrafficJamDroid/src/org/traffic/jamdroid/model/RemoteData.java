@@ -18,18 +18,28 @@
  */
 package org.traffic.jamdroid.model;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.osmdroid.views.overlay.Overlay;
+import org.traffic.jamdroid.views.overlays.CongestionItem;
+import org.traffic.jamdroid.views.overlays.DrawableOverlayItem;
 import org.traffic.jamdroid.views.overlays.LocationOverlay;
 import org.traffic.jamdroid.views.overlays.RoadOverlay;
+import org.traffic.jamdroid.views.overlays.SpeedOverlayItem;
 
 /**
  * Class to store all information send by the server.
+ * <p>
+ * The items of the traffic and the congestions are kept by their id together
+ * with the version of the last update, so an update with only the changes
+ * can be applied to the existing overlays.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 225 $
+ * @version $LastChangedRevision: 258 $
  */
 public class RemoteData {
 
@@ -44,6 +54,21 @@ public class RemoteData {
 	/** A list of all overlays used for the basic system */
 	private final List<Overlay> systemOverlays;
 
+	/** The version of the last update, <code>0</code> if none is known */
+	private long version;
+
+	/** The overlay with the traffic */
+	private RoadOverlay<DrawableOverlayItem> trafficOverlay;
+
+	/** The items of the traffic by the id of the strip */
+	private final Map<Integer, SpeedOverlayItem> traffic;
+
+	/** The congestions by id */
+	private final Map<Integer, CongestionItem> congestions;
+
+	/** The overlay with the congestions */
+	private Overlay congestionOverlay;
+
 	/**
 	 * Default constructor. (For invocation by <code>getInstance</code> in this
 	 * singleton.)
@@ -52,6 +77,114 @@ public class RemoteData {
 		hasCongestions = false;
 		overlays = new LinkedList<Overlay>();
 		systemOverlays = new LinkedList<Overlay>();
+		traffic = new HashMap<Integer, SpeedOverlayItem>();
+		congestions = new LinkedHashMap<Integer, CongestionItem>();
+	}
+
+	/**
+	 * Returns the version of the last update.
+	 * 
+	 * @return The version or <code>0</code>, if the overlays are empty
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Sets the version of the last update.
+	 * 
+	 * @param version
+	 *            The new version
+	 */
+	public void setVersion(final long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Sets a new overlay for the traffic and forgets the old items.
+	 * 
+	 * @param overlay
+	 *            The new overlay
+	 */
+	public void setTrafficOverlay(final RoadOverlay<DrawableOverlayItem> overlay) {
+		trafficOverlay = overlay;
+		traffic.clear();
+		addOverlay(overlay);
+	}
+
+	/**
+	 * Returns the overlay with the traffic.
+	 * 
+	 * @return The overlay or <code>null</code>, if none exists
+	 */
+	public RoadOverlay<DrawableOverlayItem> getTrafficOverlay() {
+		return trafficOverlay;
+	}
+
+	/**
+	 * Returns the item of the traffic for a strip.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @return The item or <code>null</code>, if it is unknown
+	 */
+	public SpeedOverlayItem getTrafficItem(final int id) {
+		return traffic.get(id);
+	}
+
+	/**
+	 * Adds the item of a strip to the traffic or replaces the old one.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @param item
+	 *            The new item
+	 */
+	public void putTrafficItem(final int id, final SpeedOverlayItem item) {
+		final SpeedOverlayItem old = traffic.put(id, item);
+		if (old != null) {
+			trafficOverlay.replaceItem(old, item);
+		} else {
+			trafficOverlay.addItem(item);
+		}
+	}
+
+	/**
+	 * Removes the item of a strip from the traffic.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 */
+	public void removeTrafficItem(final int id) {
+		final SpeedOverlayItem old = traffic.remove(id);
+		if (old != null) {
+			trafficOverlay.removeItem(old);
+		}
+	}
+
+	/**
+	 * Returns the congestions by id.
+	 * 
+	 * @return The congestions
+	 */
+	public Map<Integer, CongestionItem> getCongestions() {
+		return congestions;
+	}
+
+	/**
+	 * Replaces the overlay with the congestions.
+	 * 
+	 * @param overlay
+	 *            The new overlay, <code>null</code> to remove the old one
+	 */
+	public void setCongestionOverlay(final Overlay overlay) {
+		if (congestionOverlay != null) {
+			overlays.remove(congestionOverlay);
+		}
+		congestionOverlay = overlay;
+		if (overlay != null) {
+			addOverlay(overlay);
+		}
 	}
 
 	/**
@@ -137,7 +270,7 @@ public class RemoteData {
 	 * Deletes all overlays.
 	 */
 	public void clearAllOverlays() {
-		overlays.clear();
+		clearOverlays();
 		systemOverlays.clear();
 	}
 
@@ -146,6 +279,11 @@ public class RemoteData {
 	 */
 	public void clearOverlays() {
 		overlays.clear();
+		version = 0;
+		trafficOverlay = null;
+		traffic.clear();
+		congestionOverlay = null;
+		congestions.clear();
 	}
 
 	/**
@@ -20,14 +20,17 @@ package org.traffic.jamdroid.services;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.osmdroid.DefaultResourceProxyImpl;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
 import org.osmdroid.views.overlay.ItemizedIconOverlay;
 import org.osmdroid.views.overlay.OverlayItem;
+import org.traffic.common.UpdateCodec;
 import org.traffic.jamdroid.R;
 import org.traffic.jamdroid.db.DBWrapper;
 import org.traffic.jamdroid.model.LocalData;
@@ -55,9 +58,13 @@ import android.widget.Toast;
 /**
  * Task to refresh the data. It sends an update-request to the server and
  * receives the traffic-data, the congestions and the status of the navigation.
+ * With the version of the last update the server sends only the changes,
+ * which are applied to the existing overlays. The response is requested in the
+ * binary format of the {@link UpdateCodec} and its records are applied
+ * directly. A JSON-response is still accepted and converted into the records.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 226 $
+ * @version $LastChangedRevision: 265 $
  */
 public class UpdateGPSTask extends AsyncTask<Context, Void, Void> {
 
@@ -86,61 +93,107 @@ public class UpdateGPSTask extends AsyncTask<Context, Void, Void> {
 			r.put("save",
 					Preferences.getInstance(context).getBoolean("sendDataPref",
 							true));
+			r.put("version", remote.getVersion());
+			r.setFormat(UpdateCodec.FORMAT_BINARY);
 			Requester req = Requester.getInstance(context);
-			String response = req.contactServerForResult(r.toJson()).trim();
-
-			if (response.contains("error")) {
-				Log.e(TAG, "ArgumentError@doInBackground: "
-						+ new JSONObject(response).getString("error"));
-				return null;
+			final byte[] data = req.contactServerForBytes(r.toJson());
+			String response = null;
+			UpdateCodec u = null;
+			if (UpdateCodec.isBinary(data)) {
+				u = UpdateCodec.decode(data);
+			} else {
+				// errors and old servers answer with JSON
+				response = new String(data, "ISO-8859-1").trim();
+				if (response.contains("error")) {
+					Log.e(TAG, "ArgumentError@doInBackground: "
+							+ new JSONObject(response).getString("error"));
+					return null;
+				}
+				if (response.length() > 0 && !response.equals("null")) {
+					u = fromJson(new JSONObject(response));
+				}
 			}
 
-			if (response != null && !response.equals("null")) {
-				final JSONObject jobj = new JSONObject(response);
-
-				// parsing the response, creating the overlays and saving the
-				// information
-				// adding the speedoverlays
-				final JSONArray overlays = jobj.getJSONArray("traffic");
-				remote.clearOverlays();
-				DBWrapper db = DBWrapper.getInstance();
-				List<DrawableOverlayItem> listSpeed = new LinkedList<DrawableOverlayItem>();
-				for (int i = overlays.length() - 1; i >= 0; i--) {
-					final JSONObject obj = overlays.getJSONObject(i);
-					listSpeed.add(new SpeedOverlayItem(context, db
-							.fetchPoints(obj.getInt("id")), obj
-							.getDouble("speed"), obj.getDouble("maxspeed"), obj
-							.getDouble("quality")));
+			if (u != null) {
+
+				// a delta is applied to the existing overlays, otherwise they
+				// are created again
+				final boolean delta = u.isDelta()
+						&& remote.getTrafficOverlay() != null;
+				if (!delta) {
+					remote.clearOverlays();
+					remote.setTrafficOverlay(new RoadOverlay<DrawableOverlayItem>(
+							new LinkedList<DrawableOverlayItem>(), context));
+				}
+
+				// removing the strips, which are not sent anymore
+				for (int id : u.getRemoved()) {
+					remote.removeTrafficItem(id);
 				}
-				RoadOverlay<DrawableOverlayItem> itemizedSpeedOverlay = new RoadOverlay<DrawableOverlayItem>(
-						listSpeed, context);
-				remote.addOverlay(itemizedSpeedOverlay);
-
-				// adding the congestions
-				remote.setHasCongestions(jobj.has("congestions"));
-				if (jobj.has("congestions")) {
-					final JSONArray congestions = jobj
-							.getJSONArray("congestions");
-					Drawable drawable = context.getResources().getDrawable(
-							R.drawable.calendar_day);
-					List<OverlayItem> list = new LinkedList<OverlayItem>();
+
+				// adding the speedoverlays, only the points of unknown strips
+				// are loaded
+				final int n = u.getTrafficCount();
+				final int[] ids = new int[n];
+				int unknown = 0;
+				for (int i = 0; i < n; i++) {
+					final int id = u.getTrafficId(i);
+					if (remote.getTrafficItem(id) == null) {
+						ids[unknown++] = id;
+					}
+				}
+				final int[] load = new int[unknown];
+				System.arraycopy(ids, 0, load, 0, unknown);
+				final Map<Integer, int[]> ways = DBWrapper.getInstance()
+						.fetchPoints(load);
+				Log.d(TAG, "DBWrapper - " + DBWrapper.getInstance());
+				for (int i = n - 1; i >= 0; i--) {
+					final int id = u.getTrafficId(i);
+					final SpeedOverlayItem known = remote.getTrafficItem(id);
+					int[] points = (known != null) ? known.getPointsE6() : ways
+							.get(id);
+					if (points == null) {
+						points = new int[0];
+					}
+					remote.putTrafficItem(id, new SpeedOverlayItem(context,
+							points, u.getSpeed(i), u.getMaxspeed(i), u
+									.getQuality(i)));
+				}
+
+				// updating the congestions
+				final Map<Integer, CongestionItem> known = remote
+						.getCongestions();
+				final int[] removedCongestions = u.getRemovedCongestions();
+				for (int id : removedCongestions) {
+					known.remove(id);
+				}
+				final int congestions = u.getCongestionCount();
+				if (congestions > 0) {
 					CongestionItem.setContext(context);
-					for (int i = congestions.length() - 1; i >= 0; i--) {
-						final JSONObject obj = congestions.getJSONObject(i);
+					for (int i = congestions - 1; i >= 0; i--) {
 						CongestionItem overlayItem = new CongestionItem(
-								obj.getInt("id"), obj.getInt("type"),
-								new GeoPoint(obj.getDouble("lat"), obj
-										.getDouble("lon")),
-								obj.getLong("time"));
-						list.add(overlayItem);
+								u.getCongestionId(i), u.getType(i),
+								new GeoPoint(u.getLat(i), u.getLon(i)),
+								u.getTime(i));
+						known.put(overlayItem.getID(), overlayItem);
+					}
+				}
+				remote.setHasCongestions(!known.isEmpty());
+				if (congestions > 0 || removedCongestions.length > 0) {
+					ItemizedIconOverlay<OverlayItem> itemizedOverlay = null;
+					if (!known.isEmpty()) {
+						Drawable drawable = context.getResources().getDrawable(
+								R.drawable.calendar_day);
+						itemizedOverlay = new ItemizedIconOverlay<OverlayItem>(
+								new LinkedList<OverlayItem>(known.values()),
+								drawable, gestureListener,
+								new DefaultResourceProxyImpl(context));
 					}
-					ItemizedIconOverlay<OverlayItem> itemizedOverlay = new ItemizedIconOverlay<OverlayItem>(
-							list, drawable, gestureListener,
-							new DefaultResourceProxyImpl(context));
-					remote.addOverlay(itemizedOverlay);
+					remote.setCongestionOverlay(itemizedOverlay);
 				}
+				remote.setVersion(u.getVersion());
 
-				if (jobj.has("routing")) {
+				if (u.isRouting()) {
 					final Request rRoute = new Request(
 							IConstants.REQUEST_GET_ROUTE, Preferences
 									.getInstance(context).getString("session",
@@ -192,6 +245,48 @@ public class UpdateGPSTask extends AsyncTask<Context, Void, Void> {
 		return null;
 	}
 
+	/**
+	 * Converts a JSON-response of an older server into the records of a
+	 * binary update.
+	 * 
+	 * @param jobj
+	 *            The JSON-response
+	 * @return The update
+	 * @throws JSONException
+	 *             The response is incomplete
+	 */
+	private static UpdateCodec fromJson(final JSONObject jobj)
+			throws JSONException {
+		final UpdateCodec u = new UpdateCodec();
+		u.setVersion(jobj.optLong("version", 0));
+		u.setDelta(jobj.optBoolean("delta", false));
+		u.setRouting(jobj.has("routing"));
+		final JSONArray traffic = jobj.optJSONArray("traffic");
+		for (int i = 0; traffic != null && i < traffic.length(); i++) {
+			final JSONObject obj = traffic.getJSONObject(i);
+			u.addTraffic(obj.getInt("id"), obj.getInt("maxspeed"),
+					obj.getDouble("speed"), obj.getInt("quality"));
+		}
+		final JSONArray congestions = jobj.optJSONArray("congestions");
+		for (int i = 0; congestions != null && i < congestions.length(); i++) {
+			final JSONObject obj = congestions.getJSONObject(i);
+			u.addCongestion(obj.getInt("id"), obj.getInt("type"),
+					obj.getDouble("lat"), obj.getDouble("lon"),
+					obj.getLong("time"));
+		}
+		final JSONArray removed = jobj.optJSONArray("removed");
+		for (int i = 0; removed != null && i < removed.length(); i++) {
+			u.addRemoved(removed.getInt(i));
+		}
+		final JSONArray removedCongestions = jobj
+				.optJSONArray("removedCongestions");
+		for (int i = 0; removedCongestions != null
+				&& i < removedCongestions.length(); i++) {
+			u.addRemovedCongestion(removedCongestions.getInt(i));
+		}
+		return u;
+	}
+
 	/**
 	 * Listener for the congestions to show additional information and provide
 	 * an opportunity to delete them
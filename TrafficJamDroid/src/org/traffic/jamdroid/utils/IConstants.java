@@ -22,7 +22,7 @@ package org.traffic.jamdroid.utils;
  * Interface to wrap the constants used in the application.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 227 $
+ * @version $LastChangedRevision: 265 $
  */
 public interface IConstants {
 
@@ -56,8 +56,12 @@ public interface IConstants {
 	public static final String EXTERN_DB_PATH = "/sdcard/TrafficJamDroid/db/";
 	/** Path to the online-help-files */
 	public static final String ONLINE_HELP_PATH = "<FILESERVER>/help/index.php";
-	/** Path to the server with the database-files */
-	public static final String DB_DOWNLOAD_PATH = "<FILESERVER>/databases/";
+	/**
+	 * Path to the server with the database-files. The folder v1 contains the
+	 * files with encoded geometries, the files with WKT are kept in the parent
+	 * folder for older clients.
+	 */
+	public static final String DB_DOWNLOAD_PATH = "<FILESERVER>/databases/v1/";
 
 	/** Congestion - indicating traffic jam */
 	public static final int CONGESTION_JAM = 0;
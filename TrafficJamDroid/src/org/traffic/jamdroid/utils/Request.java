@@ -24,6 +24,7 @@ import java.util.Map;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.traffic.common.UpdateCodec;
 
 /**
  * Class to encapsulate a server-request. The client classes can add data and
@@ -31,7 +32,7 @@ import org.json.JSONObject;
  * server.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 227 $
+ * @version $LastChangedRevision: 265 $
  */
 public class Request {
 
@@ -44,6 +45,9 @@ public class Request {
 	/** The data send to the server */
 	private Object data;
 
+	/** The format of the response defined in {@link UpdateCodec} */
+	private int format = UpdateCodec.FORMAT_JSON;
+
 	/**
 	 * Custom-Constructor of a <code>Request</code> with data
 	 * 
@@ -83,6 +87,16 @@ public class Request {
 		return this.type;
 	}
 
+	/**
+	 * Sets the format of the response.
+	 * 
+	 * @param format
+	 *            The format defined in {@link UpdateCodec}
+	 */
+	public void setFormat(int format) {
+		this.format = format;
+	}
+
 	/**
 	 * Adds a <i>value</i> under a given <i>key</i> to the request. The
 	 * <i>value</i> could be a <code>{@link Map}</code>, a
@@ -134,6 +148,9 @@ public class Request {
 			JSONObject meta = new JSONObject();
 			meta.put("type", this.type);
 			meta.put("id", session);
+			if (format != UpdateCodec.FORMAT_JSON) {
+				meta.put("format", format);
+			}
 
 			// Build Response
 			JSONObject ret = new JSONObject();
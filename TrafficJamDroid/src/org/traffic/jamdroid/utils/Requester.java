@@ -18,11 +18,13 @@
  */
 package org.traffic.jamdroid.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import org.traffic.common.UpdateCodec;
 import org.traffic.jamdroid.model.Preferences;
 
 import android.content.Context;
@@ -32,7 +34,7 @@ import android.util.Log;
  * Class to handle the socket-communication with the server
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 227 $
+ * @version $LastChangedRevision: 265 $
  */
 public class Requester {
 
@@ -138,6 +140,45 @@ public class Requester {
 		return "";
 	}
 
+	/**
+	 * Sends a <i>request</i> to the server and waits for a response, which is
+	 * returned as received. This is used for responses, which may be encoded
+	 * by the {@link UpdateCodec}.
+	 * @param request
+	 *            The complete json-string send to the server
+	 * @return The answer of the server or an empty array
+	 */
+	public byte[] contactServerForBytes(String request) {
+		Socket socket = null;
+
+		try {
+			socket = new Socket(Preferences.getInstance(context).getString(
+					"editServerPref", "<SERVER_IP>"),
+					Integer.valueOf(Preferences.getInstance(context).getString(
+							"editPortPref", "<SERVER_PORT>")));
+			socket.setSoTimeout(25000);
+
+			// Sending the request
+			write(socket, request);
+
+			// Reading the response
+			return readBytes(socket);
+		} catch (Exception e) {
+			Log.e(TAG,
+					e.getClass() + "@contactServerForBytes: " + e.getMessage());
+		} finally {
+			try {
+				if (socket != null) {
+					socket.close();
+				}
+			} catch (IOException e) {
+				Log.e(TAG,
+						"IOException@contactServerForBytes: " + e.getMessage());
+			}
+		}
+		return new byte[0];
+	}
+
 	/**
 	 * Writes the given <i>text</i> to the <i>sockets</i> outputstream.
 	 * 
@@ -177,6 +218,25 @@ public class Requester {
 		return res.toString();
 	}
 
+	/**
+	 * Reads a <i>sockets</i> inputstream and returns the complete data.
+	 * @param socket
+	 *            The socket for the communication
+	 * @return The complete data
+	 * @throws IOException
+	 *             Connection timed out
+	 */
+	private byte[] readBytes(Socket socket) throws IOException {
+		GZIPInputStream in = new GZIPInputStream(socket.getInputStream());
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int len;
+		while ((len = in.read(buffer)) != -1) {
+			res.write(buffer, 0, len);
+		}
+		return res.toByteArray();
+	}
+
 	/**
 	 * Returns the single instance of <code>Requester</code>.
 	 * 
@@ -47,6 +47,9 @@ public class DrawableOverlayItem extends OverlayItem {
 	/** A list of all points used to draw this item */
 	private List<GeoPoint> geopoints;
 
+	/** The latitude and longitude of all points in micro-degrees */
+	private int[] pointsE6;
+
 	/** A counter for the precomputed points */
 	private int pointsPrecomputed;
 
@@ -80,6 +83,26 @@ public class DrawableOverlayItem extends OverlayItem {
 		
 		this.clearPath();
 	}
+
+	/**
+	 * Custom-Constructor with a color and the points in micro-degrees, as
+	 * decoded by the {@link org.traffic.jamdroid.db.TileReader}. The array is
+	 * not copied and must not be changed afterwards.
+	 * 
+	 * @param color
+	 *            The color of the overlay
+	 * @param pointsE6
+	 *            The latitude and longitude of each point one after the
+	 *            other
+	 */
+	public DrawableOverlayItem(final int color, final int[] pointsE6) {
+		this(color, (List<GeoPoint>) null);
+		this.pointsE6 = pointsE6;
+		this.points.ensureCapacity(pointsE6.length / 2);
+		for (int i = 0; i < pointsE6.length; i += 2) {
+			addPoint(pointsE6[i], pointsE6[i + 1]);
+		}
+	}
 	
 	/**
 	 * Returns a list of all {@link GeoPoint}s.
@@ -87,9 +110,35 @@ public class DrawableOverlayItem extends OverlayItem {
 	 * @return The list
 	 */
 	public List<GeoPoint> getGeoPoints() {
+		if (geopoints == null) {
+			final int[] e6 = getPointsE6();
+			geopoints = new ArrayList<GeoPoint>(e6.length / 2);
+			for (int i = 0; i < e6.length; i += 2) {
+				geopoints.add(new GeoPoint(e6[i], e6[i + 1]));
+			}
+		}
 		return geopoints;
 	}
 
+	/**
+	 * Returns the latitude and longitude of all points in micro-degrees.
+	 * 
+	 * @return The values of each point one after the other
+	 */
+	public int[] getPointsE6() {
+		if (pointsE6 == null) {
+			final List<GeoPoint> geo = (geopoints != null) ? geopoints
+					: new ArrayList<GeoPoint>();
+			pointsE6 = new int[2 * geo.size()];
+			int i = 0;
+			for (GeoPoint p : geo) {
+				pointsE6[i++] = p.getLatitudeE6();
+				pointsE6[i++] = p.getLongitudeE6();
+			}
+		}
+		return pointsE6;
+	}
+
 	/**
 	 * Returns the points.
 	 * 
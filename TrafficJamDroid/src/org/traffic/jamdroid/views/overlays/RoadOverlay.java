@@ -47,7 +47,7 @@ import android.widget.Toast;
  * single-tap and long-press-events.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 128 $
+ * @version $LastChangedRevision: 258 $
  * @param <Item>
  *            A subclass of {@link DrawableOverlayItem}
  */
@@ -82,8 +82,41 @@ public class RoadOverlay<Item extends DrawableOverlayItem> extends Overlay {
 	 *            The position for this item
 	 */
 	public void updateItem(final Item item, final int position) {
-		itemList.remove(position);
-		itemList.add(position, item);
+		synchronized (itemList) {
+			itemList.remove(position);
+			itemList.add(position, item);
+		}
+	}
+
+	/**
+	 * Replaces an item at its position.
+	 * 
+	 * @param old
+	 *            The replaced item
+	 * @param item
+	 *            The new item
+	 */
+	public void replaceItem(final Item old, final Item item) {
+		synchronized (itemList) {
+			final int position = itemList.indexOf(old);
+			if (position >= 0) {
+				itemList.set(position, item);
+			} else {
+				itemList.add(item);
+			}
+		}
+	}
+
+	/**
+	 * Removes an item.
+	 * 
+	 * @param item
+	 *            The removed item
+	 */
+	public void removeItem(final Item item) {
+		synchronized (itemList) {
+			itemList.remove(item);
+		}
 	}
 
 	/**
@@ -93,7 +126,9 @@ public class RoadOverlay<Item extends DrawableOverlayItem> extends Overlay {
 	 *            The new item
 	 */
 	public void addItem(final Item item) {
-		itemList.add(item);
+		synchronized (itemList) {
+			itemList.add(item);
+		}
 	}
 
 	/**
@@ -122,12 +157,14 @@ public class RoadOverlay<Item extends DrawableOverlayItem> extends Overlay {
 			return;
 		}
 
-		final int size = this.itemList.size() - 1;
+		synchronized (itemList) {
+			final int size = this.itemList.size() - 1;
 
-		// drawing all items in the list
-		for (int i = size; i >= 0; i--) {
-			final Item item = itemList.get(i);
-			item.draw(canvas, mapView, shadow);
+			// drawing all items in the list
+			for (int i = size; i >= 0; i--) {
+				final Item item = itemList.get(i);
+				item.draw(canvas, mapView, shadow);
+			}
 		}
 	}
 
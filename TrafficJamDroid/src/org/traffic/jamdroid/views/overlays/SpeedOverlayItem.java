@@ -89,6 +89,30 @@ public class SpeedOverlayItem extends DrawableOverlayItem {
 		}
 	}
 
+	/**
+	 * Custom-Constructor with the points in micro-degrees, as cached by the
+	 * {@link org.traffic.jamdroid.db.DBWrapper}.
+	 * 
+	 * @param ctx
+	 *            The {@link Context} the view is running in
+	 * @param pointsE6
+	 *            The latitude and longitude of each turning-point
+	 * @param speed
+	 *            The current speed
+	 * @param maxSpeed
+	 *            The speed limit
+	 * @param quality
+	 *            The quality of the data
+	 */
+	public SpeedOverlayItem(final Context ctx, final int[] pointsE6,
+			final double speed, final double maxSpeed, final double quality) {
+		super(calculateColor(speed, maxSpeed), pointsE6);
+		this.getPaint().setStrokeWidth(10.0f);
+		this.maxSpeed = maxSpeed;
+		this.speed = speed;
+		this.quality = (int) quality;
+	}
+
 	/**
 	 * Returns the current speed.
 	 * 
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Starts the benchmarks of the server. An optional argument restricts the
+ * run to the benchmarks matching the given regular expression, e.g.
+ * <code>Direction</code>.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 260 $
+ */
+public class Benchmarks {
+
+	/**
+	 * Runs the benchmarks.
+	 * 
+	 * @param args
+	 *            The optional filter
+	 * @throws RunnerException
+	 *             A benchmark failed
+	 */
+	public static void main(String[] args) throws RunnerException {
+		String include = (args.length > 0) ? args[0] : Benchmarks.class
+				.getPackage().getName() + ".*Benchmark";
+		Options opt = new OptionsBuilder().include(include).build();
+		new Runner(opt).run();
+	}
+}
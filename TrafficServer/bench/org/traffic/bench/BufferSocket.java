@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * An unconnected {@link Socket} for the benchmarks. Every call of
+ * {@link #getInputStream()} delivers the given bytes from the start, all
+ * written bytes are counted and dropped.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 260 $
+ */
+public class BufferSocket extends Socket {
+
+	/** The data to read */
+	private final byte[] input;
+
+	/** Number of written bytes */
+	private long written = 0;
+
+	/**
+	 * Custom-Constructor with the data to read.
+	 * 
+	 * @param input
+	 *            The data to read
+	 */
+	public BufferSocket(byte[] input) {
+		this.input = input;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(input);
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				written++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				written += len;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of written bytes.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getWritten() {
+		return written;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.bench;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.traffic.database.ClientCache;
+import org.traffic.models.traffic.Client;
+import org.traffic.server.data.Request;
+import org.traffic.server.data.Response;
+import org.traffic.utils.SocketCommunicator;
+
+/**
+ * Measures the round trip of an update through the {@link SocketCommunicator}
+ * : reading and parsing a gzip-compressed request and writing a response as
+ * gzip-compressed JSON. The client of the requests is put into the
+ * {@link ClientCache}, so no database is needed.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 260 $
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CommunicationBenchmark {
+
+	/** The trace used for the requests */
+	@Param({ "data.txt", "route.txt" })
+	public String trace;
+
+	/** Number of roads in the response */
+	@Param({ "1", "16" })
+	public int roads;
+
+	/** The compressed requests of all fixes */
+	private byte[][] requests;
+
+	/** The response sent for every request */
+	private Response response;
+
+	/** The socket the response is written to */
+	private BufferSocket out;
+
+	/** Index of the next request */
+	private int next = 0;
+
+	/**
+	 * Reads the trace and creates the requests and the response.
+	 * 
+	 * @throws Exception
+	 *             The trace could not be read
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Traces t = new Traces(trace);
+		requests = new byte[t.size()][];
+		for (int i = 0; i < t.size(); i++) {
+			requests[i] = Traces.gzip(t.updateRequest(i));
+		}
+		response = ResponseBenchmark.build(t, 0, roads);
+		out = new BufferSocket(new byte[0]);
+		ClientCache.getInstance().put(
+				new Client(Traces.HASH, new Date(System.currentTimeMillis()
+						+ TimeUnit.DAYS.toMillis(1))));
+	}
+
+	/**
+	 * Reads and parses the next request.
+	 * 
+	 * @return The parsed request
+	 * @throws Exception
+	 *             The request is invalid
+	 */
+	@Benchmark
+	public Request read() throws Exception {
+		Request r = SocketCommunicator.read(new BufferSocket(requests[next]));
+		next = (next + 1) % requests.length;
+		return r;
+	}
+
+	/**
+	 * Serializes and compresses the response.
+	 * 
+	 * @return The number of written bytes
+	 */
+	@Benchmark
+	public long writeOutput() {
+		SocketCommunicator.writeOutput(out, response.getData());
+		return out.getWritten();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.bench;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.traffic.database.LastFixCache;
+import org.traffic.models.traffic.UserData;
+import org.traffic.services.SetDirectionService;
+import org.traffic.utils.GeomHelper;
+
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Measures the calculation of the driving direction of an update: the
+ * previous fix is taken from the {@link LastFixCache} and compared with the
+ * current one by {@link SetDirectionService#setDirection}. The roads are
+ * built from the trace itself, every <code>strip</code> fixes form one road.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 260 $
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DirectionBenchmark {
+
+	/** The trace used for the fixes */
+	@Param({ "data.txt", "route.txt" })
+	public String trace;
+
+	/** Number of fixes per road */
+	@Param({ "15" })
+	public int strip;
+
+	/** The recorded fixes */
+	private Traces traces;
+
+	/** The points of all fixes */
+	private Point[] points;
+
+	/** The roads built from the trace */
+	private LineString[] ways;
+
+	/** The lease of the client */
+	private Date lease;
+
+	/** Index of the next fix */
+	private int next = 0;
+
+	/** Offset of the time, increased with every pass of the trace */
+	private long offset = 0;
+
+	/**
+	 * Reads the trace and creates the roads.
+	 * 
+	 * @throws Exception
+	 *             The trace could not be read
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		traces = new Traces(trace);
+		points = new Point[traces.size()];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = GeomHelper.createPoint(traces.getLon(i),
+					traces.getLat(i));
+		}
+		ways = new LineString[Math.max(1, (points.length - 1) / strip)];
+		for (int i = 0; i < ways.length; i++) {
+			int start = i * strip;
+			int end = (i == ways.length - 1) ? points.length : start + strip
+					+ 1;
+			Point[] way = new Point[end - start];
+			System.arraycopy(points, start, way, 0, way.length);
+			ways[i] = GeomHelper.createLineString(way);
+		}
+		lease = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+		LastFixCache.getInstance().remove(Traces.HASH);
+	}
+
+	/**
+	 * Calculates the direction of the next fix.
+	 * 
+	 * @return <code>true</code>, if the fix drives to the start of its road
+	 */
+	@Benchmark
+	public boolean direction() {
+		int i = next;
+		int road = Math.min(i / strip, ways.length - 1);
+		UserData d = new UserData(new Date(traces.getTime(i) + offset),
+				points[i], traces.getSpeed(i), Traces.HASH);
+		d.setRoad_id(road);
+		UserData prev = LastFixCache.getInstance().previous(Traces.HASH,
+				d.getTime());
+		SetDirectionService.setDirection(d, prev, ways[road]);
+		LastFixCache.getInstance().update(d, lease);
+
+		next++;
+		if (next == traces.size()) {
+			next = 0;
+			offset += traces.getDuration();
+		}
+		return (prev != null) && d.getTo_start();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.traffic.utils.GeomHelper;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Measures the creation of geometries by the {@link GeomHelper} with the
+ * positions of a recorded trace. The <code>...Wkt</code>- and
+ * <code>...PerCall</code>-benchmarks repeat the former construction with a new
+ * factory per geometry and a WKT round trip as a baseline; run with
+ * <code>-prof gc</code> to compare the allocations.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 261 $
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GeomHelperBenchmark {
+
+	/** The trace used for the positions */
+	@Param({ "data.txt", "route.txt" })
+	public String trace;
+
+	/** Number of points of the created linestrings */
+	@Param({ "2", "16" })
+	public int length;
+
+	/** The recorded fixes */
+	private Traces traces;
+
+	/** The points of all fixes */
+	private Point[] points;
+
+	/** The coordinates of all fixes as <code>lng, lat, ...</code> */
+	private double[] coords;
+
+	/** Index of the next fix */
+	private int next = 0;
+
+	/**
+	 * Reads the trace and creates the points.
+	 * 
+	 * @throws Exception
+	 *             The trace could not be read
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		traces = new Traces(trace);
+		points = new Point[traces.size()];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = GeomHelper.createPoint(traces.getLon(i),
+					traces.getLat(i));
+		}
+		coords = new double[points.length * 2];
+		for (int i = 0; i < points.length; i++) {
+			coords[2 * i] = traces.getLon(i);
+			coords[2 * i + 1] = traces.getLat(i);
+		}
+	}
+
+	/**
+	 * Returns the index of the next fix.
+	 * 
+	 * @return The index
+	 */
+	private int next() {
+		int i = next;
+		next = (next + 1) % traces.size();
+		return i;
+	}
+
+	/**
+	 * Creates the point of the next fix.
+	 * 
+	 * @return The point
+	 */
+	@Benchmark
+	public Point createPoint() {
+		int i = next();
+		return GeomHelper.createPoint(traces.getLon(i), traces.getLat(i));
+	}
+
+	/**
+	 * Creates the 2km-rectangle around the next fix used for the neighbours
+	 * of an update.
+	 * 
+	 * @return The rectangle
+	 */
+	@Benchmark
+	public Polygon createRectangle() {
+		return GeomHelper.createRectangle(points[next()], 2000);
+	}
+
+	/**
+	 * Creates a linestring from the fixes following the next one.
+	 * 
+	 * @return The linestring
+	 */
+	@Benchmark
+	public LineString createLineString() {
+		int start = Math.min(next(), points.length - length);
+		Point[] way = new Point[length];
+		System.arraycopy(points, start, way, 0, length);
+		return GeomHelper.createLineString(way);
+	}
+
+	/**
+	 * Creates a linestring from the packed coordinates of the fixes following
+	 * the next one.
+	 * 
+	 * @return The linestring
+	 */
+	@Benchmark
+	public LineString createLineStringPacked() {
+		int start = Math.min(next(), points.length - length);
+		double[] way = new double[length * 2];
+		System.arraycopy(coords, start * 2, way, 0, way.length);
+		return GeomHelper.createLineString(way);
+	}
+
+	/**
+	 * Creates the point of the next fix with a new factory.
+	 * 
+	 * @return The point
+	 */
+	@Benchmark
+	public Point createPointPerCall() {
+		int i = next();
+		GeometryFactory factory = new GeometryFactory(new PrecisionModel(
+				PrecisionModel.FLOATING), 4326);
+		return factory.createPoint(new Coordinate(traces.getLon(i), traces
+				.getLat(i)));
+	}
+
+	/**
+	 * Creates a linestring from the fixes following the next one by parsing
+	 * its WKT.
+	 * 
+	 * @return The linestring
+	 * @throws ParseException
+	 *             The WKT is invalid
+	 */
+	@Benchmark
+	public LineString createLineStringWkt() throws ParseException {
+		int start = Math.min(next(), points.length - length);
+		GeometryFactory factory = new GeometryFactory(new PrecisionModel(
+				PrecisionModel.FLOATING), 4326);
+		StringBuffer sb = new StringBuffer("LINESTRING (");
+		for (int i = start; i < start + length; i++) {
+			sb.append(points[i].getX());
+			sb.append(" ");
+			sb.append(points[i].getY());
+			sb.append(", ");
+		}
+		sb.delete(sb.length() - 2, sb.length());
+		sb.append(")");
+		return (LineString) new WKTReader(factory).read(sb.toString());
+	}
+}
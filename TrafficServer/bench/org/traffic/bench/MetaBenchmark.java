@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.bench;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.traffic.database.ClientCache;
+import org.traffic.models.traffic.Client;
+import org.traffic.server.data.Meta;
+import org.traffic.server.data.Request;
+import org.traffic.utils.SocketCommunicator;
+
+/**
+ * Measures parsing the <code>meta</code>-data of an update and of the whole
+ * uncompressed request. The client is resolved by the {@link ClientCache}.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 260 $
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetaBenchmark {
+
+	/** The trace used for the requests */
+	@Param({ "data.txt", "route.txt" })
+	public String trace;
+
+	/** The requests of all fixes */
+	private String[] requests;
+
+	/** The meta-nodes of all requests */
+	private JSONObject[] metas;
+
+	/** Index of the next request */
+	private int next = 0;
+
+	/**
+	 * Reads the trace and creates the requests.
+	 * 
+	 * @throws Exception
+	 *             The trace could not be read
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Traces t = new Traces(trace);
+		requests = new String[t.size()];
+		metas = new JSONObject[t.size()];
+		for (int i = 0; i < t.size(); i++) {
+			requests[i] = t.updateRequest(i);
+			metas[i] = JSONObject.fromObject(requests[i])
+					.getJSONObject("meta");
+		}
+		ClientCache.getInstance().put(
+				new Client(Traces.HASH, new Date(System.currentTimeMillis()
+						+ TimeUnit.DAYS.toMillis(1))));
+	}
+
+	/**
+	 * Returns the index of the next request.
+	 * 
+	 * @return The index
+	 */
+	private int next() {
+		int i = next;
+		next = (next + 1) % requests.length;
+		return i;
+	}
+
+	/**
+	 * Creates the meta-data of the next request.
+	 * 
+	 * @return The meta-data
+	 */
+	@Benchmark
+	public Meta meta() {
+		return new Meta(metas[next()]);
+	}
+
+	/**
+	 * Parses the next request.
+	 * 
+	 * @return The request
+	 * @throws Exception
+	 *             The request is invalid
+	 */
+	@Benchmark
+	public Request parseInput() throws Exception {
+		return SocketCommunicator.parseInput(requests[next()]);
+	}
+}
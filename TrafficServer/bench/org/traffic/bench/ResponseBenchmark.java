@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.traffic.server.data.Response;
+
+/**
+ * Measures building the tree of a {@link Response} with
+ * {@link Response#append(Object, String...)} and
+ * {@link Response#set(Object, String...)} the way the update-handler does.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 260 $
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResponseBenchmark {
+
+	/** Roads per congestion in the generated responses */
+	private static final int ROADS_PER_CONGESTION = 4;
+
+	/** The trace used for the values */
+	@Param({ "data.txt", "route.txt" })
+	public String trace;
+
+	/** Number of roads in the response */
+	@Param({ "1", "16", "64" })
+	public int roads;
+
+	/** The recorded fixes */
+	private Traces traces;
+
+	/** Index of the next fix */
+	private int next = 0;
+
+	/**
+	 * Reads the trace.
+	 * 
+	 * @throws Exception
+	 *             The trace could not be read
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		traces = new Traces(trace);
+	}
+
+	/**
+	 * Builds the response for the next fix.
+	 * 
+	 * @return The content of the response
+	 */
+	@Benchmark
+	public Object build() {
+		Response res = build(traces, next, roads);
+		next = (next + 1) % traces.size();
+		return res.getData();
+	}
+
+	/**
+	 * Builds an update-response with the given number of roads around a fix.
+	 * 
+	 * @param t
+	 *            The trace
+	 * @param fix
+	 *            The index of the fix
+	 * @param roads
+	 *            The number of roads
+	 * @return The response
+	 */
+	static Response build(Traces t, int fix, int roads) {
+		Response res = new Response();
+		for (int i = 0; i < roads; i++) {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("id", fix + i);
+			map.put("maxspeed", 50);
+			map.put("speed", (int) Math.round(t.getSpeed(fix) * 3.6));
+			map.put("quality", i % 4);
+			res.append(map, "traffic");
+		}
+		for (int i = 0; i < roads; i += ROADS_PER_CONGESTION) {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("lon", t.getLon(fix));
+			map.put("lat", t.getLat(fix));
+			map.put("type", i % 3);
+			map.put("time", t.getTime(fix));
+			map.put("id", fix + i);
+			res.append(map, "congestions");
+		}
+		res.set((long) fix, "version");
+		res.set(false, "delta");
+		return res;
+	}
+}
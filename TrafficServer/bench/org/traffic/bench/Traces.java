@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.json.JSONObject;
+
+import org.traffic.utils.IConstants;
+
+/**
+ * Fixtures for the benchmarks, read from the recorded GPS-traces of the
+ * client (<code>data.txt</code> and <code>route.txt</code> in the assets of
+ * TrafficJamDroid). Each line of a trace has the format
+ * <code>time;lon;lat;</code>.
+ * <p>
+ * The directory of the traces is taken from the system-property
+ * <code>traffic.traces</code> and defaults to
+ * <code>../TrafficJamDroid/assets</code>.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 260 $
+ */
+public class Traces {
+
+	/** The session-ID used in the generated requests */
+	public static final String HASH = "0123456789abcdef0123456789abcdef";
+
+	/** Meters per degree latitude */
+	private static final double METERS_PER_DEGREE = 111320.0;
+
+	/** The times of the fixes */
+	private final long[] times;
+
+	/** The longitudes of the fixes */
+	private final double[] lons;
+
+	/** The latitudes of the fixes */
+	private final double[] lats;
+
+	/**
+	 * Custom-Constructor, which reads the given trace.
+	 * 
+	 * @param name
+	 *            The name of the file, e.g. <code>data.txt</code>
+	 * @throws IOException
+	 *             The trace could not be read
+	 */
+	public Traces(String name) throws IOException {
+		File dir = new File(System.getProperty("traffic.traces",
+				"../TrafficJamDroid/assets"));
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(dir, name)), "UTF-8"));
+		List<String[]> lines = new ArrayList<String[]>();
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.trim().split(";");
+				if (fields.length >= 3) {
+					lines.add(fields);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (lines.isEmpty()) {
+			throw new IOException("empty trace: " + name);
+		}
+		times = new long[lines.size()];
+		lons = new double[lines.size()];
+		lats = new double[lines.size()];
+		for (int i = 0; i < lines.size(); i++) {
+			String[] fields = lines.get(i);
+			times[i] = Long.parseLong(fields[0]);
+			lons[i] = Double.parseDouble(fields[1]);
+			lats[i] = Double.parseDouble(fields[2]);
+		}
+	}
+
+	/**
+	 * Returns the number of fixes.
+	 * 
+	 * @return The number of fixes
+	 */
+	public int size() {
+		return times.length;
+	}
+
+	/**
+	 * Returns the time of a fix.
+	 * 
+	 * @param i
+	 *            The index of the fix
+	 * @return The time in millis
+	 */
+	public long getTime(int i) {
+		return times[i];
+	}
+
+	/**
+	 * Returns the longitude of a fix.
+	 * 
+	 * @param i
+	 *            The index of the fix
+	 * @return The longitude
+	 */
+	public double getLon(int i) {
+		return lons[i];
+	}
+
+	/**
+	 * Returns the latitude of a fix.
+	 * 
+	 * @param i
+	 *            The index of the fix
+	 * @return The latitude
+	 */
+	public double getLat(int i) {
+		return lats[i];
+	}
+
+	/**
+	 * Returns the duration of the trace.
+	 * 
+	 * @return The duration in millis
+	 */
+	public long getDuration() {
+		return times[times.length - 1] - times[0] + 1000;
+	}
+
+	/**
+	 * Returns the speed at a fix, estimated from the previous fix like the
+	 * location-provider of the client does.
+	 * 
+	 * @param i
+	 *            The index of the fix
+	 * @return The speed in m/s
+	 */
+	public double getSpeed(int i) {
+		if (i == 0 || times[i] <= times[i - 1]) {
+			return 0;
+		}
+		double dy = (lats[i] - lats[i - 1]) * METERS_PER_DEGREE;
+		double dx = (lons[i] - lons[i - 1]) * METERS_PER_DEGREE
+				* Math.cos(Math.toRadians(lats[i]));
+		return Math.sqrt(dx * dx + dy * dy) * 1000.0 / (times[i] - times[i - 1]);
+	}
+
+	/**
+	 * Creates the update-request the client sends for a fix.
+	 * 
+	 * @param i
+	 *            The index of the fix
+	 * @return The request as JSON-text
+	 */
+	public String updateRequest(int i) {
+		JSONObject meta = new JSONObject();
+		meta.put("type", IConstants.REQUEST_UPDATE);
+		meta.put("id", HASH);
+		JSONObject data = new JSONObject();
+		data.put("lat", lats[i]);
+		data.put("lon", lons[i]);
+		data.put("time", times[i]);
+		data.put("speed", getSpeed(i));
+		data.put("bbox", "2");
+		data.put("save", true);
+		data.put("version", 0);
+		JSONObject request = new JSONObject();
+		request.put("meta", meta);
+		request.put("data", data);
+		return request.toString();
+	}
+
+	/**
+	 * Compresses a text like the client does before sending it.
+	 * 
+	 * @param text
+	 *            The text
+	 * @return The gzip-compressed text
+	 * @throws IOException
+	 *             Error while compressing
+	 */
+	public static byte[] gzip(String text) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+		return bytes.toByteArray();
+	}
+}
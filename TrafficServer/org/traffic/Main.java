@@ -18,13 +18,18 @@
  */
 package org.traffic;
 
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.File;
 import java.util.Date;
 
 import org.traffic.database.Database;
+import org.traffic.database.RoadStripIndex;
+import org.traffic.database.SpeedAggregator;
+import org.traffic.database.UserDataPartitions;
+import org.traffic.database.UserDataWriter;
 import org.traffic.logging.Log;
+import org.traffic.metrics.Metrics;
+import org.traffic.metrics.StatsServer;
+import org.traffic.server.ConnectionSelector;
 import org.traffic.server.Controller;
 import org.traffic.server.handler.AcknowledgeHandler;
 import org.traffic.server.handler.CalculateRouteHandler;
@@ -39,6 +44,9 @@ import org.traffic.server.handler.UpdateHandler;
 import org.traffic.services.CleanUpDBService;
 import org.traffic.services.PriceUserDataService;
 import org.traffic.services.RefreshRoutesService;
+import org.traffic.services.RequestStatisticsService;
+import org.traffic.services.RoadStripIndexService;
+import org.traffic.services.SpeedSnapshotService;
 import org.traffic.services.SetDirectionService;
 import org.traffic.services.UpdateSpeedService;
 import org.traffic.utils.IConstants;
@@ -47,8 +55,9 @@ import org.traffic.utils.IConstants;
  * Class to initialize the server and accept the requests of the clients.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 234 $
+ * @version $LastChangedRevision: 264 $
  * @see org.traffic.server.Controller
+ * @see org.traffic.server.ConnectionSelector
  */
 public class Main {
 
@@ -56,10 +65,14 @@ public class Main {
 
 		Log.i("Main",
 				"starting server at " + new Date(System.currentTimeMillis()));
-		ServerSocket server = null;
+		ConnectionSelector server = null;
 		try {
 			Database.initialize();
-			server = new ServerSocket(10101);
+			RoadStripIndex.getInstance().reload();
+			SpeedAggregator.getInstance().restore();
+			UserDataPartitions.initialize();
+			UserDataWriter.initialize(new File("journal"));
+			server = new ConnectionSelector(10101);
 		} catch (Exception e) {
 			Log.e("Main", e.getClass() + "@main: " + e.getMessage());
 			System.exit(1);
@@ -90,18 +103,20 @@ public class Main {
 		new RefreshRoutesService(120000).start();
 		new PriceUserDataService(300000).start();
 		new UpdateSpeedService(86400000).start();
+		new RequestStatisticsService(300000).start();
+		new RoadStripIndexService(3600000).start();
+		new SpeedSnapshotService(600000).start();
 
-		// always accepting
-		for (;;) {
-			Socket s;
-			try {
-				// wait for clients to establish a connection
-				s = server.accept();
-				Controller serv = new Controller(s);
-				serv.start();
-			} catch (IOException e) {
-				Log.e("Main", e.getClass() + "@main: " + e.getMessage());
-			}
+		// publishing the metrics
+		try {
+			Metrics.getInstance().registerMBean();
+			new StatsServer(10102).start();
+		} catch (Exception e) {
+			Log.e("Main", e.getClass() + "@main: " + e.getMessage());
 		}
+
+		// accepting the clients
+		Log.i("Main", "accepting connections");
+		server.start();
 	}
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.util.Date;
+
+import org.hibernate.Session;
+import org.traffic.models.traffic.Client;
+import org.traffic.models.traffic.Route;
+
+/**
+ * Immutable state of a {@link Client} kept by the {@link ClientCache}. The
+ * handlers of all threads share these objects, so they only carry the values
+ * needed to answer a request. A handler changing the client or its route
+ * loads the entity by {@link #load(Session)} in its own session and
+ * invalidates the cached state afterwards.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 265 $
+ */
+public final class CachedClient {
+
+	/** The id of the client */
+	private final int id;
+
+	/** The session-ID */
+	private final String hash;
+
+	/** End of the lease in millis */
+	private final long lease;
+
+	/** The id of the route or <code>-1</code> without a route */
+	private final int routeId;
+
+	/** Flag, if the route has changed since the client fetched it */
+	private final boolean routeUpdated;
+
+	/**
+	 * Custom-Constructor copying the state of a client. The route of the
+	 * client must be accessible.
+	 * 
+	 * @param c
+	 *            The client
+	 */
+	public CachedClient(Client c) {
+		this.id = c.getId();
+		this.hash = c.getHash();
+		this.lease = c.getLease().getTime();
+		Route r = c.getRoute();
+		this.routeId = (r != null) ? r.getId() : -1;
+		this.routeUpdated = (r != null) && r.isUpdated();
+	}
+
+	/**
+	 * Loads the client in the given session.
+	 * 
+	 * @param s
+	 *            The session with an active transaction
+	 * @return The persistent client or <code>null</code>, if it was deleted
+	 */
+	public Client load(Session s) {
+		return (Client) s.get(Client.class, id);
+	}
+
+	/**
+	 * Returns the id of the client.
+	 * 
+	 * @return The id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the session-ID.
+	 * 
+	 * @return The session-ID
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * Returns the end of the lease.
+	 * 
+	 * @return The end of the lease
+	 */
+	public Date getLease() {
+		return new Date(lease);
+	}
+
+	/**
+	 * Returns the end of the lease in millis.
+	 * 
+	 * @return The time in millis
+	 */
+	public long getLeaseTime() {
+		return lease;
+	}
+
+	/**
+	 * Checks, if the client has an active route.
+	 * 
+	 * @return <code>true</code>, if a route is stored
+	 */
+	public boolean hasRoute() {
+		return routeId >= 0;
+	}
+
+	/**
+	 * Returns the id of the route.
+	 * 
+	 * @return The id or <code>-1</code> without a route
+	 */
+	public int getRouteId() {
+		return routeId;
+	}
+
+	/**
+	 * Checks, if the route has changed since the client fetched it.
+	 * 
+	 * @return <code>true</code>, if the route was updated
+	 */
+	public boolean isRouteUpdated() {
+		return routeUpdated;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.hibernate.criterion.Restrictions;
+import org.traffic.models.traffic.Client;
+
+/**
+ * Keeps the registered {@link Client}s by their session-ID, so the
+ * <code>meta</code>-data of a request is resolved without a query. The
+ * cache holds an immutable {@link CachedClient} with the id of the
+ * {@link org.traffic.models.traffic.Route} of a client instead of the
+ * entity, so the handler threads never share a mutable object.
+ * <p>
+ * Every committed change of a client or its route must be followed by
+ * {@link #invalidate(String)}, so the next request loads the current state.
+ * Entries with an expired lease are never returned.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 265 $
+ */
+public class ClientCache {
+
+	/** Maximal number of cached clients */
+	private static final int MAX_CLIENTS = 100000;
+
+	/** The one and only instance */
+	private static ClientCache instance = new ClientCache();
+
+	/** The cached clients by session-ID */
+	private final ConcurrentHashMap<String, CachedClient> clients = new ConcurrentHashMap<String, CachedClient>();
+
+	/** Number of lookups answered by the cache */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of lookups answered by the database */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Default-Constructor
+	 */
+	private ClientCache() {
+	}
+
+	/**
+	 * Returns the client with the given session-ID. It is loaded from the
+	 * database, if it is not cached.
+	 * 
+	 * @param hash
+	 *            The session-ID
+	 * @return The client or <code>null</code>, if the ID is unknown
+	 */
+	public CachedClient get(String hash) {
+		CachedClient c = clients.get(hash);
+		if (c != null) {
+			if (c.getLeaseTime() >= System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return c;
+			}
+			clients.remove(hash, c);
+		}
+		misses.incrementAndGet();
+
+		Session s = Database.session();
+		s.beginTransaction();
+		try {
+			Client loaded = (Client) s.createCriteria(Client.class)
+					.add(Restrictions.eq("hash", hash)).setMaxResults(1)
+					.uniqueResult();
+			// the route is read while the session is open
+			c = (loaded != null) ? new CachedClient(loaded) : null;
+		} finally {
+			Database.end(false);
+		}
+		if (c != null) {
+			put(c);
+		}
+		return c;
+	}
+
+	/**
+	 * Adds a client after it was saved. The route of the client must be
+	 * accessible.
+	 * 
+	 * @param c
+	 *            The client
+	 */
+	public void put(Client c) {
+		put(new CachedClient(c));
+	}
+
+	/**
+	 * Adds the state of a client.
+	 * 
+	 * @param c
+	 *            The state of the client
+	 */
+	private void put(CachedClient c) {
+		if (clients.size() >= MAX_CLIENTS) {
+			expire();
+			if (clients.size() >= MAX_CLIENTS) {
+				return;
+			}
+		}
+		clients.put(c.getHash(), c);
+	}
+
+	/**
+	 * Removes a client, because it or its route has changed.
+	 * 
+	 * @param hash
+	 *            The session-ID
+	 */
+	public void invalidate(String hash) {
+		if (hash != null) {
+			clients.remove(hash);
+		}
+	}
+
+	/**
+	 * Removes all clients with an expired lease.
+	 * 
+	 * @return The number of removed clients
+	 */
+	public int expire() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		Iterator<CachedClient> it = clients.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().getLeaseTime() < now) {
+				it.remove();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of cached clients.
+	 * 
+	 * @return The number of clients
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+	/**
+	 * Returns the number of lookups answered by the cache.
+	 * 
+	 * @return The number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups answered by the database.
+	 * 
+	 * @return The number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static ClientCache getInstance() {
+		return instance;
+	}
+
+	@Override
+	public String toString() {
+		return "clients: " + clients.size() + ", hits: " + hits.get()
+				+ ", misses: " + misses.get();
+	}
+}
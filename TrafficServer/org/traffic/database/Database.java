@@ -29,9 +29,12 @@ import org.hibernate.tool.hbm2ddl.SchemaExport;
  * This class provides a bunch of methods to interact with the database. It sets
  * up the connection with a given configuration and allows the administration of
  * {@link Session} and {@link org.hibernate.Transaction}.
+ * <p>
+ * The time from {@link #session()} to the end of the transaction is summed
+ * up for each thread, see {@link #takeTransactionTime()}.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 264 $
  * @see SessionFactory
  * @see Session
  * @see org.hibernate.Transaction
@@ -45,6 +48,17 @@ public class Database {
 	/** The active configuration */
 	private static Configuration hibernate_config;
 
+	/**
+	 * The start of the open transaction and the summed time of the
+	 * transactions of each thread in millis
+	 */
+	private static final ThreadLocal<long[]> transactionTime = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
 	/**
 	 * Initializes the database-connection, loads the configuration-files and
 	 * creates the session-factory.
@@ -91,6 +105,7 @@ public class Database {
 	protected static SessionFactory buildSessionFactory(File config_file) {
 		try {
 			hibernate_config = new Configuration().configure(config_file);
+			UserDataPartitions.exclude(hibernate_config);
 			return hibernate_config.buildSessionFactory();
 		} catch (Throwable ex) {
 			System.err.println("Initial SessionFactory creation failed. " + ex);
@@ -116,9 +131,37 @@ public class Database {
 	 * @return The {@link Session}
 	 */
 	public static Session session() {
+		long[] time = transactionTime.get();
+		if (time[0] == 0) {
+			time[0] = System.currentTimeMillis();
+		}
 		return getSessionFactory().getCurrentSession();
 	}
 
+	/**
+	 * Adds the time of the finished transaction of the current thread.
+	 */
+	private static void stopTransactionTime() {
+		long[] time = transactionTime.get();
+		if (time[0] != 0) {
+			time[1] += System.currentTimeMillis() - time[0];
+			time[0] = 0;
+		}
+	}
+
+	/**
+	 * Returns the time the current thread spent in transactions since the
+	 * last call and resets it.
+	 * 
+	 * @return The time in millis
+	 */
+	public static long takeTransactionTime() {
+		long[] time = transactionTime.get();
+		long sum = time[1];
+		time[1] = 0;
+		return sum;
+	}
+
 	/**
 	 * Starts a new {@link org.hibernate.Transaction} within the current
 	 * {@link Session}.
@@ -134,10 +177,14 @@ public class Database {
 	 *            Flag to perform a commit or a rollback
 	 */
 	public static void end(boolean commit) {
-		if (commit)
-			commit();
-		else
-			rollback();
+		try {
+			if (commit)
+				commit();
+			else
+				rollback();
+		} finally {
+			stopTransactionTime();
+		}
 	}
 
 	/**
@@ -155,6 +202,24 @@ public class Database {
 		getSessionFactory().getCurrentSession().getTransaction().commit();
 	}
 
+	/**
+	 * Rolls back a {@link org.hibernate.Transaction} left open in the
+	 * {@link Session} of the current thread. Needed for pooled threads, which
+	 * would otherwise carry the transaction over to their next task.
+	 */
+	public static void release() {
+		try {
+			Session s = getSessionFactory().getCurrentSession();
+			if (s.getTransaction().isActive()) {
+				s.getTransaction().rollback();
+			}
+		} catch (Exception e) {
+			System.err.println("Releasing the session failed. " + e);
+		} finally {
+			stopTransactionTime();
+		}
+	}
+
 	/**
 	 * Opens a new {@link Session}.
 	 * 
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.traffic.models.traffic.UserData;
+
+/**
+ * Keeps the last {@link UserData} with a known road of each client. The
+ * driving direction of a new message is calculated by comparing it with the
+ * previous one, so the update-path needs no query on the history of the
+ * client.
+ * <p>
+ * An entry lives as long as the lease of the session-ID. The cache is bounded
+ * by <code>MAX_CLIENTS</code>, the least recently used client is dropped
+ * first.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 244 $
+ */
+public class LastFixCache {
+
+	/** Maximal number of cached clients */
+	private static final int MAX_CLIENTS = 100000;
+
+	/** The one and only instance */
+	private static LastFixCache instance = new LastFixCache();
+
+	/** The cached messages by session-ID, guarded by itself */
+	private final Map<String, Entry> fixes = new LinkedHashMap<String, Entry>(
+			1024, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_CLIENTS;
+		}
+	};
+
+	/**
+	 * Default-Constructor
+	 */
+	private LastFixCache() {
+	}
+
+	/**
+	 * Returns the last message of the client before the given time.
+	 * 
+	 * @param hash
+	 *            The session-ID
+	 * @param time
+	 *            The time of the current message
+	 * @return The message or <code>null</code>, if none is known
+	 */
+	public UserData previous(String hash, Date time) {
+		synchronized (fixes) {
+			Entry e = fixes.get(hash);
+			if (e == null) {
+				return null;
+			}
+			if (e.lease < System.currentTimeMillis()) {
+				fixes.remove(hash);
+				return null;
+			}
+			return (e.data.getTime().before(time)) ? e.data : null;
+		}
+	}
+
+	/**
+	 * Stores the message as the last one of the client, if it has a road and
+	 * is newer than the cached one.
+	 * 
+	 * @param d
+	 *            The message
+	 * @param lease
+	 *            The leasetime of the session-ID
+	 */
+	public void update(UserData d, Date lease) {
+		if (d.getRoad_id() == null || lease == null) {
+			return;
+		}
+		synchronized (fixes) {
+			Entry e = fixes.get(d.getConnectionhash());
+			if (e == null || e.data.getTime().before(d.getTime())) {
+				fixes.put(d.getConnectionhash(), new Entry(d, lease.getTime()));
+			}
+		}
+	}
+
+	/**
+	 * Removes the client, e.g. if its session-ID was replaced.
+	 * 
+	 * @param hash
+	 *            The session-ID
+	 */
+	public void remove(String hash) {
+		synchronized (fixes) {
+			fixes.remove(hash);
+		}
+	}
+
+	/**
+	 * Removes all clients with an expired lease.
+	 * 
+	 * @return The number of removed clients
+	 */
+	public int expire() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		synchronized (fixes) {
+			Iterator<Entry> it = fixes.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().lease < now) {
+					it.remove();
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of cached clients.
+	 * 
+	 * @return The number of clients
+	 */
+	public int size() {
+		synchronized (fixes) {
+			return fixes.size();
+		}
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static LastFixCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * A cached message with the lease of its client.
+	 */
+	private static class Entry {
+
+		/** The message */
+		private final UserData data;
+
+		/** The leasetime in millis */
+		private final long lease;
+
+		/**
+		 * Custom-Constructor with the message and the lease.
+		 * 
+		 * @param data
+		 *            The message
+		 * @param lease
+		 *            The leasetime in millis
+		 */
+		private Entry(UserData data, long lease) {
+			this.data = data;
+			this.lease = lease;
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
+import org.hibernatespatial.GeometryUserType;
+import org.traffic.logging.Log;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Keeps the geometries of all {@link org.traffic.models.traffic.RoadStrip}s in
+ * memory and answers the spatial queries of the update-path without a
+ * round-trip to the database. The geometries only change when the
+ * {@link StreetPreparer} runs, so the index is loaded once and reloaded when
+ * the number, the highest id or the checksum of the geometries of the strips
+ * changes. The checksum is the sum of the first 32 bits of the MD5 of each
+ * geometry, so edits keeping the ids are noticed as well.
+ * <p>
+ * A reload builds a new tree and replaces the old one, so the queries never
+ * wait for it. With the tree the adjacency of the strips is computed and
+ * stored in two int-arrays: <code>offsets[id]</code> to
+ * <code>offsets[id + 1]</code> is the range of the neighbours of a strip in
+ * <code>adjacent</code>. Each entry holds the id of the neighbour shifted by
+ * one bit and the flag, whether the neighbour starts at the strip.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 265 $
+ * @see STRtree
+ */
+public class RoadStripIndex {
+
+	/** The number, the highest id and the checksum of the strips */
+	private static final String STATE_SQL = "SELECT Count(*) AS count, "
+			+ "Max(id) AS max, Coalesce(Sum(CAST(CAST(('x' || "
+			+ "substr(md5(ST_AsBinary(way)), 1, 8)) AS bit(32)) AS integer)), 0) "
+			+ "AS checksum FROM data.roadstrips";
+
+	/** The one and only instance */
+	private static RoadStripIndex instance = new RoadStripIndex();
+
+	/** The current content of the index */
+	private volatile Snapshot snapshot = new Snapshot();
+
+	/**
+	 * Default-Constructor
+	 */
+	private RoadStripIndex() {
+		snapshot.tree.build();
+	}
+
+	/**
+	 * Searches the nearest strip within the given distance.
+	 * 
+	 * @param p
+	 *            The position
+	 * @param maxDistance
+	 *            The maximal distance in degree
+	 * @return The id of the strip or <code>-1</code>, if no strip is near
+	 *         enough
+	 */
+	public int nearest(Point p, double maxDistance) {
+		Snapshot current = snapshot;
+		Envelope env = new Envelope(p.getCoordinate());
+		env.expandBy(maxDistance);
+		int best = -1;
+		double bestDistance = Double.MAX_VALUE;
+		for (Object o : current.tree.query(env)) {
+			Integer id = (Integer) o;
+			double distance = current.ways.get(id).distance(p);
+			if (distance <= maxDistance && distance < bestDistance) {
+				best = id;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Searches all strips intersecting the given geometry.
+	 * 
+	 * @param g
+	 *            The geometry
+	 * @return The ids of the strips
+	 */
+	public List<Integer> intersecting(Geometry g) {
+		Snapshot current = snapshot;
+		List<Integer> result = new ArrayList<Integer>();
+		for (Object o : current.tree.query(g.getEnvelopeInternal())) {
+			Integer id = (Integer) o;
+			if (current.ways.get(id).intersects(g)) {
+				result.add(id);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the strips intersecting the given strip. The entries are decoded
+	 * with {@link #neighbourId(int)} and {@link #startsAtStrip(int)}.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @return The encoded neighbours, empty if the id is unknown
+	 */
+	public int[] getNeighbours(int id) {
+		Snapshot current = snapshot;
+		if (id < 0 || id + 1 >= current.offsets.length) {
+			return new int[0];
+		}
+		int from = current.offsets[id];
+		int[] result = new int[current.offsets[id + 1] - from];
+		System.arraycopy(current.adjacent, from, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Returns the id of the neighbour of an entry of
+	 * {@link #getNeighbours(int)}.
+	 * 
+	 * @param entry
+	 *            The entry
+	 * @return The id of the neighbour
+	 */
+	public static int neighbourId(int entry) {
+		return entry >>> 1;
+	}
+
+	/**
+	 * Returns whether the start point of the neighbour of an entry of
+	 * {@link #getNeighbours(int)} lies on the strip.
+	 * 
+	 * @param entry
+	 *            The entry
+	 * @return <code>true</code>, if the neighbour starts at the strip
+	 */
+	public static boolean startsAtStrip(int entry) {
+		return (entry & 1) != 0;
+	}
+
+	/**
+	 * Returns the geometry of a strip.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @return The geometry or <code>null</code>, if the id is unknown
+	 */
+	public LineString getWay(int id) {
+		return snapshot.ways.get(id);
+	}
+
+	/**
+	 * Returns the number of the current load, increased with each reload.
+	 * 
+	 * @return The version
+	 */
+	public int getVersion() {
+		return snapshot.version;
+	}
+
+	/**
+	 * Returns the highest id of the indexed strips.
+	 * 
+	 * @return The id or <code>-1</code>, if the index is empty
+	 */
+	public int getMaxId() {
+		return snapshot.maxId;
+	}
+
+	/**
+	 * Returns the number of indexed strips.
+	 * 
+	 * @return The number of strips
+	 */
+	public int size() {
+		return snapshot.ways.size();
+	}
+
+	/**
+	 * Reloads the index, if the strips in the database have changed since
+	 * the last load.
+	 */
+	public void refresh() {
+		long[] state = readState();
+		Snapshot current = snapshot;
+		if (state[0] != current.ways.size() || state[1] != current.maxId
+				|| state[2] != current.checksum) {
+			reload(state[2]);
+		}
+	}
+
+	/**
+	 * Loads all strips from the database and replaces the current index.
+	 */
+	public void reload() {
+		reload(readState()[2]);
+	}
+
+	/**
+	 * Reads the number, the highest id and the checksum of the strips in the
+	 * database.
+	 * 
+	 * @return The three values
+	 */
+	private static long[] readState() {
+		Session s = Database.session();
+		s.beginTransaction();
+		Object[] o;
+		try {
+			o = (Object[]) s.createSQLQuery(STATE_SQL)
+					.addScalar("count", StandardBasicTypes.LONG)
+					.addScalar("max", StandardBasicTypes.LONG)
+					.addScalar("checksum", StandardBasicTypes.LONG)
+					.uniqueResult();
+		} finally {
+			Database.end(false);
+		}
+		return new long[] { (Long) o[0], (o[1] != null) ? (Long) o[1] : -1,
+				(Long) o[2] };
+	}
+
+	/**
+	 * Loads all strips from the database and replaces the current index.
+	 * 
+	 * @param checksum
+	 *            The checksum of the strips read before
+	 */
+	private void reload(long checksum) {
+		long start = System.currentTimeMillis();
+		Snapshot loaded = new Snapshot();
+		loaded.checksum = checksum;
+		Session s = Database.session();
+		s.beginTransaction();
+		ScrollableResults rows = null;
+		try {
+			rows = s.createSQLQuery("SELECT id, way FROM data.roadstrips")
+					.addScalar("id", StandardBasicTypes.INTEGER)
+					.addScalar("way", GeometryUserType.TYPE)
+					.scroll(ScrollMode.FORWARD_ONLY);
+			while (rows.next()) {
+				Integer id = (Integer) rows.get(0);
+				LineString way = (LineString) rows.get(1);
+				loaded.tree.insert(way.getEnvelopeInternal(), id);
+				loaded.ways.put(id, way);
+				loaded.maxId = Math.max(loaded.maxId, id);
+			}
+		} finally {
+			if (rows != null) {
+				rows.close();
+			}
+			Database.end(false);
+		}
+
+		// building the tree before it is shared with the other threads
+		loaded.tree.build();
+		buildAdjacency(loaded);
+		loaded.version = snapshot.version + 1;
+		snapshot = loaded;
+		Log.i("RoadStripIndex", loaded.ways.size() + " strips with "
+				+ loaded.adjacent.length + " neighbourships loaded in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Computes the neighbours of all strips of a loaded snapshot.
+	 * 
+	 * @param loaded
+	 *            The snapshot with a built tree
+	 */
+	private static void buildAdjacency(Snapshot loaded) {
+		int[] offsets = new int[loaded.maxId + 2];
+		int[] adjacent = new int[Math.max(16, loaded.ways.size() * 4)];
+		int n = 0;
+		for (int id = 0; id <= loaded.maxId; id++) {
+			offsets[id] = n;
+			LineString way = loaded.ways.get(id);
+			if (way == null) {
+				continue;
+			}
+			for (Object o : loaded.tree.query(way.getEnvelopeInternal())) {
+				Integer other = (Integer) o;
+				LineString otherWay = loaded.ways.get(other);
+				if (other == id || !otherWay.intersects(way)) {
+					continue;
+				}
+				if (n == adjacent.length) {
+					int[] bigger = new int[adjacent.length * 2];
+					System.arraycopy(adjacent, 0, bigger, 0, n);
+					adjacent = bigger;
+				}
+				adjacent[n++] = (other << 1)
+						| (otherWay.getStartPoint().intersects(way) ? 1 : 0);
+			}
+		}
+		offsets[loaded.maxId + 1] = n;
+		loaded.offsets = offsets;
+		loaded.adjacent = new int[n];
+		System.arraycopy(adjacent, 0, loaded.adjacent, 0, n);
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static RoadStripIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 * One loaded state of the index. It is never changed after it was built.
+	 */
+	private static class Snapshot {
+
+		/** The tree with the ids of the strips */
+		private final STRtree tree = new STRtree();
+
+		/** The geometries of the strips */
+		private final Map<Integer, LineString> ways = new HashMap<Integer, LineString>();
+
+		/** The highest id */
+		private int maxId = -1;
+
+		/** The checksum of the geometries at the load */
+		private long checksum = 0;
+
+		/** The number of the load */
+		private int version = 0;
+
+		/** Start of the neighbours of each id in <code>adjacent</code> */
+		private int[] offsets = new int[1];
+
+		/** The encoded neighbours of all strips */
+		private int[] adjacent = new int[0];
+	}
+}
@@ -18,21 +18,32 @@
  */
 package org.traffic.database;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
-import org.hibernatespatial.criterion.SpatialRestrictions;
+import org.hibernate.type.StandardBasicTypes;
+import org.hibernatespatial.GeometryUserType;
 import org.traffic.logging.Log;
-import org.traffic.models.traffic.RoadStrip;
-import org.traffic.utils.GeomHelper;
+import org.traffic.utils.NamedThreadFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
 
 /**
  * An instance of this class creates an SQLite-database on the server, which
@@ -44,9 +55,24 @@ import org.traffic.utils.GeomHelper;
  * The clients download this files, if they are inside the matching field. To
  * reduce the traffic as much as possible the database-files are compressed with
  * a GZIP-algorithm.
+ * <p>
+ * The strips are streamed from the database and inserted with one prepared
+ * statement in a single transaction without a journal. The compressed file is
+ * written next to the old one and renamed afterwards, so a download never
+ * gets a partial file. {@link #exportAll()} regenerates all fields on one
+ * thread per core.
+ * <p>
+ * The geometry of a strip is stored as a BLOB: the number of points followed
+ * by the latitude and longitude of each point in micro-degrees, each as
+ * difference to the previous point. All values are zigzag-encoded varints, so
+ * a strip needs only a few bytes per point. The format is marked by the
+ * <code>user_version</code> of the database. These files are published in
+ * the folder <code>v1/</code>, which only clients reading the BLOBs request.
+ * The files with the old names still contain WKT for older clients, so
+ * {@link #exportAll()} writes each field in both formats.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 265 $
  * @see DecimalFormat
  * @see File
  */
@@ -59,8 +85,29 @@ public class SQLiteMapper extends Thread {
 	/** The path to the folder where the databases are stored */
 	private static final String DBPATH = "/srv/fileserver/databases/";
 
-	/** The SQL-statement to create the needed table in the SQLite-database */
-	private static final String CREATE_TABLE = "CREATE TABLE roadstrips(id INTEGER PRIMARY KEY, way TEXT)";
+	/** The SQL-statement to create the table with the geometries as WKT */
+	private static final String CREATE_TABLE_WKT = "CREATE TABLE roadstrips(id INTEGER PRIMARY KEY, way TEXT)";
+
+	/** The SQL-statement to create the table with the encoded geometries */
+	private static final String CREATE_TABLE = "CREATE TABLE roadstrips(id INTEGER PRIMARY KEY, way BLOB)";
+
+	/** The format of the files for older clients, which contain WKT */
+	public static final int FORMAT_WKT = 0;
+
+	/** The version of the format stored as <code>user_version</code> */
+	public static final int FORMAT_VERSION = 1;
+
+	/** The SQL-statement to insert a strip into the SQLite-database */
+	private static final String INSERT = "INSERT INTO roadstrips(id, way) VALUES(?, ?)";
+
+	/** The size of a field in degree */
+	private static final double FIELD_SIZE = 0.5;
+
+	/** Number of inserts per batch */
+	private static final int BATCH_SIZE = 1000;
+
+	/** Size of the buffer to compress the file */
+	private static final int BUFFER_SIZE = 65536;
 
 	/** Latitude of the bottom-left corner */
 	private double minLat;
@@ -68,81 +115,281 @@ public class SQLiteMapper extends Thread {
 	/** Longitude of the bottom-left corner */
 	private double minLon;
 
+	/** The format of the file */
+	private int format;
+
 	/** The created database-file */
 	private File database;
 
+	/** Size of the compressed file in bytes, <code>-1</code> if it failed */
+	private long size = -1;
+
+	/**
+	 * Custom-Constructor with the latitude and longitude of the bottom-left
+	 * corner. The file is written in the current format.
+	 * 
+	 * @param minLat
+	 *            The latitude
+	 * @param minLon
+	 *            The longitude
+	 */
+	public SQLiteMapper(double minLat, double minLon) {
+		this(minLat, minLon, FORMAT_VERSION);
+	}
+
 	/**
 	 * Custom-Constructor with the latitude and longitude of the bottom-left
-	 * corner.
+	 * corner and the format of the file.
 	 * 
 	 * @param minLat
 	 *            The latitude
 	 * @param minLon
 	 *            The longitude
+	 * @param format
+	 *            <code>FORMAT_WKT</code> or <code>FORMAT_VERSION</code>
 	 */
-	public SQLiteMapper(int minLat, int minLon) {
+	public SQLiteMapper(double minLat, double minLon, int format) {
 		this.minLat = minLat;
 		this.minLon = minLon;
-		database = new File(DBPATH + FOUR_BIT_FORMAT.format(minLon * 100)
-				+ FOUR_BIT_FORMAT.format(minLat * 100) + ".db");
+		this.format = format;
+		database = new File(DBPATH
+				+ ((format == FORMAT_WKT) ? "" : "v" + format + "/")
+				+ FOUR_BIT_FORMAT.format(Math.round(minLon * 100))
+				+ FOUR_BIT_FORMAT.format(Math.round(minLat * 100)) + ".db");
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public void run() {
+		long start = System.currentTimeMillis();
 		if (database.exists()) {
 			database.delete();
 		}
 		try {
 			// setting up the file and the database
-			Log.i("SQLiteMapper", "setting up DB " + database.getName());
+			database.getParentFile().mkdirs();
 			database.createNewFile();
 			Class.forName("org.sqlite.JDBC");
 			Connection cn = DriverManager.getConnection("jdbc:sqlite:/"
 					+ database.getAbsolutePath(), "", "");
-			Statement create = cn.createStatement();
-			create.executeUpdate(CREATE_TABLE);
-			create.close();
-
-			// getting the information
-			Log.i("SQLiteMapper", "getting the original data");
-			Session s = Database.session();
-			s.beginTransaction();
-			List<RoadStrip> l = (List<RoadStrip>) s
-					.createCriteria(RoadStrip.class)
-					.add(SpatialRestrictions.intersects("way", GeomHelper
-							.createRectangle(minLon, minLat, minLon + 0.5,
-									minLat + 0.5))).list();
-			Database.end(false);
-			for (RoadStrip r : l) {
-				Statement insert = cn.createStatement();
-				insert.executeUpdate("INSERT INTO roadstrips(id, way) VALUES("
-						+ r.getId() + ",'" + r.getWay().toString() + "')");
-				insert.close();
+			int count = 0;
+			try {
+				Statement create = cn.createStatement();
+				create.executeUpdate("PRAGMA page_size = 4096");
+				create.executeUpdate("PRAGMA journal_mode = OFF");
+				create.executeUpdate("PRAGMA synchronous = OFF");
+				if (format == FORMAT_WKT) {
+					create.executeUpdate(CREATE_TABLE_WKT);
+				} else {
+					create.executeUpdate("PRAGMA user_version = " + format);
+					create.executeUpdate(CREATE_TABLE);
+				}
+				create.close();
+				cn.setAutoCommit(false);
+
+				// streaming the information into the database
+				Session s = Database.session();
+				s.beginTransaction();
+				ScrollableResults rows = s
+						.createSQLQuery(
+								"SELECT id, way FROM data.roadstrips "
+										+ "WHERE ST_Intersects(way, ST_MakeEnvelope(:minLon, :minLat, :maxLon, :maxLat, 4326))")
+						.addScalar("id", StandardBasicTypes.INTEGER)
+						.addScalar("way", GeometryUserType.TYPE)
+						.setParameter("minLon", minLon)
+						.setParameter("minLat", minLat)
+						.setParameter("maxLon", minLon + FIELD_SIZE)
+						.setParameter("maxLat", minLat + FIELD_SIZE)
+						.setFetchSize(BATCH_SIZE)
+						.scroll(ScrollMode.FORWARD_ONLY);
+				PreparedStatement insert = cn.prepareStatement(INSERT);
+				try {
+					while (rows.next()) {
+						insert.setInt(1, (Integer) rows.get(0));
+						LineString way = (LineString) rows.get(1);
+						if (format == FORMAT_WKT) {
+							insert.setString(2, way.toText());
+						} else {
+							insert.setBytes(2, encode(way));
+						}
+						insert.addBatch();
+						if (++count % BATCH_SIZE == 0) {
+							insert.executeBatch();
+						}
+					}
+					insert.executeBatch();
+				} finally {
+					insert.close();
+					rows.close();
+					Database.end(false);
+				}
+				cn.commit();
+			} finally {
+				cn.close();
 			}
-			cn.close();
 
-			// Create the streams
-			Log.i("SQLiteMapper", "compressing file");
-			String outFilename = database.getAbsolutePath() + ".gz";
+			// compressing into a temporary file
+			File compressed = new File(database.getAbsolutePath() + ".gz");
+			File tmp = new File(database.getAbsolutePath() + ".gz.tmp");
 			GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(
-					outFilename));
+					tmp), BUFFER_SIZE);
 			FileInputStream in = new FileInputStream(database);
+			try {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					out.write(buf, 0, len);
+				}
+				out.finish();
+			} finally {
+				in.close();
+				out.close();
+			}
+			if (compressed.exists()) {
+				compressed.delete();
+			}
+			if (!tmp.renameTo(compressed)) {
+				throw new IllegalStateException("renaming " + tmp.getName()
+						+ " failed");
+			}
+			size = compressed.length();
+			Log.i("SQLiteMapper", database.getName() + ": " + count
+					+ " strips, " + size + " bytes in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (Exception e) {
+			Log.e("SQLiteMapper",
+					e.getClass().getSimpleName() + "@run: " + e.getMessage());
+		}
+	}
 
-			// Transfer bytes from the input file to the GZIP output stream
-			byte[] buf = new byte[1024];
-			int len;
-			while ((len = in.read(buf)) > 0) {
-				out.write(buf, 0, len);
+	/**
+	 * Encodes the points of a strip as zigzag-encoded varints of the
+	 * differences between the micro-degrees of the points.
+	 * 
+	 * @param way
+	 *            The geometry of the strip
+	 * @return The encoded points
+	 */
+	public static byte[] encode(LineString way) {
+		Coordinate[] coordinates = way.getCoordinates();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				2 + coordinates.length * 6);
+		writeVarint(out, coordinates.length);
+		int lat = 0;
+		int lon = 0;
+		for (Coordinate c : coordinates) {
+			int latE6 = (int) Math.round(c.y * 1E6);
+			int lonE6 = (int) Math.round(c.x * 1E6);
+			int dLat = latE6 - lat;
+			int dLon = lonE6 - lon;
+			writeVarint(out, (dLat << 1) ^ (dLat >> 31));
+			writeVarint(out, (dLon << 1) ^ (dLon >> 31));
+			lat = latE6;
+			lon = lonE6;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes an unsigned value with seven bits per byte, the highest bit marks
+	 * a following byte.
+	 * 
+	 * @param out
+	 *            The stream
+	 * @param value
+	 *            The value
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Returns the size of the compressed file after the run.
+	 * 
+	 * @return The size in bytes or <code>-1</code>, if the export failed
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Regenerates the files of all fields containing strips in both formats.
+	 * The fields are exported in parallel on one thread per core.
+	 * 
+	 * @return The number of exported files
+	 */
+	public static int exportAll() {
+		long start = System.currentTimeMillis();
+		Session s = Database.session();
+		s.beginTransaction();
+		Object[] o = (Object[]) s
+				.createSQLQuery(
+						"SELECT ST_XMin(e) AS minlon, ST_YMin(e) AS minlat, "
+								+ "ST_XMax(e) AS maxlon, ST_YMax(e) AS maxlat "
+								+ "FROM (SELECT ST_Extent(way) AS e FROM data.roadstrips) tmp")
+				.addScalar("minlon", StandardBasicTypes.DOUBLE)
+				.addScalar("minlat", StandardBasicTypes.DOUBLE)
+				.addScalar("maxlon", StandardBasicTypes.DOUBLE)
+				.addScalar("maxlat", StandardBasicTypes.DOUBLE).uniqueResult();
+		Database.end(false);
+		if (o == null || o[0] == null) {
+			return 0;
+		}
+
+		// one mapper for each field within the extent
+		List<SQLiteMapper> mappers = new ArrayList<SQLiteMapper>();
+		double fromLon = Math.floor((Double) o[0] / FIELD_SIZE) * FIELD_SIZE;
+		double fromLat = Math.floor((Double) o[1] / FIELD_SIZE) * FIELD_SIZE;
+		for (double lat = fromLat; lat <= (Double) o[3]; lat += FIELD_SIZE) {
+			for (double lon = fromLon; lon <= (Double) o[2]; lon += FIELD_SIZE) {
+				mappers.add(new SQLiteMapper(lat, lon, FORMAT_WKT));
+				mappers.add(new SQLiteMapper(lat, lon, FORMAT_VERSION));
 			}
-			in.close();
+		}
 
-			// Complete the GZIP file
-			out.finish();
-			out.close();
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors(), new NamedThreadFactory(
+				"SQLiteMapper"));
+		long total = 0;
+		int failed = 0;
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (SQLiteMapper m : mappers) {
+				results.add(pool.submit((Runnable) m));
+			}
+			for (int i = 0; i < mappers.size(); i++) {
+				results.get(i).get();
+				if (mappers.get(i).getSize() < 0) {
+					failed++;
+				} else {
+					total += mappers.get(i).getSize();
+				}
+			}
 		} catch (Exception e) {
 			Log.e("SQLiteMapper",
-					e.getClass().getSimpleName() + "@run: " + e.getMessage());
+					e.getClass().getSimpleName() + "@exportAll: "
+							+ e.getMessage());
+		} finally {
+			pool.shutdown();
 		}
+		Log.i("SQLiteMapper", mappers.size() + " files (" + failed
+				+ " failed), " + total + " bytes in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return mappers.size() - failed;
+	}
+
+	/**
+	 * Regenerates the files of all fields.
+	 * 
+	 * @param args
+	 *            Not used
+	 */
+	public static void main(String[] args) {
+		Database.initialize();
+		exportAll();
+		System.exit(0);
 	}
 }
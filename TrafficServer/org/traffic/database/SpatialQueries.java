@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.traffic.logging.Log;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Spatial queries on the road strips, which bind their geometries as WKB
+ * parameters. The SQL-text is the same for every request, so the plans and
+ * the statement cache of the connection pool are reused. The nearest strips
+ * are searched with the index-assisted KNN operator <code>&lt;-&gt;</code>,
+ * which orders by the exact distance since PostGIS 2.2. Older versions order
+ * by the bounding boxes, so the candidates are restricted to the maximal
+ * distance before.
+ * <p>
+ * Every query measures its execution time, the figures are available by
+ * {@link #toString()}.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 262 $
+ */
+public class SpatialQueries {
+
+	/** Number of candidates taken from the KNN-search */
+	private static final int CANDIDATES = 16;
+
+	/** Execution time in millis above which a query is logged */
+	private static final long SLOW_QUERY = 100;
+
+	/** The bound geometry */
+	private static final String GEOM = "ST_SetSRID(ST_GeomFromWKB(:geom), 4326)";
+
+	/**
+	 * The nearest strip within a distance. The KNN-search on the index
+	 * delivers the candidates within the distance, which are ordered by the
+	 * exact distance.
+	 */
+	private static final String NEAREST_STRIP_SQL = "SELECT id FROM "
+			+ "(SELECT id, way FROM data.roadstrips WHERE ST_DWithin(way, "
+			+ GEOM + ", :distance) ORDER BY way <-> " + GEOM
+			+ " LIMIT :candidates) c ORDER BY ST_Distance(way, " + GEOM
+			+ ") LIMIT 1";
+
+	/** The one and only instance */
+	private static SpatialQueries instance = new SpatialQueries();
+
+	/** Number of executed queries */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Sum of the execution times in nanos */
+	private final AtomicLong time = new AtomicLong();
+
+	/** Maximal execution time in nanos */
+	private final AtomicLong maxTime = new AtomicLong();
+
+	/**
+	 * Default-Constructor
+	 */
+	private SpatialQueries() {
+	}
+
+	/**
+	 * Searches the strip nearest to the given point.
+	 * 
+	 * @param s
+	 *            The session with an active transaction
+	 * @param p
+	 *            The point
+	 * @param maxDistance
+	 *            The maximal distance in degree
+	 * @return The id of the strip or <code>-1</code>, if no strip is within
+	 *         the distance
+	 */
+	public int nearestStrip(Session s, Point p, double maxDistance) {
+		long start = System.nanoTime();
+		Object id = s.createSQLQuery(NEAREST_STRIP_SQL)
+				.setBinary("geom", wkb(p))
+				.setInteger("candidates", CANDIDATES)
+				.setDouble("distance", maxDistance).uniqueResult();
+		measure("nearestStrip", start);
+		return (id != null) ? ((Number) id).intValue() : -1;
+	}
+
+	/**
+	 * Converts a geometry into the WKB-format.
+	 * 
+	 * @param g
+	 *            The geometry
+	 * @return The geometry as WKB
+	 */
+	private static byte[] wkb(Geometry g) {
+		// the writer is not thread-safe
+		return new WKBWriter().write(g);
+	}
+
+	/**
+	 * Stores the execution time of a query.
+	 * 
+	 * @param query
+	 *            The name of the query
+	 * @param start
+	 *            The start in nanos
+	 */
+	private void measure(String query, long start) {
+		long duration = System.nanoTime() - start;
+		count.incrementAndGet();
+		time.addAndGet(duration);
+		long max;
+		while ((max = maxTime.get()) < duration) {
+			if (maxTime.compareAndSet(max, duration)) {
+				break;
+			}
+		}
+		if (duration / 1000000 > SLOW_QUERY) {
+			Log.i("SpatialQueries", query + " took " + duration / 1000000
+					+ "ms");
+		}
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static SpatialQueries getInstance() {
+		return instance;
+	}
+
+	@Override
+	public String toString() {
+		long n = count.get();
+		return "queries: " + n + ", avg: "
+				+ ((n > 0) ? time.get() / n / 1000 : 0) + "us, max: "
+				+ maxTime.get() / 1000 + "us";
+	}
+}
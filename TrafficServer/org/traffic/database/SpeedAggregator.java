@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.traffic.logging.Log;
+import org.traffic.models.traffic.RoadStrip;
+import org.traffic.models.traffic.Speed;
+import org.traffic.models.traffic.SpeedToEnd;
+import org.traffic.models.traffic.SpeedToStart;
+import org.traffic.models.traffic.UserData;
+
+/**
+ * Aggregates the speeds of the incoming messages per {@link RoadStrip} and
+ * driving direction. The sums and counts are kept in arrays indexed by the id
+ * of the strip, one slot for each quality of {@link Speed}:
+ * <ul>
+ * <li>{@link Speed#QUALITY_UP_TO_DATE} - the last <code>WINDOW_BUCKETS</code>
+ * buckets of <code>BUCKET_LENGTH</code> millis</li>
+ * <li>{@link Speed#QUALITY_DAY} - all messages of the same weekday</li>
+ * <li>{@link Speed#QUALITY_ALL} - all messages</li>
+ * </ul>
+ * The weekdays and the total are written to the table
+ * <code>data.livespeeds</code> by {@link #snapshot()} and restored on start,
+ * the window starts empty. The table is declared in
+ * <code>mappings_traffic.xml</code> for a new schema and created by
+ * {@link #restore()} on databases updated by hibernate. If a strip has no
+ * aggregated speed the views of the database are used as before.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 265 $
+ * @see org.traffic.services.SpeedSnapshotService
+ */
+public class SpeedAggregator {
+
+	/** Length of a bucket of the window in millis */
+	private static final long BUCKET_LENGTH = 300000;
+
+	/** Number of buckets of the window */
+	private static final int WINDOW_BUCKETS = 3;
+
+	/** Tolerance for the clock of a client ahead of the server in millis */
+	private static final long CLOCK_TOLERANCE = 60000;
+
+	/** Slot of the total */
+	private static final int SLOT_ALL = 7;
+
+	/** Slot of the first bucket of the window */
+	private static final int SLOT_WINDOW = 8;
+
+	/** Number of slots per direction */
+	private static final int SLOTS = SLOT_WINDOW + WINDOW_BUCKETS;
+
+	/** Minimal number of messages for the weekday and the total */
+	private static final int MINIMAL_MESSAGES = 3;
+
+	/** Number of locks for the strips */
+	private static final int STRIPES = 64;
+
+	/** The one and only instance */
+	private static SpeedAggregator instance = new SpeedAggregator();
+
+	/** Lock for resizing and clearing, read-locked for single updates */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Locks for the updates of single strips */
+	private final Object[] stripes = new Object[STRIPES];
+
+	/** Sums of the speeds by direction (0 = to end, 1 = to start) and slot */
+	private double[][][] sums = new double[2][SLOTS][0];
+
+	/** Number of messages by direction and slot */
+	private int[][][] counts = new int[2][SLOTS][0];
+
+	/** Number of the bucket in each slot of the window */
+	private final long[] bucketNumbers = new long[WINDOW_BUCKETS];
+
+	/**
+	 * Default-Constructor
+	 */
+	private SpeedAggregator() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	/**
+	 * Adds the speed of a message with known road and direction. The bucket of
+	 * the window is chosen by the time of the server, the time of the message
+	 * is sent by the client and only used for the weekday. A message dated
+	 * before the window or ahead of the server is not added to the window.
+	 * 
+	 * @param d
+	 *            The message
+	 */
+	public void record(UserData d) {
+		if (d.getRoad_id() == null || d.getTo_start() == null
+				|| d.getTo_end() == null) {
+			return;
+		}
+		int id = d.getRoad_id();
+		long now = System.currentTimeMillis();
+		long time = d.getTime().getTime();
+		long bucket = -1;
+		if (time >= now - WINDOW_BUCKETS * BUCKET_LENGTH
+				&& time <= now + CLOCK_TOLERANCE) {
+			bucket = now / BUCKET_LENGTH;
+			ensureBucket(bucket);
+		}
+		ensureCapacity(id);
+
+		int day = weekday(time);
+		lock.readLock().lock();
+		try {
+			synchronized (stripes[id % STRIPES]) {
+				if (d.getTo_end()) {
+					add(0, id, day, bucket, d.getSpeed());
+				}
+				if (d.getTo_start()) {
+					add(1, id, day, bucket, d.getSpeed());
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a speed to the slots of a direction. The lock of the strip must be
+	 * held.
+	 * 
+	 * @param direction
+	 *            The direction
+	 * @param id
+	 *            The id of the strip
+	 * @param day
+	 *            The weekday
+	 * @param bucket
+	 *            The bucket of the window or <code>-1</code> to skip the
+	 *            window
+	 * @param speed
+	 *            The speed
+	 */
+	private void add(int direction, int id, int day, long bucket, double speed) {
+		if (bucket >= 0) {
+			int slot = SLOT_WINDOW + (int) (bucket % WINDOW_BUCKETS);
+			if (bucketNumbers[slot - SLOT_WINDOW] == bucket) {
+				sums[direction][slot][id] += speed;
+				counts[direction][slot][id]++;
+			}
+		}
+		sums[direction][day][id] += speed;
+		counts[direction][day][id]++;
+		sums[direction][SLOT_ALL][id] += speed;
+		counts[direction][SLOT_ALL][id]++;
+	}
+
+	/**
+	 * Returns the best aggregated speed of a strip.
+	 * 
+	 * @param rs
+	 *            The strip
+	 * @param toStart
+	 *            The driving direction
+	 * @return The speed or <code>null</code>, if there are not enough
+	 *         messages
+	 */
+	public Speed getBestSpeed(RoadStrip rs, boolean toStart) {
+		int id = rs.getId();
+		int[] category = new int[1];
+		double speed = aggregate(id, toStart ? 1 : 0, category);
+		if (speed < 0) {
+			return null;
+		}
+		String speedId = id + "-" + category[0];
+		if (toStart) {
+			return new SpeedToStart(speedId, category[0], speed, rs);
+		}
+		return new SpeedToEnd(speedId, category[0], speed, rs);
+	}
+
+	/**
+	 * Returns the best aggregated speed of a strip without creating a
+	 * {@link Speed}.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @param toStart
+	 *            The driving direction
+	 * @return The speed or <code>-1</code>, if there are not enough messages
+	 */
+	public double getSpeed(int id, boolean toStart) {
+		return aggregate(id, toStart ? 1 : 0, null);
+	}
+
+	/**
+	 * Calculates the average speed of the best available slot.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @param direction
+	 *            The direction (0 = to end, 1 = to start)
+	 * @param category
+	 *            Array to store the category of the speed at index 0 or
+	 *            <code>null</code>, if the category is not needed
+	 * @return The average speed or <code>-1</code>, if there are not enough
+	 *         messages
+	 */
+	private double aggregate(int id, int direction, int[] category) {
+		long now = System.currentTimeMillis();
+		long current = now / BUCKET_LENGTH;
+		int quality = -1;
+		double sum = 0;
+		int count = 0;
+
+		lock.readLock().lock();
+		try {
+			if (id < 0 || id >= counts[direction][SLOT_ALL].length) {
+				return -1;
+			}
+			synchronized (stripes[id % STRIPES]) {
+				// the current window
+				for (int i = 0; i < WINDOW_BUCKETS; i++) {
+					if (bucketNumbers[i] > current - WINDOW_BUCKETS
+							&& bucketNumbers[i] <= current) {
+						sum += sums[direction][SLOT_WINDOW + i][id];
+						count += counts[direction][SLOT_WINDOW + i][id];
+					}
+				}
+				if (count > 0) {
+					quality = Speed.QUALITY_UP_TO_DATE;
+				} else {
+					int day = weekday(now);
+					if (counts[direction][day][id] >= MINIMAL_MESSAGES) {
+						sum = sums[direction][day][id];
+						count = counts[direction][day][id];
+						quality = Speed.QUALITY_DAY;
+					} else if (counts[direction][SLOT_ALL][id] >= MINIMAL_MESSAGES) {
+						sum = sums[direction][SLOT_ALL][id];
+						count = counts[direction][SLOT_ALL][id];
+						quality = Speed.QUALITY_ALL;
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (quality < 0) {
+			return -1;
+		}
+		if (category != null) {
+			category[0] = quality;
+		}
+		return sum / count;
+	}
+
+	/**
+	 * Returns the best speed of a strip, aggregated or from the views of the
+	 * database.
+	 * 
+	 * @param rs
+	 *            The strip
+	 * @param toStart
+	 *            The driving direction
+	 * @return The speed
+	 */
+	public Speed getBestSpeedOrStored(RoadStrip rs, boolean toStart) {
+		Speed speed = getBestSpeed(rs, toStart);
+		return (speed != null) ? speed : rs.getBestSpeed(toStart);
+	}
+
+	/**
+	 * Writes the weekdays and the totals to the table
+	 * <code>data.livespeeds</code>, replacing the previous snapshot.
+	 */
+	public void snapshot() {
+		long start = System.currentTimeMillis();
+		final double[][][] sumCopy = new double[2][SLOT_ALL + 1][];
+		final int[][][] countCopy = new int[2][SLOT_ALL + 1][];
+		lock.writeLock().lock();
+		try {
+			for (int direction = 0; direction < 2; direction++) {
+				for (int slot = 0; slot <= SLOT_ALL; slot++) {
+					sumCopy[direction][slot] = sums[direction][slot].clone();
+					countCopy[direction][slot] = counts[direction][slot].clone();
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		Session s = Database.session();
+		s.beginTransaction();
+		try {
+			s.doWork(new Work() {
+				@Override
+				public void execute(Connection cn) throws SQLException {
+					Statement st = cn.createStatement();
+					try {
+						st.executeUpdate("DELETE FROM data.livespeeds");
+					} finally {
+						st.close();
+					}
+					PreparedStatement ps = cn
+							.prepareStatement("INSERT INTO data.livespeeds "
+									+ "(road_id, to_start, slot, sum, count) "
+									+ "VALUES (?, ?, ?, ?, ?)");
+					try {
+						int rows = 0;
+						for (int direction = 0; direction < 2; direction++) {
+							for (int slot = 0; slot <= SLOT_ALL; slot++) {
+								int[] c = countCopy[direction][slot];
+								for (int id = 0; id < c.length; id++) {
+									if (c[id] == 0) {
+										continue;
+									}
+									ps.setInt(1, id);
+									ps.setBoolean(2, direction == 1);
+									ps.setInt(3, slot);
+									ps.setDouble(4, sumCopy[direction][slot][id]);
+									ps.setInt(5, c[id]);
+									ps.addBatch();
+									if (++rows % 1000 == 0) {
+										ps.executeBatch();
+									}
+								}
+							}
+						}
+						ps.executeBatch();
+					} finally {
+						ps.close();
+					}
+				}
+			});
+			Database.end(true);
+			Log.i("SpeedAggregator", "snapshot written in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (RuntimeException e) {
+			Log.e("SpeedAggregator", e.getClass() + "@snapshot: "
+					+ e.getMessage());
+		} finally {
+			Database.release();
+		}
+	}
+
+	/**
+	 * Loads the last snapshot from the table <code>data.livespeeds</code>.
+	 * The table is created first, if it does not exist, because the
+	 * schema-update of hibernate skips the database-objects of the mapping.
+	 */
+	public void restore() {
+		ensureCapacity(RoadStripIndex.getInstance().getMaxId());
+		Session s = Database.session();
+		s.beginTransaction();
+		try {
+			s.doWork(new Work() {
+				@Override
+				public void execute(Connection cn) throws SQLException {
+					Statement st = cn.createStatement();
+					lock.writeLock().lock();
+					try {
+						st.executeUpdate("CREATE TABLE IF NOT EXISTS data.livespeeds ("
+								+ "road_id integer NOT NULL, "
+								+ "to_start boolean NOT NULL, "
+								+ "slot smallint NOT NULL, "
+								+ "sum double precision NOT NULL, "
+								+ "count integer NOT NULL)");
+						ResultSet rs = st
+								.executeQuery("SELECT road_id, to_start, slot, sum, count "
+										+ "FROM data.livespeeds");
+						while (rs.next()) {
+							int id = rs.getInt(1);
+							int direction = rs.getBoolean(2) ? 1 : 0;
+							int slot = rs.getInt(3);
+							if (slot < 0 || slot > SLOT_ALL) {
+								continue;
+							}
+							ensureCapacity(id);
+							sums[direction][slot][id] = rs.getDouble(4);
+							counts[direction][slot][id] = rs.getInt(5);
+						}
+						rs.close();
+					} finally {
+						lock.writeLock().unlock();
+						st.close();
+					}
+				}
+			});
+			Database.end(true);
+		} finally {
+			Database.release();
+		}
+	}
+
+	/**
+	 * Resizes the arrays, if the id is beyond their length.
+	 * 
+	 * @param id
+	 *            The id of a strip
+	 */
+	private void ensureCapacity(int id) {
+		lock.readLock().lock();
+		try {
+			if (id < counts[0][SLOT_ALL].length) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try {
+			int length = counts[0][SLOT_ALL].length;
+			if (id >= length) {
+				int newLength = Math.max(id + 1, length + length / 2);
+				for (int direction = 0; direction < 2; direction++) {
+					for (int slot = 0; slot < SLOTS; slot++) {
+						double[] s = new double[newLength];
+						System.arraycopy(sums[direction][slot], 0, s, 0, length);
+						sums[direction][slot] = s;
+						int[] c = new int[newLength];
+						System.arraycopy(counts[direction][slot], 0, c, 0, length);
+						counts[direction][slot] = c;
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Clears the slot of the window, if the bucket is newer than its content.
+	 * 
+	 * @param bucket
+	 *            The number of the bucket
+	 */
+	private void ensureBucket(long bucket) {
+		int index = (int) (bucket % WINDOW_BUCKETS);
+		lock.readLock().lock();
+		try {
+			if (bucketNumbers[index] >= bucket) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try {
+			if (bucketNumbers[index] < bucket) {
+				for (int direction = 0; direction < 2; direction++) {
+					Arrays.fill(sums[direction][SLOT_WINDOW + index], 0);
+					Arrays.fill(counts[direction][SLOT_WINDOW + index], 0);
+				}
+				bucketNumbers[index] = bucket;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the weekday of a time as slot.
+	 * 
+	 * @param time
+	 *            The time in millis
+	 * @return The slot from 0 to 6
+	 */
+	private static int weekday(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		return c.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static SpeedAggregator getInstance() {
+		return instance;
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
+import org.traffic.logging.Log;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Finds the name of the street at a position without asking a geocoding
+ * service. The names of the {@link org.traffic.models.traffic.Road}s are
+ * loaded once for all strips and the nearest named strip is searched in a
+ * tree with the geometries of the {@link RoadStripIndex}.
+ * <p>
+ * The names are reloaded, when the version of the {@link RoadStripIndex}
+ * changes. The answers are cached by the position rounded to
+ * <code>1 / PRECISION</code> degree, the least recently used position is
+ * dropped first.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 265 $
+ */
+public class StreetNameIndex {
+
+	/** Maximal distance in degree to a named strip */
+	private static final double MAX_DISTANCE = 0.01;
+
+	/** Factor to round the positions of the cache */
+	private static final int PRECISION = 10000;
+
+	/** Maximal number of cached positions */
+	private static final int MAX_CACHED = 10000;
+
+	/** Cached answer for positions without a named strip */
+	private static final String NONE = "";
+
+	/** The one and only instance */
+	private static StreetNameIndex instance = new StreetNameIndex();
+
+	/** The current names */
+	private volatile Names names = new Names();
+
+	/** The cached names by rounded position, guarded by itself */
+	private final Map<Long, String> cache = new LinkedHashMap<Long, String>(
+			1024, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	/** Number of lookups answered by the cache */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of lookups answered by the tree */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Default-Constructor
+	 */
+	private StreetNameIndex() {
+		names.tree.build();
+	}
+
+	/**
+	 * Returns the name of the road of a strip.
+	 * 
+	 * @param id
+	 *            The id of the strip
+	 * @return The name or <code>null</code>, if the road has no name
+	 */
+	public String getName(int id) {
+		Names current = current();
+		return (id >= 0 && id < current.names.length) ? current.names[id]
+				: null;
+	}
+
+	/**
+	 * Returns the name of the nearest named strip within
+	 * <code>MAX_DISTANCE</code>.
+	 * 
+	 * @param c
+	 *            The position
+	 * @return The name or <code>null</code>, if no named strip is near enough
+	 */
+	public String nearest(Coordinate c) {
+		Names current = current();
+		Long key = Long.valueOf(Math.round(c.y * PRECISION) * 4000000L
+				+ Math.round(c.x * PRECISION) + 1800000L);
+		synchronized (cache) {
+			String name = cache.get(key);
+			if (name != null) {
+				hits.incrementAndGet();
+				return (name == NONE) ? null : name;
+			}
+		}
+		misses.incrementAndGet();
+
+		RoadStripIndex index = RoadStripIndex.getInstance();
+		Envelope env = new Envelope(c);
+		env.expandBy(MAX_DISTANCE);
+		String best = null;
+		double bestDistance = Double.MAX_VALUE;
+		for (Object o : current.tree.query(env)) {
+			Integer id = (Integer) o;
+			LineString way = index.getWay(id);
+			if (way == null) {
+				continue;
+			}
+			double distance = CGAlgorithms.distancePointLine(c,
+					way.getCoordinates());
+			if (distance <= MAX_DISTANCE && distance < bestDistance) {
+				best = current.names[id];
+				bestDistance = distance;
+			}
+		}
+		synchronized (cache) {
+			cache.put(key, (best != null) ? best : NONE);
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the names for the current version of the strips and reloads
+	 * them, if the strips have changed.
+	 * 
+	 * @return The names
+	 */
+	private Names current() {
+		Names current = names;
+		if (current.version != RoadStripIndex.getInstance().getVersion()) {
+			synchronized (this) {
+				current = names;
+				if (current.version != RoadStripIndex.getInstance()
+						.getVersion()) {
+					reload();
+					current = names;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Loads the names of all strips from the database and replaces the
+	 * current names.
+	 */
+	public synchronized void reload() {
+		long start = System.currentTimeMillis();
+		RoadStripIndex index = RoadStripIndex.getInstance();
+		Names loaded = new Names();
+		loaded.version = index.getVersion();
+		loaded.names = new String[index.getMaxId() + 1];
+		Map<String, String> shared = new HashMap<String, String>();
+		Session s = Database.session();
+		s.beginTransaction();
+		ScrollableResults rows = null;
+		int count = 0;
+		try {
+			rows = s.createSQLQuery(
+					"SELECT rs.id, r.name FROM data.roadstrips rs "
+							+ "INNER JOIN data.roads r ON rs.road_id = r.id "
+							+ "WHERE r.name IS NOT NULL AND r.name <> ''")
+					.addScalar("id", StandardBasicTypes.INTEGER)
+					.addScalar("name", StandardBasicTypes.STRING)
+					.scroll(ScrollMode.FORWARD_ONLY);
+			while (rows.next()) {
+				int id = (Integer) rows.get(0);
+				LineString way = index.getWay(id);
+				if (way == null || id >= loaded.names.length) {
+					continue;
+				}
+
+				// the strips of a road share one string
+				String name = (String) rows.get(1);
+				String known = shared.get(name);
+				if (known == null) {
+					shared.put(name, name);
+					known = name;
+				}
+				loaded.names[id] = known;
+				loaded.tree.insert(way.getEnvelopeInternal(), id);
+				count++;
+			}
+		} finally {
+			if (rows != null) {
+				rows.close();
+			}
+			Database.end(false);
+		}
+
+		// building the tree before it is shared with the other threads
+		loaded.tree.build();
+		names = loaded;
+		synchronized (cache) {
+			cache.clear();
+		}
+		Log.i("StreetNameIndex", count + " named strips with " + shared.size()
+				+ " names loaded in " + (System.currentTimeMillis() - start)
+				+ "ms");
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static StreetNameIndex getInstance() {
+		return instance;
+	}
+
+	@Override
+	public String toString() {
+		synchronized (cache) {
+			return "positions: " + cache.size() + ", hits: " + hits.get()
+					+ ", misses: " + misses.get();
+		}
+	}
+
+	/**
+	 * One loaded state of the names. It is never changed after it was built.
+	 */
+	private static class Names {
+
+		/** The tree with the ids of the named strips */
+		private final STRtree tree = new STRtree();
+
+		/** The names by the id of the strip */
+		private String[] names = new String[0];
+
+		/** The version of the {@link RoadStripIndex} */
+		private int version = -1;
+	}
+}
@@ -172,6 +172,9 @@ public class StreetPreparer {
 		extractRoadInformation();
 		createRoadStrips();
 		cleanUpDB();
+
+		// the index and the adjacency of the new strips
+		RoadStripIndex.getInstance().reload();
 	}
 
 }
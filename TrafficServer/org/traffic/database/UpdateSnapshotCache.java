@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the state of the last update sent to each client, so the next update
+ * only contains the strips and congestions that have changed. A state is
+ * identified by a version, which the client sends back with its next request.
+ * If the versions do not match, the client gets the full state again.
+ * <p>
+ * An entry lives as long as the lease of the session-ID. The cache is bounded
+ * by <code>MAX_CLIENTS</code>, the least recently used client is dropped
+ * first.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 258 $
+ */
+public class UpdateSnapshotCache {
+
+	/** Maximal number of cached clients */
+	private static final int MAX_CLIENTS = 20000;
+
+	/** The one and only instance */
+	private static UpdateSnapshotCache instance = new UpdateSnapshotCache();
+
+	/** The last issued version */
+	private final AtomicLong versions = new AtomicLong();
+
+	/** The sent states by session-ID, guarded by itself */
+	private final Map<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(
+			1024, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+			return size() > MAX_CLIENTS;
+		}
+	};
+
+	/**
+	 * Default-Constructor
+	 */
+	private UpdateSnapshotCache() {
+	}
+
+	/**
+	 * Returns the last state sent to the client, if the client holds it.
+	 * 
+	 * @param hash
+	 *            The session-ID
+	 * @param version
+	 *            The version held by the client
+	 * @return The state or <code>null</code>, if the client needs the full
+	 *         state
+	 */
+	public Snapshot get(String hash, long version) {
+		synchronized (snapshots) {
+			Snapshot s = snapshots.get(hash);
+			if (s == null || s.version != version) {
+				return null;
+			}
+			if (s.lease < System.currentTimeMillis()) {
+				snapshots.remove(hash);
+				return null;
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * Stores the state sent to the client.
+	 * 
+	 * @param hash
+	 *            The session-ID
+	 * @param traffic
+	 *            The state of each strip by id
+	 * @param congestions
+	 *            The state of each congestion by id
+	 * @param lease
+	 *            The leasetime of the session-ID
+	 * @return The version of the state
+	 */
+	public long put(String hash, Map<Integer, String> traffic,
+			Map<Integer, String> congestions, Date lease) {
+		Snapshot s = new Snapshot(versions.incrementAndGet(), traffic,
+				congestions, lease.getTime());
+		synchronized (snapshots) {
+			snapshots.put(hash, s);
+		}
+		return s.version;
+	}
+
+	/**
+	 * Removes the client, e.g. if its session-ID was replaced.
+	 * 
+	 * @param hash
+	 *            The session-ID
+	 */
+	public void remove(String hash) {
+		synchronized (snapshots) {
+			snapshots.remove(hash);
+		}
+	}
+
+	/**
+	 * Removes all clients with an expired lease.
+	 * 
+	 * @return The number of removed clients
+	 */
+	public int expire() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		synchronized (snapshots) {
+			Iterator<Snapshot> it = snapshots.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().lease < now) {
+					it.remove();
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of cached clients.
+	 * 
+	 * @return The number of clients
+	 */
+	public int size() {
+		synchronized (snapshots) {
+			return snapshots.size();
+		}
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static UpdateSnapshotCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The state of an update sent to a client. It is never changed after it
+	 * was stored.
+	 */
+	public static class Snapshot {
+
+		/** The version */
+		private final long version;
+
+		/** The state of each strip by id */
+		private final Map<Integer, String> traffic;
+
+		/** The state of each congestion by id */
+		private final Map<Integer, String> congestions;
+
+		/** The leasetime in millis */
+		private final long lease;
+
+		/**
+		 * Custom-Constructor with the version, the states and the lease.
+		 * 
+		 * @param version
+		 *            The version
+		 * @param traffic
+		 *            The state of each strip by id
+		 * @param congestions
+		 *            The state of each congestion by id
+		 * @param lease
+		 *            The leasetime in millis
+		 */
+		private Snapshot(long version, Map<Integer, String> traffic,
+				Map<Integer, String> congestions, long lease) {
+			this.version = version;
+			this.traffic = traffic;
+			this.congestions = congestions;
+			this.lease = lease;
+		}
+
+		/**
+		 * Returns the state of each strip by id.
+		 * 
+		 * @return The states
+		 */
+		public Map<Integer, String> getTraffic() {
+			return traffic;
+		}
+
+		/**
+		 * Returns the state of each congestion by id.
+		 * 
+		 * @return The states
+		 */
+		public Map<Integer, String> getCongestions() {
+			return congestions;
+		}
+	}
+}
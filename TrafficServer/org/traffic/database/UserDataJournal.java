@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.traffic.logging.Log;
+import org.traffic.models.traffic.UserData;
+import org.traffic.utils.GeomHelper;
+
+/**
+ * Append-only log of the {@link UserData} queued in the {@link UserDataWriter}.
+ * Each message is written to the current segment before it is queued. When
+ * the writer starts a flush the segment is closed and a new one is opened, the
+ * closed segments are deleted after the flush was committed. Segments left by
+ * a crash are read again on the next start.
+ * <p>
+ * The segments are flushed to the operating system after each message, so
+ * they survive a crash of the server, but not of the machine. Messages the
+ * database refuses are moved to the file <code>rejected.log</code> of the
+ * same format, which is not read again.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 243 $
+ */
+public class UserDataJournal {
+
+	/** Prefix of the segment-files */
+	private static final String PREFIX = "userdata-";
+
+	/** Suffix of the segment-files */
+	private static final String SUFFIX = ".log";
+
+	/** Separator of the values in a line */
+	private static final String SEPARATOR = ";";
+
+	/** Name of the file of the rejected messages */
+	private static final String REJECTED = "rejected" + SUFFIX;
+
+	/** The folder of the segments */
+	private final File folder;
+
+	/** Number of the current segment */
+	private long segment;
+
+	/** Writer of the current segment */
+	private BufferedWriter out;
+
+	/**
+	 * Custom-Constructor with the folder of the segments.
+	 * 
+	 * @param folder
+	 *            The folder, created if missing
+	 * @throws IOException
+	 *             The folder could not be used
+	 */
+	public UserDataJournal(File folder) throws IOException {
+		this.folder = folder;
+		if (!folder.exists() && !folder.mkdirs()) {
+			throw new IOException("cannot create " + folder);
+		}
+		segment = System.currentTimeMillis();
+		open();
+	}
+
+	/**
+	 * Appends a message to the current segment.
+	 * 
+	 * @param d
+	 *            The message
+	 * @throws IOException
+	 *             Writing failed
+	 */
+	public void append(UserData d) throws IOException {
+		out.write(format(d));
+		out.newLine();
+		out.flush();
+	}
+
+	/**
+	 * Appends messages refused by the database to the file of the rejected
+	 * messages.
+	 * 
+	 * @param rejected
+	 *            The messages
+	 * @throws IOException
+	 *             Writing failed
+	 */
+	public void reject(List<UserData> rejected) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(new File(folder,
+				REJECTED), true));
+		try {
+			for (UserData d : rejected) {
+				w.write(format(d));
+				w.newLine();
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Returns the line of a message.
+	 * 
+	 * @param d
+	 *            The message
+	 * @return The line without separator
+	 */
+	public static String format(UserData d) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(d.getTime().getTime()).append(SEPARATOR);
+		sb.append(d.getPosition().getX()).append(SEPARATOR);
+		sb.append(d.getPosition().getY()).append(SEPARATOR);
+		sb.append(d.getSpeed()).append(SEPARATOR);
+		sb.append(d.getRoad_id()).append(SEPARATOR);
+		sb.append(d.getTo_start()).append(SEPARATOR);
+		sb.append(d.getTo_end()).append(SEPARATOR);
+		sb.append(d.getConnectionhash());
+		return sb.toString();
+	}
+
+	/**
+	 * Closes the current segment and opens a new one.
+	 * 
+	 * @return The closed segment
+	 * @throws IOException
+	 *             The new segment could not be opened
+	 */
+	public File rotate() throws IOException {
+		out.close();
+		File closed = getFile(segment);
+		segment = Math.max(segment + 1, System.currentTimeMillis());
+		open();
+		return closed;
+	}
+
+	/**
+	 * Returns all segments except the current one, the oldest first.
+	 * 
+	 * @return The segments
+	 */
+	public List<File> getClosedSegments() {
+		List<File> files = new LinkedList<File>();
+		File current = getFile(segment);
+		File[] all = folder.listFiles();
+		if (all != null) {
+			Arrays.sort(all);
+			for (File f : all) {
+				if (f.getName().startsWith(PREFIX)
+						&& f.getName().endsWith(SUFFIX) && !f.equals(current)) {
+					files.add(f);
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Reads the messages of a segment.
+	 * 
+	 * @param f
+	 *            The segment
+	 * @return The messages
+	 * @throws IOException
+	 *             Reading failed
+	 */
+	public static List<UserData> read(File f) throws IOException {
+		List<UserData> result = new LinkedList<UserData>();
+		BufferedReader in = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] v = line.split(SEPARATOR, 8);
+				if (v.length < 8) {
+					// incomplete last line of a crashed server
+					Log.w("UserDataJournal", "skipping line in " + f.getName());
+					continue;
+				}
+				UserData d = new UserData(new Date(Long.parseLong(v[0])),
+						GeomHelper.createPoint(Double.parseDouble(v[1]),
+								Double.parseDouble(v[2])),
+						Double.parseDouble(v[3]), v[7]);
+				d.setRoad_id(v[4].equals("null") ? null : Integer
+						.valueOf(v[4]));
+				d.setTo_start(v[5].equals("null") ? null : Boolean
+						.valueOf(v[5]));
+				d.setTo_end(v[6].equals("null") ? null : Boolean.valueOf(v[6]));
+				result.add(d);
+			}
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Opens the current segment.
+	 * 
+	 * @throws IOException
+	 *             The file could not be opened
+	 */
+	private void open() throws IOException {
+		out = new BufferedWriter(new FileWriter(getFile(segment), true));
+	}
+
+	/**
+	 * Returns the file of a segment.
+	 * 
+	 * @param number
+	 *            The number of the segment
+	 * @return The file
+	 */
+	private File getFile(long number) {
+		return new File(folder, PREFIX + number + SUFFIX);
+	}
+}
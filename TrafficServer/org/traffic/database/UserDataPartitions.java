@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.cfg.Configuration;
+import org.traffic.logging.Log;
+import org.traffic.models.traffic.UserData;
+
+/**
+ * Manages the daily partitions of the table <code>data.userdata</code>,
+ * which is partitioned by the <code>time</code> of the {@link UserData}. The
+ * partitions are created <code>DAYS_AHEAD</code> days in advance, partitions
+ * older than <code>RETENTION_DAYS</code> days are detached and dropped
+ * instead of deleting their rows. Messages outside of all partitions are kept
+ * in <code>userdata_default</code>, which is pruned by the same retention.
+ * The times sent by the clients are limited by {@link #clamp(long)}, so a
+ * wrong clock can not fill the default partition. Rows of the default
+ * partition falling into a new partition are moved when it is created.
+ * <p>
+ * The partitions are named <code>userdata_yyyyMMdd</code> after their first
+ * day. An unpartitioned table of an older version is attached as
+ * <code>userdata_before_yyyyMMdd</code> with all messages before that day.
+ * Queries restricted by {@link #since(int)} only read the needed partitions.
+ * <p>
+ * The schema-update of hibernate does not recognize a partitioned table, so
+ * the table is excluded from it by {@link #exclude(Configuration)} and
+ * created by {@link #initialize()} on a new database.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 265 $
+ */
+public class UserDataPartitions {
+
+	/** Number of days the messages are kept */
+	public static final int RETENTION_DAYS = 90;
+
+	/** Number of days the partitions are created in advance */
+	public static final int DAYS_AHEAD = 7;
+
+	/** Number of days of messages still completed by the services */
+	public static final int RECENT_DAYS = 2;
+
+	/** Prefix of the daily partitions */
+	private static final String PREFIX = "userdata_";
+
+	/** Prefix of the attached unpartitioned table */
+	private static final String LEGACY_PREFIX = "userdata_before_";
+
+	/** Name of the default partition */
+	private static final String DEFAULT = "userdata_default";
+
+	/** Tolerance for the clock of a client ahead of the server in millis */
+	private static final long CLOCK_TOLERANCE = 60000;
+
+	/**
+	 * Excludes the table from the schema-update and -export of hibernate. It
+	 * only looks up plain tables and views, so it would try to create the
+	 * partitioned table on every start.
+	 * 
+	 * @param config
+	 *            The configuration before the session-factory is built
+	 */
+	public static void exclude(Configuration config) {
+		config.buildMappings();
+		config.getClassMapping(UserData.class.getName()).getTable()
+				.setAbstract(true);
+	}
+
+	/**
+	 * Creates or converts the partitioned table and creates the partitions
+	 * of the next days. Must be called before messages are written.
+	 */
+	public static void initialize() {
+		Session s = Database.session();
+		s.beginTransaction();
+		try {
+			String kind = (String) s
+					.createSQLQuery(
+							"SELECT CAST(c.relkind AS varchar) FROM pg_class c "
+									+ "INNER JOIN pg_namespace n ON n.oid = c.relnamespace "
+									+ "WHERE n.nspname = 'data' AND c.relname = 'userdata'")
+					.uniqueResult();
+			if (kind == null) {
+				createTable(s);
+			} else if ("r".equals(kind)) {
+				convert(s);
+			}
+			createIndexes(s);
+			Database.end(true);
+		} catch (Exception e) {
+			Database.end(false);
+			Log.e("UserDataPartitions",
+					e.getClass() + "@initialize: " + e.getMessage());
+		}
+		maintain();
+	}
+
+	/**
+	 * Creates the missing partitions of the next <code>DAYS_AHEAD</code> days
+	 * and drops the partitions older than <code>RETENTION_DAYS</code> days.
+	 * 
+	 * @return The number of dropped partitions
+	 */
+	public static int maintain() {
+		List<String> partitions = partitions();
+		Date today = since(0);
+
+		// the first day, which is not covered by an existing partition
+		Date first = today;
+		for (String name : partitions) {
+			if (name.startsWith(LEGACY_PREFIX)) {
+				Date end = parse(name.substring(LEGACY_PREFIX.length()));
+				if (end != null && end.after(first)) {
+					first = end;
+				}
+			}
+		}
+		int created = 0;
+		Date day = today;
+		for (int i = 0; i <= DAYS_AHEAD; i++, day = next(day)) {
+			String name = PREFIX + format(day, "yyyyMMdd");
+			if (day.before(first) || partitions.contains(name)) {
+				continue;
+			}
+			if (create(name, day, partitions.contains(DEFAULT))) {
+				created++;
+			}
+		}
+
+		// dropping the partitions ending before the retention
+		Date cutoff = since(RETENTION_DAYS);
+		int dropped = 0;
+		for (String name : partitions) {
+			Date end = end(name);
+			if (end != null && !end.after(cutoff)) {
+				if (execute("ALTER TABLE data.userdata DETACH PARTITION data."
+						+ name) && execute("DROP TABLE data." + name)) {
+					dropped++;
+				}
+			}
+		}
+		if (partitions.contains(DEFAULT)) {
+			execute("DELETE FROM data." + DEFAULT + " WHERE time < '"
+					+ format(cutoff, "yyyy-MM-dd") + "'");
+		}
+		Log.i("UserDataPartitions", created + " partition(s) created, "
+				+ dropped + " dropped");
+		return dropped;
+	}
+
+	/**
+	 * Limits the time of a message sent by a client to the range covered by
+	 * the partitions. A time ahead of the server is replaced by the time of
+	 * the server.
+	 * 
+	 * @param time
+	 *            The time sent by the client in millis
+	 * @return The time to store or <code>-1</code>, if the message is older
+	 *         than the retention and must not be stored
+	 */
+	public static long clamp(long time) {
+		long now = System.currentTimeMillis();
+		if (time > now + CLOCK_TOLERANCE) {
+			return now;
+		}
+		return (time < since(RETENTION_DAYS).getTime()) ? -1 : time;
+	}
+
+	/**
+	 * Returns the start of the day, which lies the given number of days in
+	 * the past. Restricting a query on the <code>time</code> to this value
+	 * reads only the partitions of the last days.
+	 * 
+	 * @param days
+	 *            The number of days
+	 * @return The start of the day
+	 */
+	public static Date since(int days) {
+		Calendar c = Calendar.getInstance();
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		c.add(Calendar.DAY_OF_MONTH, -days);
+		return c.getTime();
+	}
+
+	/**
+	 * Replaces the unpartitioned table by a partitioned one. The existing
+	 * table becomes the partition of all messages before tomorrow, so no
+	 * messages are copied.
+	 * 
+	 * @param s
+	 *            The session with an active transaction
+	 */
+	private static void convert(Session s) {
+		Date tomorrow = since(-1);
+		String legacy = LEGACY_PREFIX + format(tomorrow, "yyyyMMdd");
+		Log.i("UserDataPartitions", "converting data.userdata, keeping the "
+				+ "existing messages in data." + legacy);
+		s.createSQLQuery("ALTER TABLE data.userdata RENAME TO " + legacy)
+				.executeUpdate();
+		s.createSQLQuery(
+				"CREATE TABLE data.userdata (LIKE data." + legacy
+						+ " INCLUDING DEFAULTS) PARTITION BY RANGE (time)")
+				.executeUpdate();
+		s.createSQLQuery(
+				"ALTER TABLE data.userdata ATTACH PARTITION data." + legacy
+						+ " FOR VALUES FROM (MINVALUE) TO ('"
+						+ format(tomorrow, "yyyy-MM-dd") + "')")
+				.executeUpdate();
+		s.createSQLQuery(
+				"CREATE TABLE data." + DEFAULT
+						+ " PARTITION OF data.userdata DEFAULT")
+				.executeUpdate();
+	}
+
+	/**
+	 * Creates the partitioned table and its default partition on a new
+	 * database.
+	 * 
+	 * @param s
+	 *            The session with an active transaction
+	 */
+	private static void createTable(Session s) {
+		Log.i("UserDataPartitions", "creating data.userdata");
+		s.createSQLQuery(
+				"CREATE TABLE data.userdata (id integer NOT NULL, "
+						+ "time timestamp NOT NULL, "
+						+ "position geometry NOT NULL, "
+						+ "speed double precision, "
+						+ "connectionhash varchar(255), road_id integer, "
+						+ "to_start boolean, to_end boolean) "
+						+ "PARTITION BY RANGE (time)").executeUpdate();
+		s.createSQLQuery(
+				"CREATE TABLE data." + DEFAULT
+						+ " PARTITION OF data.userdata DEFAULT")
+				.executeUpdate();
+	}
+
+	/**
+	 * Creates the missing indexes of the partitioned table, which are
+	 * inherited by all partitions. A primary key would have to contain the
+	 * time, so the updates of hibernate by the id use a plain index.
+	 * 
+	 * @param s
+	 *            The session with an active transaction
+	 */
+	private static void createIndexes(Session s) {
+		s.createSQLQuery(
+				"CREATE INDEX IF NOT EXISTS userdata_id_idx ON data.userdata (id)")
+				.executeUpdate();
+		s.createSQLQuery(
+				"CREATE INDEX IF NOT EXISTS userdata_road_idx ON data.userdata (road_id)")
+				.executeUpdate();
+		s.createSQLQuery(
+				"CREATE INDEX IF NOT EXISTS userdata_hash_time_idx ON data.userdata (connectionhash, time)")
+				.executeUpdate();
+	}
+
+	/**
+	 * Creates the partition of a day. Rows of the day in the default
+	 * partition would make PostgreSQL refuse the new partition, so the
+	 * default partition is detached, its rows of the day are moved to the
+	 * new partition and it is attached again.
+	 * 
+	 * @param name
+	 *            The name of the partition
+	 * @param day
+	 *            The start of the day
+	 * @param withDefault
+	 *            <code>true</code>, if the default partition exists
+	 * @return <code>true</code>, if the partition was created
+	 */
+	private static boolean create(String name, Date day, boolean withDefault) {
+		String range = "time >= '" + format(day, "yyyy-MM-dd")
+				+ "' AND time < '" + format(next(day), "yyyy-MM-dd") + "'";
+		Session s = Database.session();
+		s.beginTransaction();
+		try {
+			boolean move = withDefault
+					&& s.createSQLQuery(
+							"SELECT 1 FROM data." + DEFAULT + " WHERE " + range
+									+ " LIMIT 1").uniqueResult() != null;
+			if (move) {
+				s.createSQLQuery(
+						"ALTER TABLE data.userdata DETACH PARTITION data."
+								+ DEFAULT).executeUpdate();
+			}
+			s.createSQLQuery(
+					"CREATE TABLE data." + name
+							+ " PARTITION OF data.userdata FOR VALUES FROM ('"
+							+ format(day, "yyyy-MM-dd") + "') TO ('"
+							+ format(next(day), "yyyy-MM-dd") + "')")
+					.executeUpdate();
+			if (move) {
+				int moved = s.createSQLQuery(
+						"INSERT INTO data." + name + " SELECT * FROM data."
+								+ DEFAULT + " WHERE " + range).executeUpdate();
+				s.createSQLQuery(
+						"DELETE FROM data." + DEFAULT + " WHERE " + range)
+						.executeUpdate();
+				s.createSQLQuery(
+						"ALTER TABLE data.userdata ATTACH PARTITION data."
+								+ DEFAULT + " DEFAULT").executeUpdate();
+				Log.i("UserDataPartitions", moved + " message(s) moved from "
+						+ DEFAULT + " to " + name);
+			}
+			Database.end(true);
+			return true;
+		} catch (Exception e) {
+			Database.end(false);
+			Log.e("UserDataPartitions",
+					e.getClass() + "@create: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the names of all partitions.
+	 * 
+	 * @return The names of the partitions
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<String> partitions() {
+		Session s = Database.session();
+		s.beginTransaction();
+		try {
+			List<String> names = (List<String>) s
+					.createSQLQuery(
+							"SELECT CAST(c.relname AS varchar) FROM pg_inherits i "
+									+ "INNER JOIN pg_class c ON c.oid = i.inhrelid "
+									+ "WHERE i.inhparent = CAST('data.userdata' AS regclass)")
+					.list();
+			Database.end(false);
+			return names;
+		} catch (Exception e) {
+			Database.end(false);
+			Log.e("UserDataPartitions",
+					e.getClass() + "@partitions: " + e.getMessage());
+			return new ArrayList<String>();
+		}
+	}
+
+	/**
+	 * Executes a statement in its own transaction.
+	 * 
+	 * @param sql
+	 *            The statement
+	 * @return <code>true</code>, if the statement was successful
+	 */
+	private static boolean execute(String sql) {
+		Session s = Database.session();
+		s.beginTransaction();
+		try {
+			s.createSQLQuery(sql).executeUpdate();
+			Database.end(true);
+			return true;
+		} catch (Exception e) {
+			Database.end(false);
+			Log.e("UserDataPartitions",
+					e.getClass() + "@execute: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the end of the range of a partition.
+	 * 
+	 * @param name
+	 *            The name of the partition
+	 * @return The first day after the partition or <code>null</code>, if the
+	 *         partition is not bounded
+	 */
+	private static Date end(String name) {
+		if (name.startsWith(LEGACY_PREFIX)) {
+			return parse(name.substring(LEGACY_PREFIX.length()));
+		}
+		Date start = parse(name.substring(PREFIX.length()));
+		return (start != null) ? next(start) : null;
+	}
+
+	/**
+	 * Returns the start of the following day.
+	 * 
+	 * @param day
+	 *            The start of a day
+	 * @return The start of the next day
+	 */
+	private static Date next(Date day) {
+		Calendar c = Calendar.getInstance();
+		c.setTime(day);
+		c.add(Calendar.DAY_OF_MONTH, 1);
+		return c.getTime();
+	}
+
+	/**
+	 * Formats a day.
+	 * 
+	 * @param day
+	 *            The day
+	 * @param pattern
+	 *            The pattern of the {@link SimpleDateFormat}
+	 * @return The formatted day
+	 */
+	private static String format(Date day, String pattern) {
+		return new SimpleDateFormat(pattern).format(day);
+	}
+
+	/**
+	 * Parses the day in the name of a partition.
+	 * 
+	 * @param text
+	 *            The day as <code>yyyyMMdd</code>
+	 * @return The day or <code>null</code>, if the text is no day
+	 */
+	private static Date parse(String text) {
+		if (!text.matches("\\d{8}")) {
+			return null;
+		}
+		try {
+			return new SimpleDateFormat("yyyyMMdd").parse(text);
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+}
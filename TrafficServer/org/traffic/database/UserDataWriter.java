@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.hibernate.JDBCException;
+import org.hibernate.Session;
+import org.hibernate.exception.JDBCConnectionException;
+import org.hibernate.jdbc.Work;
+import org.traffic.logging.Log;
+import org.traffic.models.traffic.UserData;
+import org.traffic.services.Service;
+
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Collects the {@link UserData} of the update-requests and writes them to the
+ * database in batches. A batch is written as soon as <code>BATCH_SIZE</code>
+ * messages are waiting or <code>FLUSH_INTERVAL</code> has passed. All messages
+ * of a flush are inserted in one transaction with JDBC-batches of
+ * <code>BATCH_SIZE</code> rows.
+ * <p>
+ * If the queue is full, the message is saved directly by the calling thread,
+ * which slows down the handlers until the writer has caught up. With a
+ * {@link UserDataJournal} the queued messages survive a crash of the server.
+ * <p>
+ * A failed flush is queued again as far as the capacity allows. While the
+ * database is unreachable this is repeated, otherwise the batch is split
+ * after <code>MAX_FAILURES</code> failures until the refused messages are
+ * found. They are moved to the rejected messages of the journal, so they
+ * can not block the following messages.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 243 $
+ */
+public class UserDataWriter extends Service {
+
+	/** Number of messages per JDBC-batch and threshold for a flush */
+	private static final int BATCH_SIZE = 500;
+
+	/** Maximal time in millis between two flushes */
+	private static final long FLUSH_INTERVAL = 2000;
+
+	/** Maximal number of waiting messages */
+	private static final int CAPACITY = 50000;
+
+	/** Number of failed flushes before the batch is split */
+	private static final int MAX_FAILURES = 3;
+
+	/** Statement to insert a message */
+	private static final String INSERT_SQL = "INSERT INTO data.userdata"
+			+ "(id, time, position, speed, connectionhash, road_id, to_start, to_end) "
+			+ "VALUES (nextval('data.userdata_id_seq'), ?, "
+			+ "ST_SetSRID(ST_GeomFromWKB(?), 4326), ?, ?, ?, ?, ?)";
+
+	/** The one and only instance */
+	private static UserDataWriter instance;
+
+	/** The waiting messages, guarded by itself */
+	private final LinkedList<UserData> queue = new LinkedList<UserData>();
+
+	/** The journal or <code>null</code> */
+	private final UserDataJournal journal;
+
+	/** The segments of the journal, which are not committed yet */
+	private final List<File> pendingSegments = new LinkedList<File>();
+
+	/** Time of the last flush */
+	private long lastFlush = System.currentTimeMillis();
+
+	/** Number of failed flushes in a row */
+	private int failures = 0;
+
+	/**
+	 * Custom-Constructor with the journal.
+	 * 
+	 * @param journal
+	 *            The journal or <code>null</code>
+	 */
+	private UserDataWriter(UserDataJournal journal) {
+		setName("UserDataWriter");
+		this.journal = journal;
+	}
+
+	/**
+	 * Creates and starts the writer. The messages left in the journal by a
+	 * previous run are written before.
+	 * 
+	 * @param journalFolder
+	 *            The folder of the journal or <code>null</code> to keep the
+	 *            messages in memory only
+	 * @throws IOException
+	 *             The journal could not be opened
+	 */
+	public static synchronized void initialize(File journalFolder)
+			throws IOException {
+		if (instance != null)
+			throw new IllegalStateException("UserDataWriter already started");
+
+		UserDataJournal journal = null;
+		if (journalFolder != null) {
+			journal = new UserDataJournal(journalFolder);
+			for (File f : journal.getClosedSegments()) {
+				List<UserData> l = UserDataJournal.read(f);
+				try {
+					insert(l);
+				} catch (RuntimeException e) {
+					if (isUnreachable(e)) {
+						throw e;
+					}
+					insertSplitting(l, journal);
+				}
+				Log.i("UserDataWriter", l.size() + " message(s) of "
+						+ f.getName() + " recovered");
+				f.delete();
+			}
+		}
+		instance = new UserDataWriter(journal);
+		instance.start();
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The writer or <code>null</code>, if it was not initialized
+	 */
+	public static UserDataWriter getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Saves the message. It is queued, if there is space left, otherwise it
+	 * is saved immediately within a new transaction of the calling thread.
+	 * 
+	 * @param d
+	 *            The message
+	 */
+	public void save(UserData d) {
+		synchronized (queue) {
+			if (queue.size() < CAPACITY) {
+				try {
+					if (journal != null) {
+						journal.append(d);
+					}
+					queue.add(d);
+					if (queue.size() >= BATCH_SIZE) {
+						queue.notify();
+					}
+					return;
+				} catch (IOException e) {
+					Log.e("UserDataWriter",
+							e.getClass() + "@save: " + e.getMessage());
+				}
+			}
+		}
+
+		// saving directly
+		Session s = Database.session();
+		s.beginTransaction();
+		s.save(d);
+		Database.end(true);
+	}
+
+	/**
+	 * Returns the number of waiting messages.
+	 * 
+	 * @return The number of messages
+	 */
+	public int getQueued() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	@Override
+	protected void serve() {
+		List<UserData> batch;
+		synchronized (queue) {
+			// waiting for enough messages or the end of the interval
+			long now = System.currentTimeMillis();
+			while (queue.size() < BATCH_SIZE
+					&& now < lastFlush + FLUSH_INTERVAL) {
+				try {
+					queue.wait(lastFlush + FLUSH_INTERVAL - now);
+				} catch (InterruptedException e) {
+					Log.e("UserDataWriter",
+							e.getClass() + "@serve: " + e.getMessage());
+				}
+				now = System.currentTimeMillis();
+			}
+			lastFlush = now;
+			if (queue.isEmpty()) {
+				return;
+			}
+
+			// all queued messages are in the closed segment
+			if (journal != null) {
+				try {
+					pendingSegments.add(journal.rotate());
+				} catch (IOException e) {
+					Log.e("UserDataWriter",
+							e.getClass() + "@serve: " + e.getMessage());
+				}
+			}
+			batch = new ArrayList<UserData>(queue);
+			queue.clear();
+		}
+
+		long start = System.currentTimeMillis();
+		try {
+			insert(batch);
+		} catch (Exception e) {
+			Log.e("UserDataWriter", e.getClass() + "@serve: " + e.getMessage());
+			if (isUnreachable(e) || ++failures < MAX_FAILURES) {
+				requeue(batch);
+				return;
+			}
+			insertSplitting(batch, journal);
+		}
+		failures = 0;
+		for (File f : pendingSegments) {
+			f.delete();
+		}
+		pendingSegments.clear();
+		Log.d("UserDataWriter", batch.size() + " message(s) written in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Puts the messages of a failed flush back to the head of the queue for
+	 * the next try. Messages beyond the capacity are rejected.
+	 * 
+	 * @param batch
+	 *            The messages
+	 */
+	private void requeue(List<UserData> batch) {
+		List<UserData> overflow;
+		synchronized (queue) {
+			int free = Math.max(0, CAPACITY - queue.size());
+			if (batch.size() <= free) {
+				queue.addAll(0, batch);
+				overflow = null;
+			} else {
+				queue.addAll(0, batch.subList(0, free));
+				overflow = batch.subList(free, batch.size());
+			}
+		}
+		if (overflow != null) {
+			reject(overflow, journal);
+		}
+		try {
+			Thread.sleep(FLUSH_INTERVAL);
+		} catch (InterruptedException e) {
+			Log.e("UserDataWriter", e.getClass() + "@requeue: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Checks, if an insert failed because the database is unreachable.
+	 * 
+	 * @param e
+	 *            The exception of the insert
+	 * @return <code>true</code>, if the connection failed
+	 */
+	private static boolean isUnreachable(Exception e) {
+		if (e instanceof JDBCConnectionException) {
+			return true;
+		}
+		if (e instanceof JDBCException) {
+			String state = ((JDBCException) e).getSQLState();
+			return state != null && state.startsWith("08");
+		}
+		return false;
+	}
+
+	/**
+	 * Inserts the messages and splits them into halves, if the insert fails.
+	 * A single message failing is rejected.
+	 * 
+	 * @param batch
+	 *            The messages
+	 * @param journal
+	 *            The journal or <code>null</code>
+	 */
+	private static void insertSplitting(List<UserData> batch,
+			UserDataJournal journal) {
+		try {
+			insert(batch);
+		} catch (RuntimeException e) {
+			if (batch.size() == 1) {
+				Log.e("UserDataWriter", e.getClass() + "@insertSplitting: "
+						+ e.getMessage());
+				reject(batch, journal);
+				return;
+			}
+			int half = batch.size() / 2;
+			insertSplitting(batch.subList(0, half), journal);
+			insertSplitting(batch.subList(half, batch.size()), journal);
+		}
+	}
+
+	/**
+	 * Moves messages, which could not be written, to the rejected messages of
+	 * the journal. Without a journal they are only logged.
+	 * 
+	 * @param rejected
+	 *            The messages
+	 * @param journal
+	 *            The journal or <code>null</code>
+	 */
+	private static void reject(List<UserData> rejected, UserDataJournal journal) {
+		Log.w("UserDataWriter", rejected.size() + " message(s) rejected");
+		if (journal != null) {
+			try {
+				journal.reject(rejected);
+				return;
+			} catch (IOException e) {
+				Log.e("UserDataWriter",
+						e.getClass() + "@reject: " + e.getMessage());
+			}
+		}
+		for (UserData d : rejected) {
+			Log.w("UserDataWriter", "rejected " + UserDataJournal.format(d));
+		}
+	}
+
+	/**
+	 * Inserts the messages with JDBC-batches within one transaction.
+	 * 
+	 * @param batch
+	 *            The messages
+	 */
+	private static void insert(final List<UserData> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		Session s = Database.session();
+		s.beginTransaction();
+		try {
+			s.doWork(new Work() {
+				@Override
+				public void execute(Connection cn) throws SQLException {
+					WKBWriter wkb = new WKBWriter();
+					PreparedStatement ps = cn.prepareStatement(INSERT_SQL);
+					try {
+						int count = 0;
+						for (UserData d : batch) {
+							ps.setTimestamp(1, new Timestamp(d.getTime()
+									.getTime()));
+							ps.setBytes(2, wkb.write(d.getPosition()));
+							ps.setDouble(3, d.getSpeed());
+							ps.setString(4, d.getConnectionhash());
+							if (d.getRoad_id() != null) {
+								ps.setInt(5, d.getRoad_id());
+							} else {
+								ps.setNull(5, Types.INTEGER);
+							}
+							setBoolean(ps, 6, d.getTo_start());
+							setBoolean(ps, 7, d.getTo_end());
+							ps.addBatch();
+							if (++count % BATCH_SIZE == 0) {
+								ps.executeBatch();
+							}
+						}
+						ps.executeBatch();
+					} finally {
+						ps.close();
+					}
+				}
+			});
+			Database.end(true);
+		} catch (RuntimeException e) {
+			Database.end(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets a nullable boolean parameter.
+	 * 
+	 * @param ps
+	 *            The statement
+	 * @param index
+	 *            The index of the parameter
+	 * @param value
+	 *            The value or <code>null</code>
+	 * @throws SQLException
+	 *             Setting failed
+	 */
+	private static void setBoolean(PreparedStatement ps, int index,
+			Boolean value) throws SQLException {
+		if (value != null) {
+			ps.setBoolean(index, value);
+		} else {
+			ps.setNull(index, Types.BOOLEAN);
+		}
+	}
+}
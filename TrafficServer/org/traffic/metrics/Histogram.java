@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in millis. The buckets grow by powers of
+ * two, bucket <code>b</code> counts the values from <code>2^(b-1)</code> to
+ * <code>2^b - 1</code>. The last bucket takes all bigger values, so the
+ * percentiles are upper bounds within a factor of two.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 264 $
+ */
+public class Histogram {
+
+	/** Number of buckets, up to about 17 minutes */
+	private static final int BUCKETS = 22;
+
+	/** The number of values per bucket */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Adds a value.
+	 * 
+	 * @param millis
+	 *            The duration in millis
+	 */
+	public void record(long millis) {
+		int bucket = (millis <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+		counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+	}
+
+	/**
+	 * Returns the number of values.
+	 * 
+	 * @return The number of values
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the upper bound of the given percentile.
+	 * 
+	 * @param p
+	 *            The percentile between 0 and 1, e.g. 0.95
+	 * @return The duration in millis, <code>0</code> without values
+	 */
+	public long percentile(double p) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		long rank = (long) Math.ceil(p * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && seen > 0) {
+				return (1L << i) - 1;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return "p50=" + percentile(0.5) + ", p95=" + percentile(0.95)
+				+ ", p99=" + percentile(0.99);
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import net.sf.json.JSONObject;
+
+import org.traffic.database.ClientCache;
+import org.traffic.logging.Log;
+import org.traffic.server.ConnectionSelector;
+import org.traffic.server.RequestExecutor;
+import org.traffic.server.RequestStatistics;
+import org.traffic.services.ServiceStatistics;
+
+import com.mchange.v2.c3p0.C3P0Registry;
+import com.mchange.v2.c3p0.PooledDataSource;
+
+/**
+ * Registry of the metrics of the server. A snapshot collects the figures of
+ * the connections, the {@link RequestStatistics} of each request-type, the
+ * c3p0 connection-pool, the {@link ServiceStatistics} of the services and
+ * the caches under flat names like <code>requests.2.service.p95</code>.
+ * <p>
+ * The registry is a {@link DynamicMBean}, so every figure is an attribute of
+ * <code>org.traffic:type=Metrics</code> in JMX. The {@link StatsServer}
+ * delivers the same snapshot as text or JSON.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 264 $
+ */
+public class Metrics implements DynamicMBean {
+
+	/** The name of the MBean */
+	public static final String OBJECT_NAME = "org.traffic:type=Metrics";
+
+	/** The one and only instance */
+	private static Metrics instance = new Metrics();
+
+	/** The statistics of the registered services */
+	private final List<ServiceStatistics> services = new CopyOnWriteArrayList<ServiceStatistics>();
+
+	/**
+	 * Default-Constructor
+	 */
+	private Metrics() {
+	}
+
+	/**
+	 * Adds the statistics of a service.
+	 * 
+	 * @param stats
+	 *            The statistics
+	 */
+	public void register(ServiceStatistics stats) {
+		services.add(stats);
+	}
+
+	/**
+	 * Returns the statistics of the registered services.
+	 * 
+	 * @return The statistics
+	 */
+	public List<ServiceStatistics> getServiceStatistics() {
+		return Collections.unmodifiableList(services);
+	}
+
+	/**
+	 * Registers the metrics at the platform MBean-server.
+	 * 
+	 * @throws JMException
+	 *             The registration failed
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName(OBJECT_NAME));
+	}
+
+	/**
+	 * Collects the current figures.
+	 * 
+	 * @return The figures ordered by their names
+	 */
+	public Map<String, Number> snapshot() {
+		Map<String, Number> m = new TreeMap<String, Number>();
+		RequestExecutor executor = RequestExecutor.getInstance();
+
+		// connections in the different stages
+		m.put("connections.reading", ConnectionSelector.getReadingConnections());
+		m.put("connections.parsing", executor.getWaitingConnections());
+		m.put("connections.waiting", executor.getWaitingRequests());
+		m.put("connections.handling", executor.getActiveHandlers());
+
+		// requests
+		for (RequestStatistics stats : executor.getStatistics()) {
+			String prefix = "requests." + stats.getType() + ".";
+			m.put(prefix + "processed", stats.getProcessed());
+			m.put(prefix + "failed", stats.getFailed());
+			m.put(prefix + "rejected", stats.getRejected());
+			m.put(prefix + "queued", stats.getQueued());
+			m.put(prefix + "wait.avg", stats.getAverageWaitTime());
+			m.put(prefix + "wait.max", stats.getMaxWaitTime());
+			m.put(prefix + "service.avg", stats.getAverageServiceTime());
+			m.put(prefix + "service.max", stats.getMaxServiceTime());
+			Histogram h = stats.getServiceTimes();
+			m.put(prefix + "service.p50", h.percentile(0.5));
+			m.put(prefix + "service.p95", h.percentile(0.95));
+			m.put(prefix + "service.p99", h.percentile(0.99));
+			m.put(prefix + "db.avg", stats.getAverageDatabaseTime());
+		}
+
+		// connection-pool
+		try {
+			int total = 0, busy = 0, idle = 0, awaiting = 0;
+			for (Object o : C3P0Registry.getPooledDataSources()) {
+				PooledDataSource ds = (PooledDataSource) o;
+				total += ds.getNumConnectionsAllUsers();
+				busy += ds.getNumBusyConnectionsAllUsers();
+				idle += ds.getNumIdleConnectionsAllUsers();
+				awaiting += ds.getNumThreadsAwaitingCheckoutDefaultUser();
+			}
+			m.put("pool.connections", total);
+			m.put("pool.busy", busy);
+			m.put("pool.idle", idle);
+			m.put("pool.awaiting", awaiting);
+		} catch (Exception e) {
+			Log.e("Metrics", e.getClass() + "@snapshot: " + e.getMessage());
+		}
+
+		// services
+		for (ServiceStatistics stats : services) {
+			String prefix = "services." + stats.getName() + ".";
+			m.put(prefix + "runs", stats.getRuns());
+			m.put(prefix + "failed", stats.getFailed());
+			m.put(prefix + "duration.last", stats.getLastDuration());
+			m.put(prefix + "duration.avg", stats.getAverageDuration());
+			m.put(prefix + "duration.max", stats.getMaxDuration());
+			m.put(prefix + "db.last", stats.getLastDatabaseTime());
+			m.put(prefix + "rows.last", stats.getLastRows());
+			m.put(prefix + "rows.total", stats.getRows());
+		}
+
+		// caches
+		ClientCache clients = ClientCache.getInstance();
+		m.put("cache.clients.size", clients.size());
+		m.put("cache.clients.hits", clients.getHits());
+		m.put("cache.clients.misses", clients.getMisses());
+		return m;
+	}
+
+	/**
+	 * Returns the snapshot as plain text with one figure per line.
+	 * 
+	 * @return The text
+	 */
+	public String toText() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+			sb.append(e.getKey()).append(' ').append(e.getValue())
+					.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the snapshot as JSON-object.
+	 * 
+	 * @return The JSON-text
+	 */
+	public String toJson() {
+		return JSONObject.fromObject(snapshot()).toString();
+	}
+
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Number value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> m = snapshot();
+		AttributeList list = new AttributeList();
+		for (String name : attributes) {
+			if (m.containsKey(name)) {
+				list.add(new Attribute(name, m.get(name)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName()
+				+ " is read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params,
+			String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Number> m = snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[m.size()];
+		int i = 0;
+		for (Map.Entry<String, Number> e : m.entrySet()) {
+			attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue()
+					.getClass().getName(), e.getKey(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics of the server",
+				attributes, null, null, null);
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static Metrics getInstance() {
+		return instance;
+	}
+}
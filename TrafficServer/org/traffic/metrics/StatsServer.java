@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.traffic.logging.Log;
+
+/**
+ * Delivers the {@link Metrics} on a port of the local interface. The first
+ * line of the request selects the format: a line containing
+ * <code>json</code> gets the JSON-object, every other line the plain text.
+ * A line starting with <code>GET </code> is answered as HTTP, so the figures
+ * can be read by <code>curl http://localhost:10102/json</code> as well as by
+ * <code>echo | nc localhost 10102</code>.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 264 $
+ */
+public class StatsServer extends Thread {
+
+	/** Timeout for reading the request in millis */
+	private static final int TIMEOUT = 5000;
+
+	/** The socket of the server */
+	private final ServerSocket server;
+
+	/**
+	 * Custom-Constructor with the port of the server.
+	 * 
+	 * @param port
+	 *            The port on the local interface
+	 * @throws IOException
+	 *             The port could not be bound
+	 */
+	public StatsServer(int port) throws IOException {
+		super("StatsServer");
+		server = new ServerSocket(port, 5, InetAddress.getByName("127.0.0.1"));
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while (!server.isClosed()) {
+			Socket socket = null;
+			try {
+				socket = server.accept();
+				socket.setSoTimeout(TIMEOUT);
+				answer(socket);
+			} catch (IOException e) {
+				Log.e("StatsServer", e.getClass() + "@run: " + e.getMessage());
+			} finally {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// nothing to do
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the request and writes the metrics.
+	 * 
+	 * @param socket
+	 *            The connection of the client
+	 * @throws IOException
+	 *             The connection failed
+	 */
+	private void answer(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), "UTF-8"));
+		String request = in.readLine();
+		if (request == null) {
+			request = "";
+		}
+		boolean json = request.contains("json");
+		byte[] body = (json ? Metrics.getInstance().toJson() : Metrics
+				.getInstance().toText()).getBytes("UTF-8");
+
+		OutputStream out = socket.getOutputStream();
+		if (request.startsWith("GET ")) {
+			// skipping the headers of the request
+			String line;
+			while ((line = in.readLine()) != null && line.length() > 0) {
+			}
+			out.write(("HTTP/1.0 200 OK\r\nContent-Type: "
+					+ (json ? "application/json" : "text/plain")
+					+ "; charset=UTF-8\r\nContent-Length: " + body.length + "\r\n\r\n")
+					.getBytes("UTF-8"));
+		}
+		out.write(body);
+		out.flush();
+	}
+}
@@ -0,0 +1,646 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
+import org.traffic.database.Database;
+import org.traffic.database.RoadStripIndex;
+import org.traffic.database.SpeedAggregator;
+import org.traffic.logging.Log;
+import org.traffic.utils.GeomHelper;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Calculates routes on the graph of the
+ * {@link org.traffic.models.traffic.RoadStrip}s. The endpoints of the strips
+ * are the nodes, each strip is an edge in both directions. The weight of an
+ * edge is the time to pass it with the speed of the {@link SpeedAggregator},
+ * the speed limit of the road or <code>DEFAULT_SPEED</code>. Strips with a
+ * congestion get <code>CONGESTION_PENALTY</code> seconds added.
+ * <p>
+ * The search is an A* with the beeline at <code>MAX_SPEED</code> as
+ * heuristic. The graph is built from the {@link RoadStripIndex} and rebuilt
+ * when the index was reloaded.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 261 $
+ */
+public class Router {
+
+	/** Speed in km/h used if neither a measured speed nor a limit is known */
+	private static final double DEFAULT_SPEED = 50;
+
+	/** Highest speed in km/h used for the weights and the heuristic */
+	private static final double MAX_SPEED = 130;
+
+	/** Lowest speed in km/h used for the weights */
+	private static final double MIN_SPEED = 5;
+
+	/** Seconds added to a strip with a congestion */
+	private static final double CONGESTION_PENALTY = 600;
+
+	/** Maximal distance in degree between a waypoint and the next strip */
+	private static final double SNAP_DISTANCE = 0.01;
+
+	/** Separator of the waypoints in the stored text */
+	private static final String WAYPOINT_SEPARATOR = ";";
+
+	/** The one and only instance */
+	private static Router instance = new Router();
+
+	/** The current graph */
+	private volatile Graph graph = null;
+
+	/**
+	 * Default-Constructor
+	 */
+	private Router() {
+	}
+
+	/**
+	 * Calculates the fastest route through all waypoints.
+	 * 
+	 * @param waypoints
+	 *            The start, the transits and the destination
+	 * @param congested
+	 *            The ids of the strips with a congestion
+	 * @return The route or <code>null</code>, if a waypoint is too far from
+	 *         the roads or there is no connection
+	 */
+	public LineString route(List<Point> waypoints, Set<Integer> congested) {
+		long start = System.currentTimeMillis();
+		Graph g = getGraph();
+		List<Coordinate> coords = new ArrayList<Coordinate>();
+		for (int i = 0; i < waypoints.size() - 1; i++) {
+			int from = g.snap(waypoints.get(i));
+			int to = g.snap(waypoints.get(i + 1));
+			if (from < 0 || to < 0) {
+				return null;
+			}
+			if (!search(g, from, to, congested, coords)) {
+				return null;
+			}
+		}
+
+		if (coords.size() < 2) {
+			// start and destination on the same node
+			coords.clear();
+			coords.add(waypoints.get(0).getCoordinate());
+			coords.add(waypoints.get(waypoints.size() - 1).getCoordinate());
+		}
+		double[] points = new double[coords.size() * 2];
+		for (int i = 0; i < coords.size(); i++) {
+			points[2 * i] = coords.get(i).x;
+			points[2 * i + 1] = coords.get(i).y;
+		}
+		Log.d("Router", "route with " + coords.size() + " points in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return GeomHelper.createLineString(points);
+	}
+
+	/**
+	 * Searches the fastest path between two nodes and appends its
+	 * coordinates.
+	 * 
+	 * @param g
+	 *            The graph
+	 * @param from
+	 *            The start node
+	 * @param to
+	 *            The destination node
+	 * @param congested
+	 *            The ids of the strips with a congestion
+	 * @param coords
+	 *            The coordinates of the route so far
+	 * @return <code>false</code>, if there is no path
+	 */
+	private boolean search(Graph g, int from, int to, Set<Integer> congested,
+			List<Coordinate> coords) {
+		int n = g.nodeX.length;
+		double[] cost = new double[n];
+		int[] prevEdge = new int[n];
+		boolean[] settled = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			cost[i] = Double.MAX_VALUE;
+			prevEdge[i] = -1;
+		}
+		Heap open = new Heap();
+		cost[from] = 0;
+		open.push(from, heuristic(g, from, to));
+
+		SpeedAggregator speeds = SpeedAggregator.getInstance();
+		while (!open.isEmpty()) {
+			int node = open.pop();
+			if (settled[node]) {
+				continue;
+			}
+			settled[node] = true;
+			if (node == to) {
+				break;
+			}
+			for (int e = g.offsets[node]; e < g.offsets[node + 1]; e++) {
+				int target = g.targets[e];
+				if (settled[target]) {
+					continue;
+				}
+				int strip = g.strips[e] >>> 1;
+				boolean toStart = (g.strips[e] & 1) != 0;
+				double speed = speeds.getSpeed(strip, toStart);
+				if (speed <= 0) {
+					speed = (g.maxspeeds[strip] > 0) ? g.maxspeeds[strip]
+							: DEFAULT_SPEED;
+				}
+				speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+				double c = cost[node] + g.lengths[strip] / (speed / 3.6);
+				if (congested != null && congested.contains(strip)) {
+					c += CONGESTION_PENALTY;
+				}
+				if (c < cost[target]) {
+					cost[target] = c;
+					prevEdge[target] = e;
+					open.push(target, c + heuristic(g, target, to));
+				}
+			}
+		}
+		if (!settled[to]) {
+			return false;
+		}
+
+		// collecting the edges from the destination back to the start
+		List<Integer> edges = new ArrayList<Integer>();
+		for (int node = to; node != from;) {
+			int e = prevEdge[node];
+			edges.add(e);
+			node = g.sources[e];
+		}
+		for (int i = edges.size() - 1; i >= 0; i--) {
+			int e = edges.get(i);
+			Coordinate[] c = g.ways[g.strips[e] >>> 1].getCoordinates();
+			boolean reverse = (g.strips[e] & 1) != 0;
+			for (int j = 0; j < c.length; j++) {
+				Coordinate next = reverse ? c[c.length - 1 - j] : c[j];
+				if (coords.isEmpty()
+						|| !coords.get(coords.size() - 1).equals2D(next)) {
+					coords.add(next);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Estimates the time between two nodes with the beeline at
+	 * <code>MAX_SPEED</code>.
+	 * 
+	 * @param g
+	 *            The graph
+	 * @param a
+	 *            The first node
+	 * @param b
+	 *            The second node
+	 * @return The time in seconds
+	 */
+	private static double heuristic(Graph g, int a, int b) {
+		return distance(g.nodeX[a], g.nodeY[a], g.nodeX[b], g.nodeY[b])
+				/ (MAX_SPEED / 3.6);
+	}
+
+	/**
+	 * Calculates the distance between two positions.
+	 * 
+	 * @param x1
+	 *            Longitude of the first position
+	 * @param y1
+	 *            Latitude of the first position
+	 * @param x2
+	 *            Longitude of the second position
+	 * @param y2
+	 *            Latitude of the second position
+	 * @return The distance in meters
+	 */
+	private static double distance(double x1, double y1, double x2, double y2) {
+		double dx = (x2 - x1) * 111320 * Math.cos(Math.toRadians((y1 + y2) / 2));
+		double dy = (y2 - y1) * 110540;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Returns the graph of the current strips. It is built, if the index has
+	 * been reloaded since the last call.
+	 * 
+	 * @return The graph
+	 */
+	private Graph getGraph() {
+		int version = RoadStripIndex.getInstance().getVersion();
+		Graph g = graph;
+		if (g == null || g.version != version) {
+			synchronized (this) {
+				g = graph;
+				if (g == null || g.version != version) {
+					g = new Graph(version);
+					graph = g;
+				}
+			}
+		}
+		return g;
+	}
+
+	/**
+	 * Loads the ids of all strips with a congestion.
+	 * 
+	 * @param s
+	 *            The current session
+	 * @return The ids
+	 */
+	@SuppressWarnings("unchecked")
+	public static Set<Integer> loadCongestedStrips(Session s) {
+		List<Integer> ids = (List<Integer>) s
+				.createSQLQuery(
+						"SELECT DISTINCT road_id FROM data.congestions "
+								+ "WHERE road_id IS NOT NULL")
+				.addScalar("road_id", StandardBasicTypes.INTEGER).list();
+		return new HashSet<Integer>(ids);
+	}
+
+	/**
+	 * Converts waypoints into the text stored with a
+	 * {@link org.traffic.models.traffic.Route}.
+	 * 
+	 * @param waypoints
+	 *            The waypoints
+	 * @return The text
+	 */
+	public static String encodeWaypoints(List<Point> waypoints) {
+		StringBuffer sb = new StringBuffer();
+		for (Point p : waypoints) {
+			if (sb.length() > 0) {
+				sb.append(WAYPOINT_SEPARATOR);
+			}
+			sb.append(p.getX()).append(",").append(p.getY());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the waypoints stored with a
+	 * {@link org.traffic.models.traffic.Route}.
+	 * 
+	 * @param text
+	 *            The stored text
+	 * @return The waypoints or <code>null</code>, if the text contains none
+	 */
+	public static List<Point> decodeWaypoints(String text) {
+		if (text == null) {
+			return null;
+		}
+		List<Point> waypoints = new ArrayList<Point>();
+		try {
+			for (String s : text.split(WAYPOINT_SEPARATOR)) {
+				String[] v = s.split(",");
+				waypoints.add(GeomHelper.createPoint(Double.parseDouble(v[0]),
+						Double.parseDouble(v[1])));
+			}
+		} catch (RuntimeException e) {
+			// e.g. a request-URL stored by an older version
+			return null;
+		}
+		return (waypoints.size() >= 2) ? waypoints : null;
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static Router getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The nodes and edges of the strips in arrays. The edges of a node are
+	 * <code>offsets[node]</code> to <code>offsets[node + 1]</code>.
+	 */
+	private static class Graph {
+
+		/** The version of the index */
+		private final int version;
+
+		/** Longitudes of the nodes */
+		private double[] nodeX;
+
+		/** Latitudes of the nodes */
+		private double[] nodeY;
+
+		/** Start of the edges of each node */
+		private int[] offsets;
+
+		/** Source node of each edge */
+		private int[] sources;
+
+		/** Target node of each edge */
+		private int[] targets;
+
+		/** Strip of each edge, shifted by one bit, flag for end to start */
+		private int[] strips;
+
+		/** Geometry of each strip */
+		private LineString[] ways;
+
+		/** Length of each strip in meters */
+		private double[] lengths;
+
+		/** Speed limit of each strip in km/h or 0 */
+		private int[] maxspeeds;
+
+		/** Start node of each strip or -1 */
+		private int[] startNodes;
+
+		/** End node of each strip */
+		private int[] endNodes;
+
+		/**
+		 * Custom-Constructor building the graph of the current index.
+		 * 
+		 * @param version
+		 *            The version of the index
+		 */
+		private Graph(int version) {
+			long time = System.currentTimeMillis();
+			this.version = version;
+			RoadStripIndex index = RoadStripIndex.getInstance();
+			int maxId = index.getMaxId();
+			ways = new LineString[maxId + 1];
+			lengths = new double[maxId + 1];
+			maxspeeds = new int[maxId + 1];
+
+			// nodes by the endpoints of the strips
+			Map<Coordinate, Integer> nodes = new HashMap<Coordinate, Integer>();
+			List<Coordinate> coords = new ArrayList<Coordinate>();
+			startNodes = new int[maxId + 1];
+			endNodes = new int[maxId + 1];
+			int[] degree = new int[16];
+			int edges = 0;
+			for (int id = 0; id <= maxId; id++) {
+				LineString way = index.getWay(id);
+				if (way == null) {
+					startNodes[id] = -1;
+					continue;
+				}
+				ways[id] = way;
+				startNodes[id] = node(nodes, coords, way.getCoordinateN(0));
+				endNodes[id] = node(nodes, coords, way
+						.getCoordinateN(way.getNumPoints() - 1));
+				if (coords.size() >= degree.length) {
+					int[] bigger = new int[degree.length * 2];
+					System.arraycopy(degree, 0, bigger, 0, degree.length);
+					degree = bigger;
+				}
+				degree[startNodes[id]]++;
+				degree[endNodes[id]]++;
+				edges += 2;
+
+				Coordinate[] c = way.getCoordinates();
+				for (int i = 1; i < c.length; i++) {
+					lengths[id] += distance(c[i - 1].x, c[i - 1].y, c[i].x,
+							c[i].y);
+				}
+			}
+
+			int n = coords.size();
+			nodeX = new double[n];
+			nodeY = new double[n];
+			for (int i = 0; i < n; i++) {
+				nodeX[i] = coords.get(i).x;
+				nodeY[i] = coords.get(i).y;
+			}
+			offsets = new int[n + 1];
+			for (int i = 0; i < n; i++) {
+				offsets[i + 1] = offsets[i] + degree[i];
+			}
+			sources = new int[edges];
+			targets = new int[edges];
+			strips = new int[edges];
+			int[] fill = new int[n];
+			for (int id = 0; id <= maxId; id++) {
+				if (startNodes[id] < 0) {
+					continue;
+				}
+				addEdge(fill, startNodes[id], endNodes[id], id << 1);
+				addEdge(fill, endNodes[id], startNodes[id], (id << 1) | 1);
+			}
+			loadSpeedLimits();
+			Log.i("Router", n + " nodes and " + edges + " edges built in "
+					+ (System.currentTimeMillis() - time) + "ms");
+		}
+
+		/**
+		 * Returns the node of a coordinate, which is created if needed.
+		 * 
+		 * @param nodes
+		 *            The nodes by coordinate
+		 * @param coords
+		 *            The coordinates by node
+		 * @param c
+		 *            The coordinate
+		 * @return The node
+		 */
+		private static int node(Map<Coordinate, Integer> nodes,
+				List<Coordinate> coords, Coordinate c) {
+			Integer node = nodes.get(c);
+			if (node == null) {
+				node = coords.size();
+				nodes.put(c, node);
+				coords.add(c);
+			}
+			return node;
+		}
+
+		/**
+		 * Adds an edge to the arrays.
+		 * 
+		 * @param fill
+		 *            The number of edges already added per node
+		 * @param source
+		 *            The source node
+		 * @param target
+		 *            The target node
+		 * @param strip
+		 *            The encoded strip
+		 */
+		private void addEdge(int[] fill, int source, int target, int strip) {
+			int e = offsets[source] + fill[source]++;
+			sources[e] = source;
+			targets[e] = target;
+			strips[e] = strip;
+		}
+
+		/**
+		 * Loads the speed limits of the roads of all strips. The graph is
+		 * built lazily within the transaction of a request, so the limits are
+		 * read in a session of their own.
+		 */
+		private void loadSpeedLimits() {
+			Session s = Database.openNewSession();
+			ScrollableResults rows = null;
+			try {
+				s.beginTransaction();
+				rows = s.createSQLQuery(
+						"SELECT rs.id, r.maxspeed FROM data.roadstrips rs "
+								+ "INNER JOIN data.roads r ON rs.road_id = r.id "
+								+ "WHERE r.maxspeed IS NOT NULL")
+						.addScalar("id", StandardBasicTypes.INTEGER)
+						.addScalar("maxspeed", StandardBasicTypes.INTEGER)
+						.scroll(ScrollMode.FORWARD_ONLY);
+				while (rows.next()) {
+					int id = (Integer) rows.get(0);
+					if (id < maxspeeds.length) {
+						maxspeeds[id] = (Integer) rows.get(1);
+					}
+				}
+			} finally {
+				if (rows != null) {
+					rows.close();
+				}
+				if (s.getTransaction().isActive()) {
+					s.getTransaction().rollback();
+				}
+				s.close();
+			}
+		}
+
+		/**
+		 * Returns the node next to a position. It is the nearer endpoint of
+		 * the nearest strip.
+		 * 
+		 * @param p
+		 *            The position
+		 * @return The node or <code>-1</code>, if no strip is near enough
+		 */
+		private int snap(Point p) {
+			int id = RoadStripIndex.getInstance().nearest(p, SNAP_DISTANCE);
+			if (id < 0 || id >= lengths.length) {
+				return -1;
+			}
+			if (startNodes[id] < 0) {
+				return -1;
+			}
+			LineString way = ways[id];
+			boolean atStart = way.getStartPoint().distance(p) <= way
+					.getEndPoint().distance(p);
+			return atStart ? startNodes[id] : endNodes[id];
+		}
+	}
+
+	/**
+	 * Binary min-heap of nodes by their estimated cost. A node can be added
+	 * more than once, the outdated entries are skipped by the search.
+	 */
+	private static class Heap {
+
+		/** The nodes */
+		private int[] nodes = new int[64];
+
+		/** The keys of the nodes */
+		private double[] keys = new double[64];
+
+		/** Number of entries */
+		private int size = 0;
+
+		/**
+		 * Returns whether the heap is empty.
+		 * 
+		 * @return <code>true</code>, if there are no entries
+		 */
+		private boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * Adds a node.
+		 * 
+		 * @param node
+		 *            The node
+		 * @param key
+		 *            The estimated cost
+		 */
+		private void push(int node, double key) {
+			if (size == nodes.length) {
+				int[] n = new int[size * 2];
+				System.arraycopy(nodes, 0, n, 0, size);
+				nodes = n;
+				double[] k = new double[size * 2];
+				System.arraycopy(keys, 0, k, 0, size);
+				keys = k;
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (keys[parent] <= key) {
+					break;
+				}
+				nodes[i] = nodes[parent];
+				keys[i] = keys[parent];
+				i = parent;
+			}
+			nodes[i] = node;
+			keys[i] = key;
+		}
+
+		/**
+		 * Removes the node with the lowest cost.
+		 * 
+		 * @return The node
+		 */
+		private int pop() {
+			int result = nodes[0];
+			size--;
+			int node = nodes[size];
+			double key = keys[size];
+			int i = 0;
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && keys[child + 1] < keys[child]) {
+					child++;
+				}
+				if (key <= keys[child]) {
+					break;
+				}
+				nodes[i] = nodes[child];
+				keys[i] = keys[child];
+				i = child;
+			}
+			nodes[i] = node;
+			keys[i] = key;
+			return result;
+		}
+	}
+}
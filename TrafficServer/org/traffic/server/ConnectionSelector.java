@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.traffic.logging.Log;
+
+/**
+ * Accepts the connections of the clients and reads their requests with a
+ * single thread on non-blocking channels. The gzip-compressed request is
+ * inflated while the bytes arrive, so slow mobile clients do not occupy a
+ * thread. Complete requests are handed to the {@link RequestExecutor}, the
+ * channel is switched back to blocking mode for the answer of the handler.
+ * <p>
+ * The wire format is unchanged: one gzip-stream per request and connection.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 264 $
+ * @see GzipRequestDecoder
+ */
+public class ConnectionSelector extends Thread {
+
+	/** Size of the read buffer */
+	private static final int BUFFER_SIZE = 16384;
+
+	/** Time in millis a connection may stay without data */
+	private static final long READ_TIMEOUT = 30000;
+
+	/** Time in millis between the checks for idle connections */
+	private static final long CHECK_INTERVAL = 1000;
+
+	/** Number of connections still reading their request */
+	private static final AtomicInteger reading = new AtomicInteger();
+
+	/** The selector for all channels */
+	private final Selector selector;
+
+	/** The channel accepting the connections */
+	private final ServerSocketChannel server;
+
+	/** The read buffer, shared by all connections */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/** The connections with a complete request */
+	private final List<SelectionKey> complete = new LinkedList<SelectionKey>();
+
+	/** Time of the last check for idle connections */
+	private long lastCheck = System.currentTimeMillis();
+
+	/**
+	 * Custom-Constructor with the port to listen to.
+	 * 
+	 * @param port
+	 *            The port
+	 * @throws IOException
+	 *             The port could not be bound
+	 */
+	public ConnectionSelector(int port) throws IOException {
+		super("ConnectionSelector");
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port), 1024);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	@Override
+	public void run() {
+		// always accepting
+		for (;;) {
+			try {
+				// keys left by the last selectNow are served first
+				if (selector.selectedKeys().isEmpty()) {
+					selector.select(CHECK_INTERVAL);
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+				handOver();
+				closeIdle();
+			} catch (Exception e) {
+				Log.e("ConnectionSelector",
+						e.getClass() + "@run: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Accepts all waiting connections and registers them for reading.
+	 * 
+	 * @throws IOException
+	 *             The connection could not be accepted
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, new Connection());
+			reading.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Reads the available bytes of a connection and passes them to its
+	 * decoder.
+	 * 
+	 * @param key
+	 *            The key of the connection
+	 */
+	private void read(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection con = (Connection) key.attachment();
+		try {
+			buffer.clear();
+			int n = channel.read(buffer);
+			if (n < 0) {
+				// closed before the request was complete
+				close(key);
+				return;
+			}
+			con.lastActivity = System.currentTimeMillis();
+			buffer.flip();
+			if (con.decoder.decode(buffer)) {
+				key.cancel();
+				complete.add(key);
+			}
+		} catch (IOException e) {
+			Log.e("ConnectionSelector", e.getClass() + "@read: " + e.getMessage());
+			close(key);
+		}
+	}
+
+	/**
+	 * Hands the complete requests to the {@link RequestExecutor}. The
+	 * cancelled keys must be deregistered first, otherwise the channels
+	 * cannot be switched to blocking mode.
+	 * 
+	 * @throws IOException
+	 *             Selecting failed
+	 */
+	private void handOver() throws IOException {
+		if (complete.isEmpty()) {
+			return;
+		}
+		selector.selectNow();
+		for (SelectionKey key : complete) {
+			reading.decrementAndGet();
+			SocketChannel channel = (SocketChannel) key.channel();
+			Connection con = (Connection) key.attachment();
+			String input = con.decoder.getText();
+			con.decoder.release();
+			try {
+				channel.configureBlocking(true);
+				RequestExecutor.getInstance().accept(channel.socket(), input);
+			} catch (IOException e) {
+				Log.e("ConnectionSelector",
+						e.getClass() + "@handOver: " + e.getMessage());
+				RequestExecutor.close(channel.socket());
+			}
+		}
+		complete.clear();
+	}
+
+	/**
+	 * Closes all connections, which did not send data within the
+	 * <code>READ_TIMEOUT</code>.
+	 */
+	private void closeIdle() {
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < CHECK_INTERVAL) {
+			return;
+		}
+		lastCheck = now;
+		for (SelectionKey key : selector.keys()) {
+			Connection con = (Connection) key.attachment();
+			if (con != null && key.isValid()
+					&& now - con.lastActivity > READ_TIMEOUT) {
+				Log.w("ConnectionSelector", "closing idle connection");
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel of the given key and releases its decoder.
+	 * 
+	 * @param key
+	 *            The key of the connection
+	 */
+	private void close(SelectionKey key) {
+		reading.decrementAndGet();
+		key.cancel();
+		((Connection) key.attachment()).decoder.release();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			Log.e("ConnectionSelector", e.getClass() + "@close: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of connections still reading their request.
+	 * 
+	 * @return The number of connections
+	 */
+	public static int getReadingConnections() {
+		return reading.get();
+	}
+
+	/**
+	 * The state of a connection, which is still reading its request.
+	 */
+	private static class Connection {
+
+		/** The decoder of the request */
+		private final GzipRequestDecoder decoder = new GzipRequestDecoder();
+
+		/** Time of the last received data */
+		private long lastActivity = System.currentTimeMillis();
+	}
+}
@@ -31,11 +31,13 @@ import org.traffic.utils.SocketCommunicator;
 /**
  * This class handles the incoming requests from the clients. The input is
  * parsed and the {@link RequestHandler} matching the type of the request is loaded.
+ * The handler itself is queued in the {@link RequestExecutor}.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 241 $
+ * @see RequestExecutor
  */
-public class Controller extends Thread {
+public class Controller implements Runnable {
 
 	/** Stores all registered handlers and the type of request they belong to */
 	private static Map<Integer, Class<? extends RequestHandler>> handler = new HashMap<Integer, Class<? extends RequestHandler>>();
@@ -43,22 +45,28 @@ public class Controller extends Thread {
 	/** The socket of the connected client */
 	private Socket socket;
 
+	/** The received request as plain text */
+	private String input;
+
 	/**
-	 * Custom-Constructor of a <code>Controller</code>. One instance per request
-	 * needed.
+	 * Custom-Constructor of a <code>Controller</code>. One instance per
+	 * connection needed.
 	 * 
 	 * @param s
 	 *            The socket of the connected client
+	 * @param input
+	 *            The request received by the {@link ConnectionSelector}
 	 */
-	public Controller(Socket s) {
+	public Controller(Socket s, String input) {
 		socket = s;
+		this.input = input;
 	}
 
 	@Override
 	public void run() {
 		try {
-			// read the incoming JSON
-			Request r = SocketCommunicator.read(socket);
+			// parse the incoming JSON
+			Request r = SocketCommunicator.parseInput(input);
 
 			// searching for a matching handler
 			Class<? extends RequestHandler> cl = handler.get(r.getType());
@@ -66,7 +74,8 @@ public class Controller extends Thread {
 				Constructor<? extends RequestHandler> ct = cl
 						.getConstructor(Socket.class);
 				RequestHandler handle = ct.newInstance(socket);
-				handle.handleRequest(r);
+				RequestExecutor.getInstance().submit(socket, r, handle);
+				return;
 			} else {
 				SocketCommunicator.writeOutput(socket,
 						"{'error':'no matching RequestHandler found'}");
@@ -77,6 +86,7 @@ public class Controller extends Thread {
 			Log.e("Controller",
 					e.getClass().getSimpleName() + "@run: " + e.getMessage());
 		}
+		RequestExecutor.close(socket);
 	}
 
 	/**
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a gzip-compressed request incrementally. The bytes are passed in as
+ * they arrive at the non-blocking channel, so a slow client does not block a
+ * thread. The request is complete as soon as the gzip-trailer was read, which
+ * is the same framing the blocking <code>GZIPInputStream</code> used.
+ * <p>
+ * The {@link Inflater}s are pooled, because they hold native memory and the
+ * decoder is needed once per connection.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 241 $
+ * @see ConnectionSelector
+ */
+public class GzipRequestDecoder {
+
+	/** Maximal size of an inflated request in bytes */
+	private static final int MAX_REQUEST_SIZE = 1 << 20;
+
+	/** Number of pooled inflaters */
+	private static final int POOL_SIZE = 256;
+
+	/** Gzip-flag - header contains a CRC16 */
+	private static final int FHCRC = 2;
+
+	/** Gzip-flag - header contains extra fields */
+	private static final int FEXTRA = 4;
+
+	/** Gzip-flag - header contains the original filename */
+	private static final int FNAME = 8;
+
+	/** Gzip-flag - header contains a comment */
+	private static final int FCOMMENT = 16;
+
+	/** The unused inflaters */
+	private static final LinkedList<Inflater> inflaters = new LinkedList<Inflater>();
+
+	/** State - reading the fixed part of the header */
+	private static final int STATE_HEADER = 0;
+
+	/** State - reading the length of the extra fields */
+	private static final int STATE_EXTRA_LENGTH = 1;
+
+	/** State - skipping the extra fields */
+	private static final int STATE_EXTRA = 2;
+
+	/** State - skipping the zero-terminated filename */
+	private static final int STATE_NAME = 3;
+
+	/** State - skipping the zero-terminated comment */
+	private static final int STATE_COMMENT = 4;
+
+	/** State - skipping the CRC16 of the header */
+	private static final int STATE_HEADER_CRC = 5;
+
+	/** State - inflating the compressed data */
+	private static final int STATE_BODY = 6;
+
+	/** State - reading the trailer */
+	private static final int STATE_TRAILER = 7;
+
+	/** State - request complete */
+	private static final int STATE_DONE = 8;
+
+	/** The current state */
+	private int state = STATE_HEADER;
+
+	/** Buffer for the header and the trailer */
+	private final byte[] small = new byte[10];
+
+	/** Number of bytes in <code>small</code> */
+	private int smallLength = 0;
+
+	/** Number of bytes to skip or the flags of the header */
+	private int remaining;
+
+	/** The flags of the header */
+	private int flags;
+
+	/** The inflater of this decoder */
+	private Inflater inflater;
+
+	/** The checksum of the inflated data */
+	private final CRC32 crc = new CRC32();
+
+	/** The inflated data */
+	private byte[] data = new byte[512];
+
+	/** Number of bytes in <code>data</code> */
+	private int length = 0;
+
+	/**
+	 * Passes the available bytes of the buffer to the decoder.
+	 * 
+	 * @param in
+	 *            The buffer with the received bytes, ready to be read
+	 * @return <code>true</code>, if the request is complete
+	 * @throws IOException
+	 *             The data is no valid gzip-stream
+	 */
+	public boolean decode(ByteBuffer in) throws IOException {
+		while (in.hasRemaining() && state != STATE_DONE) {
+			switch (state) {
+			case STATE_HEADER:
+				small[smallLength++] = in.get();
+				if (smallLength == 10) {
+					if ((small[0] & 0xff) != 0x1f || (small[1] & 0xff) != 0x8b
+							|| small[2] != 8) {
+						throw new IOException("not in gzip format");
+					}
+					flags = small[3] & 0xff;
+					smallLength = 0;
+					nextHeaderState(STATE_HEADER);
+				}
+				break;
+			case STATE_EXTRA_LENGTH:
+				small[smallLength++] = in.get();
+				if (smallLength == 2) {
+					remaining = (small[0] & 0xff) | ((small[1] & 0xff) << 8);
+					smallLength = 0;
+					state = STATE_EXTRA;
+					if (remaining == 0) {
+						nextHeaderState(STATE_EXTRA);
+					}
+				}
+				break;
+			case STATE_EXTRA:
+			case STATE_HEADER_CRC:
+				in.get();
+				if (--remaining == 0) {
+					nextHeaderState(state);
+				}
+				break;
+			case STATE_NAME:
+			case STATE_COMMENT:
+				if (in.get() == 0) {
+					nextHeaderState(state);
+				}
+				break;
+			case STATE_BODY:
+				inflate(in);
+				break;
+			case STATE_TRAILER:
+				small[smallLength++] = in.get();
+				if (smallLength == 8) {
+					checkTrailer();
+					state = STATE_DONE;
+				}
+				break;
+			}
+		}
+		return state == STATE_DONE;
+	}
+
+	/**
+	 * Switches to the next state after a part of the header was read.
+	 * 
+	 * @param current
+	 *            The finished state
+	 */
+	private void nextHeaderState(int current) {
+		if (current < STATE_EXTRA_LENGTH && (flags & FEXTRA) != 0) {
+			state = STATE_EXTRA_LENGTH;
+		} else if (current < STATE_NAME && (flags & FNAME) != 0) {
+			state = STATE_NAME;
+		} else if (current < STATE_COMMENT && (flags & FCOMMENT) != 0) {
+			state = STATE_COMMENT;
+		} else if (current < STATE_HEADER_CRC && (flags & FHCRC) != 0) {
+			state = STATE_HEADER_CRC;
+			remaining = 2;
+		} else {
+			state = STATE_BODY;
+			inflater = obtainInflater();
+		}
+	}
+
+	/**
+	 * Inflates the bytes of the buffer and appends them to the data.
+	 * 
+	 * @param in
+	 *            The buffer with the compressed bytes
+	 * @throws IOException
+	 *             The data is no valid deflate-stream
+	 */
+	private void inflate(ByteBuffer in) throws IOException {
+		int offset = in.arrayOffset() + in.position();
+		int available = in.remaining();
+		inflater.setInput(in.array(), offset, available);
+		try {
+			while (!inflater.finished() && !inflater.needsInput()) {
+				if (length == data.length) {
+					if (data.length >= MAX_REQUEST_SIZE) {
+						throw new IOException("request too large");
+					}
+					byte[] bigger = new byte[data.length * 2];
+					System.arraycopy(data, 0, bigger, 0, length);
+					data = bigger;
+				}
+				int n = inflater.inflate(data, length, data.length - length);
+				crc.update(data, length, n);
+				length += n;
+				if (n == 0 && inflater.needsDictionary()) {
+					throw new IOException("dictionary needed");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		}
+		in.position(in.position() + available - inflater.getRemaining());
+		if (inflater.finished()) {
+			state = STATE_TRAILER;
+		}
+	}
+
+	/**
+	 * Checks the CRC32 and the size stored in the trailer.
+	 * 
+	 * @throws IOException
+	 *             The values do not match the inflated data
+	 */
+	private void checkTrailer() throws IOException {
+		long checksum = readInt(0) & 0xffffffffL;
+		long size = readInt(4) & 0xffffffffL;
+		if (checksum != crc.getValue() || size != (length & 0xffffffffL)) {
+			throw new IOException("corrupt gzip trailer");
+		}
+	}
+
+	/**
+	 * Reads a little-endian int from the small buffer.
+	 * 
+	 * @param offset
+	 *            The offset in the buffer
+	 * @return The value
+	 */
+	private int readInt(int offset) {
+		return (small[offset] & 0xff) | ((small[offset + 1] & 0xff) << 8)
+				| ((small[offset + 2] & 0xff) << 16)
+				| ((small[offset + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * Returns the inflated request as text. Each byte is mapped to one char,
+	 * like the former blocking read did.
+	 * 
+	 * @return The request
+	 */
+	public String getText() {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (data[i] & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Returns the inflater to the pool. Must be called when the connection
+	 * is finished or closed.
+	 */
+	public void release() {
+		if (inflater != null) {
+			releaseInflater(inflater);
+			inflater = null;
+		}
+	}
+
+	/**
+	 * Takes an inflater from the pool or creates a new one.
+	 * 
+	 * @return The inflater
+	 */
+	private static Inflater obtainInflater() {
+		synchronized (inflaters) {
+			if (!inflaters.isEmpty()) {
+				return inflaters.removeFirst();
+			}
+		}
+		return new Inflater(true);
+	}
+
+	/**
+	 * Resets the inflater and puts it back into the pool.
+	 * 
+	 * @param inflater
+	 *            The inflater
+	 */
+	private static void releaseInflater(Inflater inflater) {
+		inflater.reset();
+		synchronized (inflaters) {
+			if (inflaters.size() < POOL_SIZE) {
+				inflaters.addFirst(inflater);
+				return;
+			}
+		}
+		inflater.end();
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.traffic.database.Database;
+import org.traffic.logging.Log;
+import org.traffic.server.data.Request;
+import org.traffic.server.handler.RequestHandler;
+import org.traffic.utils.NamedThreadFactory;
+import org.traffic.utils.SocketCommunicator;
+
+/**
+ * Dispatches the received requests to two bounded thread-pools. The first
+ * pool parses the requests read by the {@link ConnectionSelector}, the second
+ * one runs the {@link RequestHandler}s. The number of handler-threads is kept below the
+ * size of the database connection-pool, so a burst of requests waits in the
+ * admission-queue instead of exhausting the connections. If a queue is full,
+ * the request is rejected.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 264 $
+ * @see Controller
+ * @see RequestStatistics
+ */
+public class RequestExecutor {
+
+	/** Number of threads parsing the requests */
+	private static final int PARSER_THREADS = 16;
+
+	/** Number of received requests waiting to be parsed */
+	private static final int PARSER_QUEUE = 2048;
+
+	/**
+	 * Number of threads running the handlers - below the 100 connections of
+	 * the c3p0-pool to leave some for the services
+	 */
+	private static final int HANDLER_THREADS = 80;
+
+	/** Number of parsed requests waiting for a handler */
+	private static final int HANDLER_QUEUE = 4096;
+
+	/** Time in seconds an idle thread is kept alive */
+	private static final long KEEP_ALIVE = 60;
+
+	/** The one and only instance */
+	private static RequestExecutor instance = new RequestExecutor();
+
+	/** The pool parsing the requests */
+	private final ThreadPoolExecutor parsers;
+
+	/** The pool running the handlers */
+	private final ThreadPoolExecutor handlers;
+
+	/** The statistics per request-type */
+	private final ConcurrentMap<Integer, RequestStatistics> statistics = new ConcurrentHashMap<Integer, RequestStatistics>();
+
+	/**
+	 * Default-Constructor
+	 */
+	private RequestExecutor() {
+		parsers = new ThreadPoolExecutor(PARSER_THREADS, PARSER_THREADS,
+				KEEP_ALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(PARSER_QUEUE),
+				new NamedThreadFactory("Parser"));
+		parsers.allowCoreThreadTimeOut(true);
+		handlers = new ThreadPoolExecutor(HANDLER_THREADS, HANDLER_THREADS,
+				KEEP_ALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(HANDLER_QUEUE),
+				new NamedThreadFactory("Handler"));
+		handlers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a received request to be parsed. If the queue is full the
+	 * connection is closed immediately.
+	 * 
+	 * @param socket
+	 *            The socket of the connected client
+	 * @param input
+	 *            The received request as plain text
+	 */
+	public void accept(Socket socket, String input) {
+		try {
+			parsers.execute(new Controller(socket, input));
+		} catch (RejectedExecutionException e) {
+			Log.w("RequestExecutor", "connection rejected - "
+					+ parsers.getQueue().size() + " requests waiting");
+			close(socket);
+		}
+	}
+
+	/**
+	 * Queues a parsed request for its handler. If the queue is full the client
+	 * receives an error and the connection is closed.
+	 * 
+	 * @param socket
+	 *            The socket of the connected client
+	 * @param request
+	 *            The parsed request
+	 * @param handler
+	 *            The handler for the request
+	 */
+	void submit(Socket socket, Request request, RequestHandler handler) {
+		RequestStatistics stats = getStatistics(request.getType());
+		stats.enqueued();
+		try {
+			handlers.execute(new HandlerTask(socket, request, handler, stats));
+		} catch (RejectedExecutionException e) {
+			stats.started(0);
+			stats.rejected();
+			Log.w("RequestExecutor", "request of type " + request.getType()
+					+ " rejected - " + handlers.getQueue().size()
+					+ " requests waiting");
+			SocketCommunicator.writeOutput(socket, "{'error':'server busy'}");
+			close(socket);
+		}
+	}
+
+	/**
+	 * Returns the statistics for the given request-type. They are created on
+	 * the first call.
+	 * 
+	 * @param type
+	 *            The request-type
+	 * @return The statistics
+	 */
+	public RequestStatistics getStatistics(int type) {
+		RequestStatistics stats = statistics.get(type);
+		if (stats == null) {
+			RequestStatistics created = new RequestStatistics(type);
+			stats = statistics.putIfAbsent(type, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the statistics of all request-types seen so far.
+	 * 
+	 * @return The statistics
+	 */
+	public Collection<RequestStatistics> getStatistics() {
+		return statistics.values();
+	}
+
+	/**
+	 * Returns the number of requests waiting to be parsed.
+	 * 
+	 * @return The number of requests
+	 */
+	public int getWaitingConnections() {
+		return parsers.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of parsed requests waiting for a handler.
+	 * 
+	 * @return The number of requests
+	 */
+	public int getWaitingRequests() {
+		return handlers.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of requests currently served by a handler.
+	 * 
+	 * @return The number of requests
+	 */
+	public int getActiveHandlers() {
+		return handlers.getActiveCount();
+	}
+
+	/**
+	 * Closes the given socket quietly.
+	 * 
+	 * @param socket
+	 *            The socket to close
+	 */
+	static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.e("RequestExecutor", e.getClass() + "@close: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Provides the one and only instance of this class.
+	 * 
+	 * @return The singleton
+	 */
+	public static RequestExecutor getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Runs a {@link RequestHandler} and measures the time the request waited
+	 * in the queue, the time the handler needed and its part in
+	 * database-transactions.
+	 */
+	private static class HandlerTask implements Runnable {
+
+		/** The socket of the connected client */
+		private final Socket socket;
+
+		/** The parsed request */
+		private final Request request;
+
+		/** The handler for the request */
+		private final RequestHandler handler;
+
+		/** The statistics of the request-type */
+		private final RequestStatistics stats;
+
+		/** Time the request was queued */
+		private final long queued;
+
+		/**
+		 * Custom-Constructor
+		 * 
+		 * @param socket
+		 *            The socket of the connected client
+		 * @param request
+		 *            The parsed request
+		 * @param handler
+		 *            The handler for the request
+		 * @param stats
+		 *            The statistics of the request-type
+		 */
+		HandlerTask(Socket socket, Request request, RequestHandler handler,
+				RequestStatistics stats) {
+			this.socket = socket;
+			this.request = request;
+			this.handler = handler;
+			this.stats = stats;
+			this.queued = System.currentTimeMillis();
+		}
+
+		@Override
+		public void run() {
+			long start = System.currentTimeMillis();
+			stats.started(start - queued);
+			Database.takeTransactionTime();
+			boolean success = false;
+			try {
+				handler.handleRequest(request);
+				success = true;
+			} catch (Exception e) {
+				SocketCommunicator.writeOutput(socket,
+						"{'error':'" + e.getMessage() + "'}");
+				Log.e("RequestExecutor", e.getClass().getSimpleName()
+						+ "@run: " + e.getMessage());
+			} finally {
+				// the threads are reused, so no transaction may stay open
+				Database.release();
+				close(socket);
+				stats.finished(System.currentTimeMillis() - start,
+						Database.takeTransactionTime(), success);
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.traffic.metrics.Histogram;
+
+/**
+ * Collects the figures of one request-type handled by the
+ * {@link RequestExecutor}: the number of waiting requests, the time they spent
+ * in the queue and the time the {@link org.traffic.server.handler.RequestHandler}
+ * needed to serve them. The service times are kept in a {@link Histogram}
+ * and the part spent in database-transactions is summed up.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 264 $
+ */
+public class RequestStatistics {
+
+	/** The type of the request */
+	private final int type;
+
+	/** Number of requests waiting in the queue */
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/** Number of finished requests */
+	private final AtomicLong processed = new AtomicLong();
+
+	/** Number of rejected requests */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** Number of requests which ended with an exception */
+	private final AtomicLong failed = new AtomicLong();
+
+	/** Sum of the waiting times in millis */
+	private final AtomicLong waitTime = new AtomicLong();
+
+	/** Maximal waiting time in millis */
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/** Sum of the service times in millis */
+	private final AtomicLong serviceTime = new AtomicLong();
+
+	/** Maximal service time in millis */
+	private final AtomicLong maxServiceTime = new AtomicLong();
+
+	/** Distribution of the service times */
+	private final Histogram serviceTimes = new Histogram();
+
+	/** Sum of the times in database-transactions in millis */
+	private final AtomicLong databaseTime = new AtomicLong();
+
+	/**
+	 * Custom-Constructor with the type of the request.
+	 * 
+	 * @param type
+	 *            The request-type
+	 */
+	public RequestStatistics(int type) {
+		this.type = type;
+	}
+
+	/**
+	 * Marks a request as queued.
+	 */
+	void enqueued() {
+		queued.incrementAndGet();
+	}
+
+	/**
+	 * Marks a request as rejected, because the queue was full.
+	 */
+	void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * Marks a request as taken from the queue and stores the time it waited.
+	 * 
+	 * @param millis
+	 *            The waiting time
+	 */
+	void started(long millis) {
+		queued.decrementAndGet();
+		waitTime.addAndGet(millis);
+		updateMax(maxWaitTime, millis);
+	}
+
+	/**
+	 * Marks a request as finished and stores the time the handler needed.
+	 * 
+	 * @param millis
+	 *            The service time
+	 * @param dbMillis
+	 *            The part of the service time in database-transactions
+	 * @param success
+	 *            <code>false</code>, if the handler threw an exception
+	 */
+	void finished(long millis, long dbMillis, boolean success) {
+		processed.incrementAndGet();
+		if (!success) {
+			failed.incrementAndGet();
+		}
+		serviceTime.addAndGet(millis);
+		updateMax(maxServiceTime, millis);
+		serviceTimes.record(millis);
+		databaseTime.addAndGet(dbMillis);
+	}
+
+	/**
+	 * Raises the stored maximum, if the given value is bigger.
+	 * 
+	 * @param max
+	 *            The stored maximum
+	 * @param value
+	 *            The new value
+	 */
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while ((current = max.get()) < value) {
+			if (max.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the request-type.
+	 * 
+	 * @return The type
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the number of requests currently waiting in the queue.
+	 * 
+	 * @return The queue depth
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Returns the number of finished requests.
+	 * 
+	 * @return The number of requests
+	 */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * Returns the number of rejected requests.
+	 * 
+	 * @return The number of requests
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of requests which ended with an exception.
+	 * 
+	 * @return The number of requests
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the average waiting time in the queue.
+	 * 
+	 * @return The time in millis
+	 */
+	public double getAverageWaitTime() {
+		long count = processed.get();
+		return (count > 0) ? 1.0 * waitTime.get() / count : 0;
+	}
+
+	/**
+	 * Returns the maximal waiting time in the queue.
+	 * 
+	 * @return The time in millis
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	/**
+	 * Returns the average time the handler needed.
+	 * 
+	 * @return The time in millis
+	 */
+	public double getAverageServiceTime() {
+		long count = processed.get();
+		return (count > 0) ? 1.0 * serviceTime.get() / count : 0;
+	}
+
+	/**
+	 * Returns the maximal time the handler needed.
+	 * 
+	 * @return The time in millis
+	 */
+	public long getMaxServiceTime() {
+		return maxServiceTime.get();
+	}
+
+	/**
+	 * Returns the distribution of the times the handler needed.
+	 * 
+	 * @return The histogram
+	 */
+	public Histogram getServiceTimes() {
+		return serviceTimes;
+	}
+
+	/**
+	 * Returns the average time the handler spent in database-transactions.
+	 * 
+	 * @return The time in millis
+	 */
+	public double getAverageDatabaseTime() {
+		long count = processed.get();
+		return (count > 0) ? 1.0 * databaseTime.get() / count : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "type " + type + ": queued=" + getQueued() + ", processed="
+				+ getProcessed() + ", rejected=" + getRejected() + ", failed="
+				+ getFailed() + ", wait(avg/max)="
+				+ Math.round(getAverageWaitTime()) + "/" + getMaxWaitTime()
+				+ "ms, service(avg/max)="
+				+ Math.round(getAverageServiceTime()) + "/"
+				+ getMaxServiceTime() + "ms, service(" + serviceTimes
+				+ ")ms, db(avg)=" + Math.round(getAverageDatabaseTime())
+				+ "ms";
+	}
+}
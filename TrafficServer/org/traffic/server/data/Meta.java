@@ -20,17 +20,19 @@ package org.traffic.server.data;
 
 import net.sf.json.JSONObject;
 
-import org.hibernate.Session;
-import org.hibernate.criterion.Restrictions;
-import org.traffic.database.Database;
-import org.traffic.models.traffic.Client;
+import org.traffic.common.UpdateCodec;
+import org.traffic.database.CachedClient;
+import org.traffic.database.ClientCache;
 import org.traffic.utils.IConstants;
 
 /**
  * Class to handle the <code>meta</code>-data of an incoming JSON-request-
+ * The {@link CachedClient} is resolved by the {@link ClientCache}. The optional
+ * <code>format</code> selects the encoding of the response, see
+ * {@link UpdateCodec}.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 265 $
  * @see org.traffic.utils.IConstants
  * @see org.traffic.models.traffic.Client
  * @see net.sf.json.JSONObject
@@ -43,8 +45,11 @@ public class Meta {
 	/** The id of the client */
 	private String id = null;
 
-	/** The {@link Client} identified by the <code>id</code> */
-	private Client client = null;
+	/** The {@link CachedClient} identified by the <code>id</code> */
+	private CachedClient client = null;
+
+	/** The format of the response */
+	private int format;
 
 	/**
 	 * Custom-Constructor with the received {@link JSONObject}.
@@ -59,13 +64,9 @@ public class Meta {
 		// check if nodes available
 		this.type = node.getInt("type");
 		this.id = node.getString("id");
+		this.format = node.optInt("format", UpdateCodec.FORMAT_JSON);
 		if (id != null) {
-			Session s = Database.session();
-			s.beginTransaction();
-			client = (Client) s.createCriteria(Client.class)
-					.add(Restrictions.eq("hash", id)).setMaxResults(1)
-					.uniqueResult();
-			Database.end(false);
+			client = ClientCache.getInstance().get(id);
 		}
 
 		if (id == null && type != IConstants.REQUEST_ID)
@@ -95,11 +96,20 @@ public class Meta {
 	}
 
 	/**
-	 * Returns the {@link Client} identified by the <code>id</code.
+	 * Returns the format of the response requested by the client.
+	 * 
+	 * @return The format
+	 */
+	public int getFormat() {
+		return format;
+	}
+
+	/**
+	 * Returns the {@link CachedClient} identified by the <code>id</code.
 	 * 
-	 * @return The {@link Client}
+	 * @return The {@link CachedClient}
 	 */
-	public Client getClient() {
+	public CachedClient getClient() {
 		return client;
 	}
 }
@@ -20,16 +20,16 @@ package org.traffic.server.data;
 
 import net.sf.json.JSONObject;
 
-import org.traffic.models.traffic.Client;
+import org.traffic.database.CachedClient;
 
 /**
  * Class to wrap an incoming JSON-request into <code>meta</code> and
  * <code>data</code>. The <code>meta</code>-information are used to identify the
- * {@link Client} and the <code>data</code>-part provides additional information
+ * {@link CachedClient} and the <code>data</code>-part provides additional information
  * needed to fulfill the request.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 265 $
  * @see net.sf.json.JSONObject
  * @see org.traffic.utils.IConstants
  * @see org.traffic.models.traffic.Client
@@ -87,11 +87,21 @@ public class Request {
 	}
 
 	/**
-	 * Returns the {@link Client} identified by the session-ID.
+	 * Returns the format of the response, which is part of the
+	 * <code>meta</code>-object.
 	 * 
-	 * @return The {@link Client}
+	 * @return The format
 	 */
-	public Client getClient() {
+	public int getFormat() {
+		return this.meta.getFormat();
+	}
+
+	/**
+	 * Returns the {@link CachedClient} identified by the session-ID.
+	 * 
+	 * @return The {@link CachedClient}
+	 */
+	public CachedClient getClient() {
 		return this.meta.getClient();
 	}
 }
\ No newline at end of file
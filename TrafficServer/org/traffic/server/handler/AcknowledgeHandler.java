@@ -21,7 +21,9 @@ package org.traffic.server.handler;
 import java.net.Socket;
 
 import org.hibernate.Session;
+import org.traffic.database.ClientCache;
 import org.traffic.database.Database;
+import org.traffic.models.traffic.Client;
 import org.traffic.server.data.Request;
 
 /**
@@ -29,7 +31,7 @@ import org.traffic.server.data.Request;
  * active.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 265 $
  */
 public class AcknowledgeHandler extends RequestHandler {
 
@@ -49,9 +51,12 @@ public class AcknowledgeHandler extends RequestHandler {
 		// save acknowledgement
 		Session s = Database.session();
 		s.beginTransaction();
-		r.getClient().setAck(true);
-		s.update(r.getClient());
+		Client c = r.getClient().load(s);
+		if (c != null) {
+			c.setAck(true);
+		}
 		Database.end(true);
+		ClientCache.getInstance().invalidate(r.getClient().getHash());
 	}
 
 }
@@ -24,9 +24,8 @@ import java.util.List;
 
 import org.hibernate.Session;
 import org.hibernate.criterion.Restrictions;
-import org.hibernatespatial.criterion.DWithinExpression;
 import org.traffic.database.Database;
-import org.traffic.database.LocalDistanceOrder;
+import org.traffic.database.SpatialQueries;
 import org.traffic.logging.Log;
 import org.traffic.models.traffic.Congestion;
 import org.traffic.models.traffic.RoadStrip;
@@ -39,9 +38,10 @@ import com.vividsolutions.jts.geom.Point;
  * Class to handle Create-Congestion-Requests. The handler creates a
  * {@link Congestion} by the information, searches the nearest road, checks
  * whether the congestion is already in the database and stores it if not.
+ * The road is searched by the {@link SpatialQueries}.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 234 $
+ * @version $LastChangedRevision: 262 $
  */
 public class CongestionHandler extends RequestHandler {
 
@@ -82,14 +82,11 @@ public class CongestionHandler extends RequestHandler {
 
 				// getting nearest road within 500 meters
 				Point p = GeomHelper.createPoint(lon, lat);
-				List<RoadStrip> lstRS = (List<RoadStrip>) s
-						.createCriteria(RoadStrip.class)
-						.add(new DWithinExpression("way", p, 0.0074))
-						.addOrder(LocalDistanceOrder.asc("distance", p))
-						.setMaxResults(1).list();
+				int nearest = SpatialQueries.getInstance().nearestStrip(s, p,
+						0.0074);
 
-				if (lstRS.size() > 0) {
-					RoadStrip rs = lstRS.get(0);
+				if (nearest >= 0) {
+					RoadStrip rs = (RoadStrip) s.get(RoadStrip.class, nearest);
 
 					// checking if congestion exists
 					List<Congestion> l = (List<Congestion>) s
@@ -108,6 +105,8 @@ public class CongestionHandler extends RequestHandler {
 					} else {
 						Database.end(false);
 					}
+				} else {
+					Database.end(false);
 				}
 			}
 		} catch (Exception e) {
@@ -21,8 +21,10 @@ package org.traffic.server.handler;
 import java.net.Socket;
 
 import org.hibernate.Session;
+import org.traffic.database.ClientCache;
 import org.traffic.database.Database;
 import org.traffic.logging.Log;
+import org.traffic.models.traffic.Client;
 import org.traffic.models.traffic.Route;
 import org.traffic.server.data.Request;
 
@@ -31,7 +33,7 @@ import org.traffic.server.data.Request;
  * {@link Route} of the client and deletes it if it's not null.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 148 $
+ * @version $LastChangedRevision: 265 $
  */
 public class DeleteRouteHandler extends RequestHandler {
 
@@ -54,19 +56,19 @@ public class DeleteRouteHandler extends RequestHandler {
 					"Error@handleRequest:no valid identification");
 			return;
 		}
-		if (r.getClient().getRoute() != null) {
+		if (r.getClient().hasRoute()) {
 			Session s = Database.session();
 			s.beginTransaction();
 
 			// deleting the route if present
-			s.update(r.getClient());
-			if (r.getClient().getRoute() != null) {
-				s.delete(r.getClient().getRoute());
+			Client c = r.getClient().load(s);
+			if (c != null && c.getRoute() != null) {
+				s.delete(c.getRoute());
+				c.setRoute(null);
 			}
-			r.getClient().setRoute(null);
-			s.saveOrUpdate(r.getClient());
 
 			Database.end(true);
+			ClientCache.getInstance().invalidate(r.getClient().getHash());
 		}
 	}
 
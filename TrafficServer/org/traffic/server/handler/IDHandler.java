@@ -23,6 +23,7 @@ import java.security.MessageDigest;
 import java.util.Date;
 
 import org.hibernate.Session;
+import org.traffic.database.ClientCache;
 import org.traffic.database.Database;
 import org.traffic.logging.Log;
 import org.traffic.models.traffic.Client;
@@ -80,6 +81,7 @@ public class IDHandler extends RequestHandler {
 				s.clear();
 				s.save(c);
 				Database.end(true);
+				ClientCache.getInstance().put(c);
 				
 				SocketCommunicator.writeOutput(getSocket(),res.getData());
 			} else {
@@ -23,8 +23,12 @@ import java.security.MessageDigest;
 import java.util.Date;
 
 import org.hibernate.Session;
+import org.traffic.database.ClientCache;
 import org.traffic.database.Database;
+import org.traffic.database.LastFixCache;
+import org.traffic.database.UpdateSnapshotCache;
 import org.traffic.logging.Log;
+import org.traffic.models.traffic.Client;
 import org.traffic.server.data.Request;
 import org.traffic.server.data.Response;
 import org.traffic.utils.SocketCommunicator;
@@ -34,7 +38,7 @@ import org.traffic.utils.SocketCommunicator;
  * recognizes that the lease-time of his ID is expiring.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 265 $
  */
 public class RefreshIDHandler extends RequestHandler {
 
@@ -84,10 +88,20 @@ public class RefreshIDHandler extends RequestHandler {
 
 					Session s = Database.session();
 					s.beginTransaction();
-					r.getClient().setHash(hexString.toString());
-					r.getClient().setLease(new Date(lease));
-					s.update(r.getClient());
+					LastFixCache.getInstance().remove(r.getClient().getHash());
+					UpdateSnapshotCache.getInstance().remove(
+							r.getClient().getHash());
+					Client c = r.getClient().load(s);
+					if (c == null) {
+						Database.end(false);
+						return;
+					}
+					c.setHash(hexString.toString());
+					c.setLease(new Date(lease));
 					Database.end(true);
+
+					// the new ID is loaded by its first request
+					ClientCache.getInstance().invalidate(r.getClient().getHash());
 				} else {
 					throw new IllegalArgumentException("device id not found");
 				}			
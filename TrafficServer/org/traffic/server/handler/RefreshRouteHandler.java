@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.hibernate.Session;
+import org.traffic.database.ClientCache;
 import org.traffic.database.Database;
 import org.traffic.logging.Log;
 import org.traffic.models.traffic.Route;
@@ -38,7 +39,7 @@ import com.vividsolutions.jts.geom.LineString;
  * {@link Route}, loads and returns it.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 265 $
  */
 public class RefreshRouteHandler extends RequestHandler {
 
@@ -65,11 +66,15 @@ public class RefreshRouteHandler extends RequestHandler {
 		} else {
 
 			// if the client has an active route -> send it
-			if (r.getClient().getRoute() != null) {
-				Session s = Database.session();
-				s.beginTransaction();
+			Route stored = null;
+			Session s = Database.session();
+			s.beginTransaction();
+			if (r.getClient().hasRoute()) {
+				stored = (Route) s.get(Route.class, r.getClient().getRouteId());
+			}
+			if (stored != null) {
 				Response res = new Response();
-				LineString route = r.getClient().getRoute().getRoute();
+				LineString route = stored.getRoute();
 				Coordinate[] c = route.getCoordinates();
 				for (int i = 0; i < c.length; i++) {
 					Map<String, Object> map = new HashMap<String, Object>();
@@ -79,10 +84,11 @@ public class RefreshRouteHandler extends RequestHandler {
 					res.append(map, "route");
 				}
 				SocketCommunicator.writeOutput(getSocket(), res.getData());
-				r.getClient().getRoute().setUpdated(false);
-				s.saveOrUpdate(r.getClient().getRoute());
+				stored.setUpdated(false);
 				Database.end(true);
+				ClientCache.getInstance().invalidate(r.getClient().getHash());
 			} else {
+				Database.end(false);
 				SocketCommunicator.writeOutput(getSocket(),
 						"{error: 'nothing to route'}");
 			}
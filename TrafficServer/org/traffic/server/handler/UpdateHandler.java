@@ -19,26 +19,33 @@
 package org.traffic.server.handler;
 
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
 import org.hibernate.Session;
-import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
-import org.hibernatespatial.criterion.DWithinExpression;
-import org.hibernatespatial.criterion.SpatialRestrictions;
+import org.traffic.common.UpdateCodec;
 import org.traffic.database.Database;
-import org.traffic.database.LocalDistanceOrder;
+import org.traffic.database.LastFixCache;
+import org.traffic.database.RoadStripIndex;
+import org.traffic.database.SpeedAggregator;
+import org.traffic.database.UpdateSnapshotCache;
+import org.traffic.database.UserDataPartitions;
+import org.traffic.database.UserDataWriter;
 import org.traffic.logging.Log;
 import org.traffic.models.traffic.Congestion;
 import org.traffic.models.traffic.RoadStrip;
+import org.traffic.models.traffic.Speed;
 import org.traffic.models.traffic.UserData;
 import org.traffic.server.data.Request;
 import org.traffic.server.data.Response;
+import org.traffic.services.SetDirectionService;
 import org.traffic.utils.GeomHelper;
 import org.traffic.utils.SocketCommunicator;
 
@@ -53,9 +60,22 @@ import com.vividsolutions.jts.geom.Point;
  * instances of {@link Congestion} near the position of the client and checks
  * whether the client has an active road that has changed since the last
  * request.
+ * <p>
+ * The strips near the client are searched in the {@link RoadStripIndex}, only
+ * the found ids are loaded from the database. The driving direction is
+ * calculated with the previous message of the client in the
+ * {@link LastFixCache}. The speeds are taken from the {@link SpeedAggregator},
+ * which is fed with the saved messages.
+ * <p>
+ * A client sending the <code>version</code> of its last update gets a delta:
+ * only the strips and congestions, whose state has changed, and the ids of
+ * the removed ones. The sent states are kept in the
+ * {@link UpdateSnapshotCache}, clients without a version get the full state.
+ * Clients asking for {@link UpdateCodec#FORMAT_BINARY} get the response
+ * encoded by the {@link UpdateCodec}.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 236 $
+ * @version $LastChangedRevision: 265 $
  */
 public class UpdateHandler extends RequestHandler {
 
@@ -97,52 +117,46 @@ public class UpdateHandler extends RequestHandler {
 			if (r.getData().containsKey("save")) {
 				save = r.getData().getBoolean("save");
 			}
+
+			// the partitions only cover the times of the retention
+			long stored = UserDataPartitions.clamp(time);
+			if (stored < 0) {
+				save = false;
+			} else {
+				time = stored;
+			}
 			String hash = r.getID();
 			Point p = GeomHelper.createPoint(lon, lat);
 			UserData d = new UserData(new Date(time), p, speed, hash);
 
 			// building the response
 			Response res = new Response();
-			RoadStrip rs = (RoadStrip) s.createCriteria(RoadStrip.class)
-					.add(new DWithinExpression("way", p, 8.2E-4))
-					.addOrder(LocalDistanceOrder.asc("distance", p))
-					.setMaxResults(1).uniqueResult();
+			RoadStripIndex index = RoadStripIndex.getInstance();
+			SpeedAggregator speeds = SpeedAggregator.getInstance();
+			List<Map<String, Object>> traffic = new ArrayList<Map<String, Object>>();
+			Map<Integer, Map<String, Object>> sentCongestions = new LinkedHashMap<Integer, Map<String, Object>>();
+			int nearest = index.nearest(p, 8.2E-4);
+			RoadStrip rs = (nearest >= 0) ? (RoadStrip) s.get(
+					RoadStrip.class, nearest) : null;
 
 			if (rs != null) {
-				List<UserData> prevData = (List<UserData>) s
-						.createCriteria(UserData.class)
-						.add(Restrictions.eq("connectionhash", r.getID()))
-						.add(Restrictions.lt("time", new Date(time)))
-						.add(Restrictions.isNotNull("road_id"))
-						.addOrder(Order.desc("time")).list();
-
 				// getting the driving direction
-				boolean driveDirection = false;
-				if (prevData.size() > 0) {
-					UserData prev = prevData.get(0);
-					if (prev.getRoad_id() == rs.getId()) {
-						driveDirection = (prev.getPosition().distance(
-								rs.getWay().getStartPoint()) < d.getPosition()
-								.distance(rs.getWay().getStartPoint()));
-					} else {
-						driveDirection = (prev.getPosition().distance(
-								rs.getWay().getStartPoint()) > prev
-								.getPosition().distance(
-										rs.getWay().getEndPoint()));
-					}
-				}
+				d.setRoad_id(rs.getId());
+				UserData prev = LastFixCache.getInstance().previous(hash,
+						d.getTime());
+				SetDirectionService.setDirection(d, prev, rs.getWay());
+				boolean driveDirection = (prev != null) && d.getTo_start();
 
 				// adding the current road to the response
-				d.setRoad_id(rs.getId());
 				Map<String, Object> map = new HashMap<String, Object>();
 				map.put("id", rs.getId());
 				int max = (rs.getRoad().getMaxspeed() != null) ? rs.getRoad()
 						.getMaxspeed() : 0;
 				map.put("maxspeed", max);
-				map.put("speed", rs.getBestSpeed(driveDirection).getSpeed());
-				map.put("quality", rs.getBestSpeed(driveDirection)
-						.getCategory());
-				res.append(map, "traffic");
+				Speed best = speeds.getBestSpeedOrStored(rs, driveDirection);
+				map.put("speed", best.getSpeed());
+				map.put("quality", best.getCategory());
+				traffic.add(map);
 
 				// surrounding congestions of the current road
 				List<Congestion> congestions = new LinkedList<Congestion>();
@@ -150,31 +164,46 @@ public class UpdateHandler extends RequestHandler {
 
 				if (bboxType != 1) {
 					// adding all known neighbours to the response
-					Criteria crit = s.createCriteria(RoadStrip.class).add(
-							Restrictions.ne("id", rs.getId()));
+					List<Integer> ids;
+					Map<Integer, Boolean> starts = new HashMap<Integer, Boolean>();
 					if (bboxType == 2) {
-						crit.add(SpatialRestrictions.intersects("way",
-								rs.getWay()));
+						// neighbours and orientation from the adjacency
+						int[] adjacent = index.getNeighbours(rs.getId());
+						ids = new ArrayList<Integer>(adjacent.length);
+						for (int entry : adjacent) {
+							int id = RoadStripIndex.neighbourId(entry);
+							ids.add(id);
+							starts.put(id, RoadStripIndex.startsAtStrip(entry));
+						}
 					} else {
-						crit.add(SpatialRestrictions.intersects("way",
-								GeomHelper.createRectangle(p, 2000)));
+						ids = index.intersecting(GeomHelper.createRectangle(p,
+								2000));
 					}
+					ids.remove(Integer.valueOf(rs.getId()));
 
-					List<RoadStrip> neighbours = (List<RoadStrip>) crit.list();
+					List<RoadStrip> neighbours = new LinkedList<RoadStrip>();
+					if (!ids.isEmpty()) {
+						neighbours = (List<RoadStrip>) s
+								.createCriteria(RoadStrip.class)
+								.add(Restrictions.in("id", ids))
+								.setFetchMode("road", FetchMode.JOIN).list();
+					}
 					// adding the neighbors to the output
 					for (RoadStrip neighbour : neighbours) {
-						boolean direction = neighbour.getWay().getStartPoint()
-								.intersects(rs.getWay());
+						Boolean direction = starts.get(neighbour.getId());
+						if (direction == null) {
+							direction = neighbour.getWay().getStartPoint()
+									.intersects(rs.getWay());
+						}
 						map = new HashMap<String, Object>();
 						map.put("id", neighbour.getId());
 						max = (neighbour.getRoad().getMaxspeed() != null) ? neighbour
 								.getRoad().getMaxspeed() : 0;
 						map.put("maxspeed", max);
-						map.put("speed", neighbour.getBestSpeed(direction)
-								.getSpeed());
-						map.put("quality", neighbour.getBestSpeed(direction)
-								.getCategory());
-						res.append(map, "traffic");
+						best = speeds.getBestSpeedOrStored(neighbour, direction);
+						map.put("speed", best.getSpeed());
+						map.put("quality", best.getCategory());
+						traffic.add(map);
 
 						// congestions of the neighbor
 						congestions.addAll(neighbour.getCongestions());
@@ -189,24 +218,38 @@ public class UpdateHandler extends RequestHandler {
 					map.put("type", c.getType());
 					map.put("time", c.getReportingtime().getTime());
 					map.put("id", c.getId());
-					res.append(map, "congestions");
+					sentCongestions.put(c.getId(), map);
+				}
+			}
+			if (r.getData().containsKey("version")) {
+				appendDelta(res, r, traffic, sentCongestions);
+			} else {
+				for (Map<String, Object> m : traffic) {
+					res.append(m, "traffic");
+				}
+				for (Map<String, Object> m : sentCongestions.values()) {
+					res.append(m, "congestions");
 				}
 			}
 
 			// check if a route is active and has changed since the last request
-			if (r.getClient().getRoute() != null
-					&& r.getClient().getRoute().isUpdated()) {
+			if (r.getClient().isRouteUpdated()) {
 				res.append(true, "routing");
 			}
 
-			// send, clear and save
-			SocketCommunicator.writeOutput(getSocket(), res.getData());
-			if (save) {
-				s.clear();
-				s.save(d);
-				Database.end(true);
+			// send and queue the data for the UserDataWriter
+			if (r.getFormat() == UpdateCodec.FORMAT_BINARY) {
+				SocketCommunicator.writeBytes(getSocket(), encode(res)
+						.encode());
 			} else {
-				Database.end(false);
+				SocketCommunicator.writeOutput(getSocket(), res.getData());
+			}
+			Database.end(false);
+			if (save) {
+				LastFixCache.getInstance().update(d,
+						r.getClient().getLease());
+				speeds.record(d);
+				UserDataWriter.getInstance().save(d);
 			}
 		} else {
 			SocketCommunicator.writeOutput(getSocket(),
@@ -214,4 +257,119 @@ public class UpdateHandler extends RequestHandler {
 		}
 	}
 
+	/**
+	 * Transfers the content of a response into the {@link UpdateCodec}.
+	 * 
+	 * @param res
+	 *            The response
+	 * @return The codec with the data of the response
+	 */
+	@SuppressWarnings("unchecked")
+	private static UpdateCodec encode(Response res) {
+		UpdateCodec codec = new UpdateCodec();
+		Map<String, Object> data = (Map<String, Object>) res.getData();
+		if (data == null) {
+			return codec;
+		}
+		if (data.containsKey("version")) {
+			codec.setVersion((Long) data.get("version"));
+			codec.setDelta((Boolean) data.get("delta"));
+		}
+		codec.setRouting(data.containsKey("routing"));
+		if (data.containsKey("traffic")) {
+			for (Map<String, Object> m : (List<Map<String, Object>>) data
+					.get("traffic")) {
+				Number speed = (Number) m.get("speed");
+				Number quality = (Number) m.get("quality");
+				codec.addTraffic((Integer) m.get("id"),
+						(Integer) m.get("maxspeed"),
+						(speed != null) ? speed.doubleValue() : -1,
+						(quality != null) ? quality.intValue() : 0);
+			}
+		}
+		if (data.containsKey("removed")) {
+			for (Object id : (List<Object>) data.get("removed")) {
+				codec.addRemoved((Integer) id);
+			}
+		}
+		if (data.containsKey("congestions")) {
+			for (Map<String, Object> m : (List<Map<String, Object>>) data
+					.get("congestions")) {
+				codec.addCongestion((Integer) m.get("id"),
+						(Integer) m.get("type"), (Double) m.get("lat"),
+						(Double) m.get("lon"), (Long) m.get("time"));
+			}
+		}
+		if (data.containsKey("removedCongestions")) {
+			for (Object id : (List<Object>) data.get("removedCongestions")) {
+				codec.addRemovedCongestion((Integer) id);
+			}
+		}
+		return codec;
+	}
+
+	/**
+	 * Appends the strips and congestions, which have changed since the version
+	 * held by the client, and the ids of the removed ones. The full state is
+	 * appended, if the version is unknown.
+	 * 
+	 * @param res
+	 *            The response
+	 * @param r
+	 *            The request with the version
+	 * @param traffic
+	 *            The current strips
+	 * @param congestions
+	 *            The current congestions by id
+	 */
+	private static void appendDelta(Response res, Request r,
+			List<Map<String, Object>> traffic,
+			Map<Integer, Map<String, Object>> congestions) {
+		UpdateSnapshotCache cache = UpdateSnapshotCache.getInstance();
+		UpdateSnapshotCache.Snapshot prev = cache.get(r.getID(), r.getData()
+				.getLong("version"));
+
+		// the strips with a new speed, quality or limit
+		Map<Integer, String> trafficStates = new HashMap<Integer, String>();
+		for (Map<String, Object> m : traffic) {
+			Integer id = (Integer) m.get("id");
+			String state = m.get("speed") + ":" + m.get("quality") + ":"
+					+ m.get("maxspeed");
+			trafficStates.put(id, state);
+			if (prev == null || !state.equals(prev.getTraffic().get(id))) {
+				res.append(m, "traffic");
+			}
+		}
+
+		// the congestions with a new type or reporting time
+		Map<Integer, String> congestionStates = new HashMap<Integer, String>();
+		for (Map.Entry<Integer, Map<String, Object>> e : congestions
+				.entrySet()) {
+			String state = e.getValue().get("type") + ":"
+					+ e.getValue().get("time");
+			congestionStates.put(e.getKey(), state);
+			if (prev == null
+					|| !state.equals(prev.getCongestions().get(e.getKey()))) {
+				res.append(e.getValue(), "congestions");
+			}
+		}
+
+		// the removed elements
+		if (prev != null) {
+			for (Integer id : prev.getTraffic().keySet()) {
+				if (!trafficStates.containsKey(id)) {
+					res.append(id, "removed");
+				}
+			}
+			for (Integer id : prev.getCongestions().keySet()) {
+				if (!congestionStates.containsKey(id)) {
+					res.append(id, "removedCongestions");
+				}
+			}
+		}
+		res.set(cache.put(r.getID(), trafficStates, congestionStates, r
+				.getClient().getLease()), "version");
+		res.set(prev != null, "delta");
+	}
+
 }
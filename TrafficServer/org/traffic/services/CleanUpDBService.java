@@ -21,7 +21,11 @@ package org.traffic.services;
 import java.util.Date;
 
 import org.hibernate.Session;
+import org.traffic.database.ClientCache;
 import org.traffic.database.Database;
+import org.traffic.database.LastFixCache;
+import org.traffic.database.UpdateSnapshotCache;
+import org.traffic.database.UserDataPartitions;
 import org.traffic.logging.Log;
 import org.traffic.models.traffic.Congestion;
 import org.traffic.models.traffic.UserData;
@@ -29,9 +33,13 @@ import org.traffic.models.traffic.UserData;
 /**
  * This service checks the {@link UserData} and the {@link Congestion}to delete
  * invalid entries. Additionally all expired Clients are deleted.
+ * <p>
+ * Old {@link UserData} is removed by dropping its partitions, see
+ * {@link UserDataPartitions}. Messages without road are only searched in the
+ * partitions of the last days.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 264 $
  */
 public class CleanUpDBService extends TimedService {
 
@@ -53,8 +61,12 @@ public class CleanUpDBService extends TimedService {
 	protected void serve() {
 		Session s = Database.session();
 		s.beginTransaction();
-		int deletedLines = s.createQuery(
-				"DELETE UserData u WHERE u.road_id IS NULL").executeUpdate();
+		int deletedLines = s
+				.createQuery(
+						"DELETE UserData u WHERE u.road_id IS NULL AND u.time >= :date")
+				.setTimestamp("date",
+						UserDataPartitions.since(UserDataPartitions.RECENT_DAYS))
+				.executeUpdate();
 		Log.i("CleanUpDB", deletedLines + " line(s) of UserData deleted");
 		int deletedCongestions = s
 				.createQuery(
@@ -69,12 +81,23 @@ public class CleanUpDBService extends TimedService {
 				.setParameter("date", new Date(System.currentTimeMillis()))
 				.executeUpdate();
 		Log.i("CleanUpDB", deletedClients + " Clients deleted");
+		int expiredClients = ClientCache.getInstance().expire();
+		Log.i("CleanUpDB", expiredClients + " cached Clients expired");
+		int expiredFixes = LastFixCache.getInstance().expire();
+		Log.i("CleanUpDB", expiredFixes + " cached positions expired");
+		int expiredSnapshots = UpdateSnapshotCache.getInstance().expire();
+		Log.i("CleanUpDB", expiredSnapshots + " sent updates expired");
 		int deletedRoutes = s
 				.createQuery(
 						"DELETE Route r WHERE not exists ( from Client c WHERE c.route = r.id)")
 				.executeUpdate();
 		Log.i("CleanUpDB", deletedRoutes + " Routes deleted");
 		Database.end(true);
+		touched(deletedLines + deletedCongestions + deletedClients
+				+ deletedRoutes);
+		int droppedPartitions = UserDataPartitions.maintain();
+		Log.i("CleanUpDB", droppedPartitions
+				+ " partition(s) of UserData dropped");
 
 	}
 
@@ -18,39 +18,59 @@
  */
 package org.traffic.services;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hibernate.Session;
-import org.hibernate.criterion.Restrictions;
 import org.hibernate.type.StandardBasicTypes;
 import org.traffic.database.Database;
+import org.traffic.database.RoadStripIndex;
+import org.traffic.database.StreetNameIndex;
 import org.traffic.logging.Log;
 import org.traffic.models.traffic.AVGMeasurement;
 import org.traffic.models.traffic.Problem;
-import org.traffic.models.traffic.RoadStrip;
-import org.traffic.utils.IConstants;
-import org.traffic.utils.SocketCommunicator;
+import org.traffic.utils.NamedThreadFactory;
 
-import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
 /**
  * This service searches the database for recurring problems. Any road with two
  * or more entries is saved as a {@link Problem}. These problems could be
  * grouped by the day of week or the time they occur. If several roads are
  * jammed within a geographic region at the same time they may also be grouped.
+ * <p>
+ * The candidates are loaded by one query and grouped by day of week and hour.
+ * Each group is clustered in memory: strips within <code>DISTANCE</code> of
+ * each other belong to the same region, found as connected components over a
+ * spatial index of the group. The groups are clustered in parallel, the names
+ * of the streets are taken from the {@link StreetNameIndex}.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 143 $
+ * @version $LastChangedRevision: 264 $
  */
 public class FindRecurringProblemsService extends TimedService {
 
+	/** Distance in degree between strips of the same region */
+	private static final double DISTANCE = 0.074;
+
+	/** Number of threads for the clustering */
+	private static final int THREADS = 4;
+
+	/** Number of problems saved before the session is flushed */
+	private static final int BATCH_SIZE = 50;
+
 	/**
 	 * Custom-Constructor
 	 * 
@@ -64,11 +84,10 @@ public class FindRecurringProblemsService extends TimedService {
 	@SuppressWarnings("unchecked")
 	@Override
 	protected void serve() {
+		long start = System.currentTimeMillis();
 		Session s = Database.session();
 		s.beginTransaction();
 
-		Map<AVGMeasurement, Boolean> processed = new HashMap<AVGMeasurement, Boolean>();
-
 		// finding all problems, which are identified almost twice
 		List<Object[]> l = (List<Object[]>) s
 				.createSQLQuery(
@@ -80,94 +99,205 @@ public class FindRecurringProblemsService extends TimedService {
 				.addScalar("road_id", StandardBasicTypes.INTEGER)
 				.addScalar("dow", StandardBasicTypes.INTEGER)
 				.addScalar("hour", StandardBasicTypes.INTEGER).list();
-		for (Object[] o : l) {
-			processed.put(new AVGMeasurement((Integer) o[1], (Integer) o[2],
-					(Integer) o[0]), false);
+
+		// the existing problems are skipped
+		Set<String> existing = new HashSet<String>();
+		for (Object[] o : (List<Object[]>) s.createSQLQuery(
+				"SELECT hour, regionjson FROM data.problems")
+				.addScalar("hour", StandardBasicTypes.INTEGER)
+				.addScalar("regionjson", StandardBasicTypes.STRING).list()) {
+			existing.add(o[0] + ":" + o[1]);
 		}
+		Database.end(false);
 
-		Map<List<Integer>, AVGMeasurement> spaces = new HashMap<List<Integer>, AVGMeasurement>();
+		// grouping the candidates by dow and hour
+		Map<Integer, List<Integer>> buckets = new HashMap<Integer, List<Integer>>();
+		for (Object[] o : l) {
+			int key = (Integer) o[1] * 24 + (Integer) o[2];
+			List<Integer> strips = buckets.get(key);
+			if (strips == null) {
+				strips = new ArrayList<Integer>();
+				buckets.put(key, strips);
+			}
+			strips.add((Integer) o[0]);
+		}
 
 		// finding all problems who affect more than one roadstrip
-		for (AVGMeasurement a : processed.keySet()) {
-			if (processed.get(a)) {
-				continue;
-			}
-			List<Integer> roadstrips = new LinkedList<Integer>();
-			RoadStrip r = (RoadStrip) s.load(RoadStrip.class, a.getRoad_id());
-			roadstrips.add(a.getRoad_id());
-			processed.put(a, true);
-
-			// finding neighbours in a 5 km radius - same dow, same time
-			List<Object[]> neighbours = (List<Object[]>) s
-					.createSQLQuery(
-							"SELECT a.road_id, a.dow, a.hour "
-									+ "FROM data.avg_speed_per_time a "
-									+ "INNER JOIN data.roadstrips rs ON a.road_id = rs.id "
-									+ "WHERE a.maxspeed * 0.8 > a.speed and a.dow = :dow and a.hour = :hour and a.road_id <> :road "
-									+ "		and ST_DWithin(rs.way, GeometryFromText('"
-									+ r.getWay().toString()
-									+ "', 4326), 0.074) "
-									+ "GROUP BY a.road_id, a.dow, a.hour "
-									+ "HAVING Count(*) > 1")
-					.addScalar("road_id", StandardBasicTypes.INTEGER)
-					.addScalar("dow", StandardBasicTypes.INTEGER)
-					.addScalar("hour", StandardBasicTypes.INTEGER)
-					.setParameter("dow", a.getDow())
-					.setParameter("hour", a.getHour())
-					.setParameter("road", a.getRoad_id()).list();
-
-			// making lists and mark the processed avgs
-			for (Object[] o : neighbours) {
-				AVGMeasurement avg = new AVGMeasurement((Integer) o[1],
-						(Integer) o[2], (Integer) o[0]);
-				roadstrips.add(avg.getRoad_id());
-				processed.put(avg, true);
+		List<Integer> keys = new ArrayList<Integer>(buckets.keySet());
+		Collections.sort(keys);
+		List<Future<List<List<Integer>>>> results = new ArrayList<Future<List<List<Integer>>>>();
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS,
+				new NamedThreadFactory("Problems"));
+		Map<List<Integer>, AVGMeasurement> spaces = new LinkedHashMap<List<Integer>, AVGMeasurement>();
+		try {
+			for (Integer key : keys) {
+				results.add(pool.submit(new Clustering(buckets.get(key))));
 			}
 
 			// finding same problem at another dow
-			Collections.sort(roadstrips);
-			AVGMeasurement done = (AVGMeasurement) spaces.get(roadstrips);
-			if (done != null) {
-				done.getTmpDows().add(a.getDow());
-				spaces.put(roadstrips, done);
-			} else {
-				spaces.put(roadstrips, a);
+			for (int i = 0; i < keys.size(); i++) {
+				int dow = keys.get(i) / 24;
+				int hour = keys.get(i) % 24;
+				for (List<Integer> roadstrips : results.get(i).get()) {
+					AVGMeasurement done = spaces.get(roadstrips);
+					if (done != null) {
+						done.getTmpDows().add(dow);
+					} else {
+						spaces.put(roadstrips, new AVGMeasurement(dow, hour,
+								roadstrips.get(0)));
+					}
+				}
 			}
+		} catch (Exception e) {
+			Log.e("FindRecurringProblemsService", e.getClass() + "@serve: "
+					+ e.getMessage());
+			return;
+		} finally {
+			pool.shutdown();
 		}
 
 		// creating the recognized Problems
+		List<Problem> problems = new ArrayList<Problem>();
 		for (Map.Entry<List<Integer>, AVGMeasurement> entry : spaces.entrySet()) {
 			Problem p = new Problem(entry.getValue().getHour(), entry.getKey()
 					.toString());
-			int id = entry.getKey().get(
-					(int) (Math.random() * entry.getKey().size()));
-			RoadStrip rs = (RoadStrip) s.load(RoadStrip.class, id);
-			Coordinate c = rs.getWay().getCoordinateN(
-					(int) (Math.random() * rs.getWay().getNumPoints()));
-			String cloudmade = IConstants.CM_GEOCODING + c.y + "," + c.x;
-			String street = null;
-			try {
-				// getting the name of an affected street
-				JSONObject jAnswer = JSONObject.fromObject(SocketCommunicator
-						.getContent(cloudmade, "UTF8"));
-				JSONArray jFeatures = jAnswer.getJSONArray("features");
-				street = jFeatures.getJSONObject(0).getJSONObject("properties")
-						.getString("name");
-			} catch (Exception e) {
-				Log.e("FindRecurringProblemsService", e.getClass() + "@serve: "
-						+ e.getMessage());
+			if (existing.add(p.getHour() + ":" + p.getRegionJSON())) {
+				// generating a description with an affected street
+				p.generateDescription(entry.getValue().getAllDows(),
+						street(entry.getKey()));
+				problems.add(p);
 			}
+		}
 
-			// generating a description and saving the problem
-			p.generateDescription(entry.getValue().getAllDows(), street);
-			int entries = s.createCriteria(Problem.class)
-					.add(Restrictions.eq("hour", p.getHour()))
-					.add(Restrictions.eq("regionJSON", p.getRegionJSON()))
-					.list().size();
-			if (entries == 0) {
-				s.save(p);
+		// saving the new problems in batches
+		s = Database.session();
+		s.beginTransaction();
+		for (int i = 0; i < problems.size(); i++) {
+			s.save(problems.get(i));
+			if ((i + 1) % BATCH_SIZE == 0) {
+				s.flush();
+				s.clear();
 			}
 		}
 		Database.end(true);
+		touched(problems.size());
+		Log.i("FindRecurringProblemsService", l.size() + " candidate(s) in "
+				+ keys.size() + " group(s), " + spaces.size()
+				+ " region(s), " + problems.size() + " new problem(s) in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Returns the name of a street within the region. A strip of a named road
+	 * is preferred, otherwise the nearest named strip is used.
+	 * 
+	 * @param roadstrips
+	 *            The ids of the strips of the region
+	 * @return The name or <code>null</code>, if it is unknown
+	 */
+	private static String street(List<Integer> roadstrips) {
+		StreetNameIndex names = StreetNameIndex.getInstance();
+		for (Integer id : roadstrips) {
+			String street = names.getName(id);
+			if (street != null) {
+				return street;
+			}
+		}
+		for (Integer id : roadstrips) {
+			LineString way = RoadStripIndex.getInstance().getWay(id);
+			if (way != null) {
+				return names.nearest(way.getCoordinateN(way.getNumPoints() / 2));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Clusters the jammed strips of one day of week and hour into regions.
+	 */
+	private static class Clustering implements Callable<List<List<Integer>>> {
+
+		/** The ids of the jammed strips */
+		private final List<Integer> ids;
+
+		/**
+		 * Custom-Constructor with the strips of the group.
+		 * 
+		 * @param ids
+		 *            The ids of the jammed strips
+		 */
+		private Clustering(List<Integer> ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public List<List<Integer>> call() {
+			RoadStripIndex index = RoadStripIndex.getInstance();
+			int n = ids.size();
+			LineString[] ways = new LineString[n];
+			STRtree tree = new STRtree();
+			for (int i = 0; i < n; i++) {
+				ways[i] = index.getWay(ids.get(i));
+				if (ways[i] != null) {
+					tree.insert(ways[i].getEnvelopeInternal(), i);
+				}
+			}
+			tree.build();
+
+			// joining all strips within the distance
+			int[] parents = new int[n];
+			for (int i = 0; i < n; i++) {
+				parents[i] = i;
+			}
+			for (int i = 0; i < n; i++) {
+				if (ways[i] == null) {
+					continue;
+				}
+				Envelope env = new Envelope(ways[i].getEnvelopeInternal());
+				env.expandBy(DISTANCE);
+				for (Object o : tree.query(env)) {
+					int j = (Integer) o;
+					if (j > i && find(parents, i) != find(parents, j)
+							&& ways[i].isWithinDistance(ways[j], DISTANCE)) {
+						parents[find(parents, j)] = find(parents, i);
+					}
+				}
+			}
+
+			// collecting the sorted ids of each region
+			Map<Integer, List<Integer>> regions = new LinkedHashMap<Integer, List<Integer>>();
+			for (int i = 0; i < n; i++) {
+				int root = find(parents, i);
+				List<Integer> region = regions.get(root);
+				if (region == null) {
+					region = new ArrayList<Integer>();
+					regions.put(root, region);
+				}
+				region.add(ids.get(i));
+			}
+			List<List<Integer>> result = new ArrayList<List<Integer>>();
+			for (List<Integer> region : regions.values()) {
+				Collections.sort(region);
+				result.add(region);
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the root of the region of a strip and shortens the path.
+		 * 
+		 * @param parents
+		 *            The parent of each strip
+		 * @param i
+		 *            The index of the strip
+		 * @return The index of the root
+		 */
+		private static int find(int[] parents, int i) {
+			while (parents[i] != i) {
+				parents[i] = parents[parents[i]];
+				i = parents[i];
+			}
+			return i;
+		}
 	}
 }
@@ -20,6 +20,7 @@ package org.traffic.services;
 
 import org.hibernate.Session;
 import org.traffic.database.Database;
+import org.traffic.database.UserDataPartitions;
 import org.traffic.logging.Log;
 import org.traffic.models.traffic.UserData;
 
@@ -27,10 +28,11 @@ import org.traffic.models.traffic.UserData;
  * This service runs over the {@link UserData} and prices each message. This
  * price depends on the position of the message. If it lays in the middle of a
  * road it is weighted with factor 10. If it's near a crossing road it gets
- * factor 1.
+ * factor 1. Only the partitions of the last <code>RECENT_DAYS</code> days
+ * are searched for unpriced messages.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 143 $
+ * @version $LastChangedRevision: 264 $
  */
 public class PriceUserDataService extends TimedService {
 
@@ -56,10 +58,14 @@ public class PriceUserDataService extends TimedService {
 								+ "WHEN(SELECT Count(r.id) AS count "
 								+ "FROM data.roadstrips r "
 								+ "WHERE ST_DWithin(userdata.position, r.way, 0.0007)) < 2 THEN 10 "
-								+ "ELSE 1 END " + "WHERE factor IS NULL")
+								+ "ELSE 1 END "
+								+ "WHERE factor IS NULL AND time >= :since")
+				.setTimestamp("since",
+						UserDataPartitions.since(UserDataPartitions.RECENT_DAYS))
 				.executeUpdate();
 		Log.i("CleanUpDB", updatedLines + " line(s) of UserData updated");
 		Database.end(true);
+		touched(updatedLines);
 	}
 
 }
@@ -18,34 +18,75 @@
  */
 package org.traffic.services;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hibernate.Session;
+import org.traffic.database.ClientCache;
 import org.traffic.database.Database;
+import org.traffic.database.RoadStripIndex;
+import org.traffic.database.SpeedAggregator;
 import org.traffic.logging.Log;
-import org.traffic.models.traffic.Congestion;
-import org.traffic.models.traffic.RoadStrip;
 import org.traffic.models.traffic.Route;
-import org.traffic.utils.GeomHelper;
-import org.traffic.utils.SocketCommunicator;
+import org.traffic.routing.Router;
+import org.traffic.utils.NamedThreadFactory;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.geom.Polygon;
 
 /**
  * This service checks whether a stored route must be updated due to a change in
- * the jammed streets or the congestions.
+ * the speeds of the streets or the congestions. The route is calculated again
+ * with the {@link Router} through its stored waypoints.
+ * <p>
+ * Only routes affected by a change are calculated. For each route the strips
+ * within <code>CORRIDOR_WIDTH</code> degree are kept as its corridor. A strip
+ * has changed, if its speed moved to another band of <code>SPEED_BAND</code>
+ * km/h or a congestion was added or removed. The affected routes are
+ * calculated by <code>ROUTING_THREADS</code> threads. The first run
+ * calculates all routes. The corridors and bands belong to one version of
+ * the {@link RoadStripIndex}, after a reload they are rebuilt and all routes
+ * are calculated again.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 231 $
+ * @version $LastChangedRevision: 265 $
  */
 public class RefreshRoutesService extends TimedService {
 
+	/** Distance in degree around a route, which belongs to its corridor */
+	private static final double CORRIDOR_WIDTH = 0.005;
+
+	/** Width of a speed band in km/h */
+	private static final double SPEED_BAND = 10;
+
+	/** Number of threads calculating routes */
+	private static final int ROUTING_THREADS = 4;
+
+	/** The threads calculating the routes */
+	private final ExecutorService pool = Executors.newFixedThreadPool(
+			ROUTING_THREADS, new NamedThreadFactory("Routing"));
+
+	/** The strips of the corridor by the id of the route */
+	private final Map<Integer, int[]> corridors = new HashMap<Integer, int[]>();
+
+	/** The version of the index the corridors and bands belong to */
+	private int indexVersion = -1;
+
+	/** Speed bands of the last run by direction and strip */
+	private byte[][] bands = null;
+
+	/** The strips with a congestion in the last run */
+	private Set<Integer> congestedBefore = null;
+
 	/**
 	 * Custom-Constructor
 	 * 
@@ -59,88 +100,191 @@ public class RefreshRoutesService extends TimedService {
 	@SuppressWarnings("unchecked")
 	@Override
 	public void serve() {
+		long start = System.currentTimeMillis();
 		Session s = Database.session();
 		s.beginTransaction();
 
-		// getting all routes
+		// the strip ids of an older index are not valid anymore
+		int version = RoadStripIndex.getInstance().getVersion();
+		if (version != indexVersion) {
+			corridors.clear();
+			bands = null;
+			indexVersion = version;
+		}
+
+		// getting all routes and congestions
 		List<Route> routes = (List<Route>) s.createCriteria(Route.class).list();
+		Set<Integer> congested = Router.loadCongestedStrips(s);
+		Set<Integer> changedStrips = findChangedStrips(congested);
 
+		// updating the corridors and searching the affected routes
+		Set<Integer> active = new HashSet<Integer>();
+		Map<Integer, List<Route>> routesByStrip = new HashMap<Integer, List<Route>>();
+		List<Route> affected = new ArrayList<Route>();
 		for (Route r : routes) {
-			Log.d("RefreshRoutesService", "Refreshing route " + r.getId());
-			Point start = r.getRoute().getStartPoint();
-			Point end = r.getRoute().getEndPoint();
-			Polygon bbox = GeomHelper.createRectangle(start.getX(),
-					start.getY(), end.getX(), end.getY());
-
-			// searcing jammed roads
-			List<RoadStrip> l = (List<RoadStrip>) s
-					.createSQLQuery(
-							"SELECT DISTINCT rs.* FROM data.roadstrips rs "
-									+ "INNER JOIN data.roads r ON rs.road_id =r.id "
-									+ "INNER JOIN data.speeds_to_start sts ON rs.id = sts.road_id "
-									+ "WHERE r.maxspeed * 0.8 > sts.speed "
-									+ "AND ST_Intersects(\"way\", GeometryFromText ( '"
-									+ bbox.toString() + "', 4326 ))")
-					.addEntity(RoadStrip.class).list();
-
-			l.addAll((List<RoadStrip>) s
-					.createSQLQuery(
-							"SELECT DISTINCT rs.* FROM data.roadstrips rs "
-									+ "INNER JOIN data.roads r ON rs.road_id =r.id "
-									+ "INNER JOIN data.speeds_to_end sts ON rs.id = sts.road_id "
-									+ "WHERE r.maxspeed * 0.8 > sts.speed "
-									+ "AND ST_Intersects(\"way\", GeometryFromText ( '"
-									+ bbox.toString() + "', 4326 ))")
-					.addEntity(RoadStrip.class).list());
-
-			// searching congestions
-			List<Congestion> lc = (List<Congestion>) s.createCriteria(
-					Congestion.class).list();
-
-			// setting up the request for Cloudmade
-			StringBuffer query = new StringBuffer();
-			query.append(r.getCloudmade());
-			
-			// adding the coordinate of all known congestions
-			for (Congestion c : lc) {
-				Point p = c.getPosition();
-				query.append("&blockedRoad=" + p.getY() + "," + p.getX());
+			active.add(r.getId());
+			int[] corridor = corridors.get(r.getId());
+			if (corridor == null) {
+				corridor = corridor(r.getRoute());
+				corridors.put(r.getId(), corridor);
 			}
-
-			// adding the point from the blocked roadstrips to block it
-			for (RoadStrip rs : l) {
-				Coordinate[] cPoints = rs.getWay().getCoordinates();
-				for (int i = 0; i < cPoints.length; i++) {
-					Coordinate c = cPoints[i];
-					query.append("&blockedRoad=" + c.y + "," + c.x);
+			if (changedStrips == null) {
+				affected.add(r);
+				continue;
+			}
+			for (int strip : corridor) {
+				List<Route> l = routesByStrip.get(strip);
+				if (l == null) {
+					l = new LinkedList<Route>();
+					routesByStrip.put(strip, l);
 				}
+				l.add(r);
 			}
+		}
+		corridors.keySet().retainAll(active);
+		if (changedStrips != null) {
+			Set<Route> found = new HashSet<Route>();
+			for (Integer strip : changedStrips) {
+				List<Route> l = routesByStrip.get(strip);
+				if (l != null) {
+					found.addAll(l);
+				}
+			}
+			affected.addAll(found);
+		}
 
-			// getting the JSON-response and parsing it
+		// calculating the affected routes in parallel
+		List<Future<LineString>> results = new ArrayList<Future<LineString>>();
+		for (Route r : affected) {
+			results.add(pool.submit(new RoutingTask(r, congested)));
+		}
+		List<String> changed = new LinkedList<String>();
+		for (int i = 0; i < affected.size(); i++) {
+			Route r = affected.get(i);
 			try {
-				String directionsJSON = SocketCommunicator.getContent(
-						query.toString(), "UTF8");
-				JSONObject jAnswer = JSONObject.fromObject(directionsJSON);
-				JSONArray jRouting = jAnswer.getJSONArray("route_geometry");
-
-				Point[] points = new Point[jRouting.size()];
-				for (int i = 0; i < jRouting.size(); i++) {
-					points[i] = GeomHelper.createPoint(jRouting.getJSONArray(i)
-							.getDouble(1), jRouting.getJSONArray(i)
-							.getDouble(0));
-				}
-				LineString routing = GeomHelper.createLineString(points);
-				if (!r.getRoute().equals(routing)) {
+				LineString routing = results.get(i).get();
+				if (routing != null && !r.getRoute().equals(routing)) {
 					r.setRoute(routing);
 					r.setUpdated(true);
 					s.saveOrUpdate(r);
+					corridors.put(r.getId(), corridor(routing));
+					if (r.getClient() != null) {
+						changed.add(r.getClient().getHash());
+					}
 				}
 				Log.d("RefreshRoutesService", "Route " + r.getId() + " refreshed");
 			} catch (Exception e) {
-				e.printStackTrace();
+				Log.e("RefreshRoutesService",
+						e.getClass() + "@serve: " + e.getMessage());
 			}
 		}
 
 		Database.end(true);
+		touched(changed.size());
+
+		// the cached clients must load their new routes
+		for (String hash : changed) {
+			ClientCache.getInstance().invalidate(hash);
+		}
+		Log.i("RefreshRoutesService", affected.size() + " of " + routes.size()
+				+ " route(s) calculated, " + changed.size() + " changed in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Compares the speed bands and congestions with the last run.
+	 * 
+	 * @param congested
+	 *            The strips with a congestion
+	 * @return The changed strips or <code>null</code> in the first run
+	 */
+	private Set<Integer> findChangedStrips(Set<Integer> congested) {
+		int length = RoadStripIndex.getInstance().getMaxId() + 1;
+		SpeedAggregator speeds = SpeedAggregator.getInstance();
+		byte[][] current = new byte[2][length];
+		Set<Integer> changedStrips = new HashSet<Integer>();
+		for (int id = 0; id < length; id++) {
+			for (int direction = 0; direction < 2; direction++) {
+				double speed = speeds.getSpeed(id, direction == 1);
+				current[direction][id] = (byte) ((speed < 0) ? -1 : Math.min(
+						Byte.MAX_VALUE, (int) (speed / SPEED_BAND)));
+				if (bands != null
+						&& (id >= bands[direction].length
+								|| bands[direction][id] != current[direction][id])) {
+					changedStrips.add(id);
+				}
+			}
+		}
+
+		boolean first = (bands == null);
+		if (!first) {
+			for (Integer id : congested) {
+				if (!congestedBefore.contains(id)) {
+					changedStrips.add(id);
+				}
+			}
+			for (Integer id : congestedBefore) {
+				if (!congested.contains(id)) {
+					changedStrips.add(id);
+				}
+			}
+		}
+		bands = current;
+		congestedBefore = congested;
+		return first ? null : changedStrips;
+	}
+
+	/**
+	 * Returns the strips near a route.
+	 * 
+	 * @param route
+	 *            The geometry of the route
+	 * @return The ids of the strips
+	 */
+	private static int[] corridor(LineString route) {
+		List<Integer> ids = RoadStripIndex.getInstance().intersecting(
+				route.buffer(CORRIDOR_WIDTH));
+		int[] result = new int[ids.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ids.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Calculates a route through the waypoints of a stored route.
+	 */
+	private static class RoutingTask implements Callable<LineString> {
+
+		/** The waypoints */
+		private final List<Point> waypoints;
+
+		/** The strips with a congestion */
+		private final Set<Integer> congested;
+
+		/**
+		 * Custom-Constructor with the route and the congestions.
+		 * 
+		 * @param r
+		 *            The stored route
+		 * @param congested
+		 *            The strips with a congestion
+		 */
+		private RoutingTask(Route r, Set<Integer> congested) {
+			List<Point> points = Router.decodeWaypoints(r.getCloudmade());
+			if (points == null) {
+				// routes of older versions only know start and end
+				points = new ArrayList<Point>();
+				points.add(r.getRoute().getStartPoint());
+				points.add(r.getRoute().getEndPoint());
+			}
+			this.waypoints = points;
+			this.congested = congested;
+		}
+
+		@Override
+		public LineString call() {
+			return Router.getInstance().route(waypoints, congested);
+		}
 	}
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.services;
+
+import org.traffic.database.ClientCache;
+import org.traffic.database.SpatialQueries;
+import org.traffic.logging.Log;
+import org.traffic.metrics.Metrics;
+import org.traffic.server.RequestExecutor;
+import org.traffic.server.RequestStatistics;
+
+/**
+ * This service logs the queue depth, the waiting time and the service time of
+ * each request-type handled by the {@link RequestExecutor} and the hit-rate
+ * of the {@link ClientCache}, the execution time of the
+ * {@link SpatialQueries} and the {@link ServiceStatistics} of the services.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 264 $
+ * @see RequestStatistics
+ */
+public class RequestStatisticsService extends TimedService {
+
+	/**
+	 * Custom-Constructor
+	 * 
+	 * @param time
+	 *            Time to pause between the runs
+	 */
+	public RequestStatisticsService(long time) {
+		super(time);
+	}
+
+	@Override
+	protected void serve() {
+		RequestExecutor executor = RequestExecutor.getInstance();
+		Log.i("RequestStatistics", executor.getWaitingConnections()
+				+ " connection(s) waiting, " + executor.getActiveHandlers()
+				+ " handler(s) active");
+		for (RequestStatistics stats : executor.getStatistics()) {
+			Log.i("RequestStatistics", stats.toString());
+		}
+		Log.i("RequestStatistics", "ClientCache - "
+				+ ClientCache.getInstance());
+		Log.i("RequestStatistics", "SpatialQueries - "
+				+ SpatialQueries.getInstance());
+		for (ServiceStatistics stats : Metrics.getInstance()
+				.getServiceStatistics()) {
+			Log.i("RequestStatistics", stats.toString());
+		}
+	}
+
+}
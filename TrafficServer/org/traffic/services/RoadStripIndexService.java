@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.services;
+
+import org.traffic.database.RoadStripIndex;
+import org.traffic.logging.Log;
+
+/**
+ * This service checks whether the strips in the database were changed, e.g.
+ * by the {@link org.traffic.database.StreetPreparer}, and reloads the
+ * {@link RoadStripIndex} if necessary.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 242 $
+ */
+public class RoadStripIndexService extends TimedService {
+
+	/**
+	 * Custom-Constructor
+	 * 
+	 * @param time
+	 *            Time to pause between the runs
+	 */
+	public RoadStripIndexService(long time) {
+		super(time);
+	}
+
+	@Override
+	protected void serve() {
+		try {
+			RoadStripIndex.getInstance().refresh();
+		} catch (Exception e) {
+			Log.e("RoadStripIndexService",
+					e.getClass() + "@serve: " + e.getMessage());
+		}
+	}
+
+}
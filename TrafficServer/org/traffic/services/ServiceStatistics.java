@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the figures of the runs of one {@link TimedService}: the duration
+ * of a run, the time spent in database-transactions and the number of rows
+ * the run touched.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 264 $
+ * @see org.traffic.metrics.Metrics
+ */
+public class ServiceStatistics {
+
+	/** The name of the service */
+	private final String name;
+
+	/** Number of finished runs */
+	private final AtomicLong runs = new AtomicLong();
+
+	/** Number of runs which ended with an exception */
+	private final AtomicLong failed = new AtomicLong();
+
+	/** Duration of the last run in millis */
+	private volatile long lastDuration = 0;
+
+	/** Maximal duration of a run in millis */
+	private volatile long maxDuration = 0;
+
+	/** Sum of the durations in millis */
+	private final AtomicLong duration = new AtomicLong();
+
+	/** Time of the last run in database-transactions in millis */
+	private volatile long lastDatabaseTime = 0;
+
+	/** Rows touched by the last run */
+	private volatile long lastRows = 0;
+
+	/** Rows touched by all runs */
+	private final AtomicLong rows = new AtomicLong();
+
+	/**
+	 * Custom-Constructor with the name of the service.
+	 * 
+	 * @param name
+	 *            The name
+	 */
+	public ServiceStatistics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Marks a run as finished. Only called by the thread of the service.
+	 * 
+	 * @param millis
+	 *            The duration of the run
+	 * @param dbMillis
+	 *            The time spent in database-transactions
+	 * @param touched
+	 *            The number of touched rows
+	 * @param success
+	 *            <code>false</code>, if the run threw an exception
+	 */
+	void finished(long millis, long dbMillis, long touched, boolean success) {
+		runs.incrementAndGet();
+		if (!success) {
+			failed.incrementAndGet();
+		}
+		lastDuration = millis;
+		maxDuration = Math.max(maxDuration, millis);
+		duration.addAndGet(millis);
+		lastDatabaseTime = dbMillis;
+		lastRows = touched;
+		rows.addAndGet(touched);
+	}
+
+	/**
+	 * Returns the name of the service.
+	 * 
+	 * @return The name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of finished runs.
+	 * 
+	 * @return The number of runs
+	 */
+	public long getRuns() {
+		return runs.get();
+	}
+
+	/**
+	 * Returns the number of runs which ended with an exception.
+	 * 
+	 * @return The number of runs
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the duration of the last run.
+	 * 
+	 * @return The time in millis
+	 */
+	public long getLastDuration() {
+		return lastDuration;
+	}
+
+	/**
+	 * Returns the maximal duration of a run.
+	 * 
+	 * @return The time in millis
+	 */
+	public long getMaxDuration() {
+		return maxDuration;
+	}
+
+	/**
+	 * Returns the average duration of a run.
+	 * 
+	 * @return The time in millis
+	 */
+	public double getAverageDuration() {
+		long count = runs.get();
+		return (count > 0) ? 1.0 * duration.get() / count : 0;
+	}
+
+	/**
+	 * Returns the time the last run spent in database-transactions.
+	 * 
+	 * @return The time in millis
+	 */
+	public long getLastDatabaseTime() {
+		return lastDatabaseTime;
+	}
+
+	/**
+	 * Returns the number of rows touched by the last run.
+	 * 
+	 * @return The number of rows
+	 */
+	public long getLastRows() {
+		return lastRows;
+	}
+
+	/**
+	 * Returns the number of rows touched by all runs.
+	 * 
+	 * @return The number of rows
+	 */
+	public long getRows() {
+		return rows.get();
+	}
+
+	@Override
+	public String toString() {
+		return name + ": runs=" + getRuns() + ", failed=" + getFailed()
+				+ ", duration(last/avg/max)=" + getLastDuration() + "/"
+				+ Math.round(getAverageDuration()) + "/" + getMaxDuration()
+				+ "ms, db(last)=" + getLastDatabaseTime() + "ms, rows(last)="
+				+ getLastRows();
+	}
+}
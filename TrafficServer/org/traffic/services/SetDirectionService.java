@@ -18,26 +18,47 @@
  */
 package org.traffic.services;
 
+import java.util.Date;
 import java.util.List;
 
+import org.hibernate.Criteria;
 import org.hibernate.Session;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
 import org.traffic.database.Database;
+import org.traffic.database.RoadStripIndex;
+import org.traffic.database.UserDataPartitions;
 import org.traffic.logging.Log;
 import org.traffic.models.traffic.RoadStrip;
 import org.traffic.models.traffic.UserData;
 
+import com.vividsolutions.jts.geom.LineString;
+
 /**
- * This service loads all {@link UserData} for which the driving direction is
- * not set. It searches the previous entry and calculates the direction by
- * different comparisons.
+ * This service completes the {@link UserData} for which the driving direction
+ * is not set. It searches the previous entry of the same client and
+ * calculates the direction by different comparisons.
+ * <p>
+ * The messages of the update-requests get their direction already from the
+ * {@link org.traffic.database.LastFixCache} when they arrive, so this service
+ * only catches up with messages saved without one. They are processed in
+ * chunks of <code>CHUNK_SIZE</code>, ordered by client and time, each chunk
+ * in its own transaction. The next chunk continues after the last key of the
+ * previous one, so the memory is bounded regardless of the backlog. Only the
+ * partitions of the last <code>RECENT_DAYS</code> days are searched.
+ * <p>
+ * The previous message is looked up for each message, because the messages
+ * between two of a chunk may have got their direction already and are not
+ * part of the chunk.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 264 $
  */
 public class SetDirectionService extends TimedService {
 
+	/** Number of messages per chunk */
+	private static final int CHUNK_SIZE = 1000;
+
 	/**
 	 * Custom-Constructor
 	 * 
@@ -48,65 +69,127 @@ public class SetDirectionService extends TimedService {
 		super(time);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	protected void serve() {
-		Session s = Database.session();
-		s.beginTransaction();
-		// loading all data without driving direction
-		List<UserData> lst = (List<UserData>) s
-				.createCriteria(UserData.class)
-				.add(Restrictions.or(Restrictions.isNull("to_start"),
-						Restrictions.isNull("to_end"))).list();
-		for (UserData data : lst) {
-			if (data.getRoad_id() == null) {
-				continue;
-			}
-			
-			// searching previous message
-			RoadStrip rs = (RoadStrip) s.load(RoadStrip.class,
-					data.getRoad_id());
-			List<UserData> lstPrev = (List<UserData>) s
-					.createCriteria(UserData.class)
-					.add(Restrictions.lt("time", data.getTime()))
-					.addOrder(Order.desc("time")).setMaxResults(1).list();
-			for (UserData prev : lstPrev) {
-				
-				// previous message on the same road
-				if (prev.getRoad_id() == data.getRoad_id()) {
-					double dist = data.getPosition().distance(
-							rs.getWay().getStartPoint());
-					double distPrev = prev.getPosition().distance(
-							rs.getWay().getStartPoint());
-					if (dist > distPrev) {
-						data.setTo_end(true);
-						data.setTo_start(false);
-					} else {
-						data.setTo_end(false);
-						data.setTo_start(true);
-					}
-				} else {
-					// previous message on another road
-					double distStartPrev = prev.getPosition().distance(
-							rs.getWay().getStartPoint());
-					double distEndPrev = prev.getPosition().distance(
-							rs.getWay().getEndPoint());
-					if (distStartPrev > distEndPrev) {
-						data.setTo_end(false);
-						data.setTo_start(true);
-					} else {
-						data.setTo_end(true);
-						data.setTo_start(false);
-					}
+		long start = System.currentTimeMillis();
+		Date since = UserDataPartitions.since(UserDataPartitions.RECENT_DAYS);
+		int count = 0;
+		UserData last = null;
+		List<UserData> chunk;
+		do {
+			Session s = Database.session();
+			s.beginTransaction();
+			chunk = loadChunk(s, last, since);
+			for (UserData data : chunk) {
+				UserData before = loadPrevious(s, data, since);
+				LineString way = RoadStripIndex.getInstance().getWay(
+						data.getRoad_id());
+				if (way == null) {
+					way = ((RoadStrip) s.load(RoadStrip.class,
+							data.getRoad_id())).getWay();
 				}
+				setDirection(data, before, way);
+				last = data;
 			}
-			if (lstPrev.size() == 0) {
-				data.setTo_end(true);
-				data.setTo_start(true);
-			}
+			Database.end(true);
+			count += chunk.size();
+		} while (chunk.size() == CHUNK_SIZE);
+		touched(count);
+		Log.i("SetDirections", count
+				+ " line(s) of UserData with directions refreshed in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Loads the next chunk of messages without driving direction.
+	 * 
+	 * @param s
+	 *            The current session
+	 * @param last
+	 *            The last message of the previous chunk or <code>null</code>
+	 *            for the first chunk
+	 * @param since
+	 *            The oldest time of a message
+	 * @return The messages ordered by client, time and id
+	 */
+	@SuppressWarnings("unchecked")
+	private List<UserData> loadChunk(Session s, UserData last, Date since) {
+		Criteria c = s
+				.createCriteria(UserData.class)
+				.add(Restrictions.ge("time", since))
+				.add(Restrictions.or(Restrictions.isNull("to_start"),
+						Restrictions.isNull("to_end")))
+				.add(Restrictions.isNotNull("road_id"));
+		if (last != null) {
+			// continuing after the key of the last message
+			String hash = last.getConnectionhash();
+			c.add(Restrictions.or(Restrictions.gt("connectionhash", hash),
+					Restrictions.and(Restrictions.eq("connectionhash", hash),
+							Restrictions.or(Restrictions.gt("time",
+									last.getTime()), Restrictions.and(
+									Restrictions.eq("time", last.getTime()),
+									Restrictions.gt("id", last.getId()))))));
+		}
+		return (List<UserData>) c.addOrder(Order.asc("connectionhash"))
+				.addOrder(Order.asc("time")).addOrder(Order.asc("id"))
+				.setMaxResults(CHUNK_SIZE).list();
+	}
+
+	/**
+	 * Loads the message of the same client on a road saved before the given
+	 * one, like the {@link org.traffic.database.LastFixCache} of the
+	 * update-requests.
+	 * 
+	 * @param s
+	 *            The current session
+	 * @param data
+	 *            The message
+	 * @param since
+	 *            The oldest time of a message
+	 * @return The previous message or <code>null</code>, if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	private UserData loadPrevious(Session s, UserData data, Date since) {
+		List<UserData> lstPrev = (List<UserData>) s
+				.createCriteria(UserData.class)
+				.add(Restrictions.eq("connectionhash", data.getConnectionhash()))
+				.add(Restrictions.ge("time", since))
+				.add(Restrictions.lt("time", data.getTime()))
+				.add(Restrictions.isNotNull("road_id"))
+				.addOrder(Order.desc("time")).addOrder(Order.desc("id"))
+				.setMaxResults(1).list();
+		return (lstPrev.size() > 0) ? lstPrev.get(0) : null;
+	}
+
+	/**
+	 * Sets the driving direction of a message by comparing it with the
+	 * previous message of the same client.
+	 * 
+	 * @param data
+	 *            The message
+	 * @param prev
+	 *            The previous message or <code>null</code>, if there is none
+	 * @param way
+	 *            The geometry of the road of the message
+	 */
+	public static void setDirection(UserData data, UserData prev,
+			LineString way) {
+		if (prev == null) {
+			data.setTo_end(true);
+			data.setTo_start(true);
+		} else if (data.getRoad_id().equals(prev.getRoad_id())) {
+			// previous message on the same road
+			double dist = data.getPosition().distance(way.getStartPoint());
+			double distPrev = prev.getPosition().distance(way.getStartPoint());
+			data.setTo_end(dist > distPrev);
+			data.setTo_start(dist <= distPrev);
+		} else {
+			// previous message on another road
+			double distStartPrev = prev.getPosition().distance(
+					way.getStartPoint());
+			double distEndPrev = prev.getPosition().distance(way.getEndPoint());
+			data.setTo_end(distStartPrev <= distEndPrev);
+			data.setTo_start(distStartPrev > distEndPrev);
 		}
-		Database.end(true);
-		Log.i("SetDirections", lst.size()
-				+ " line(s) of UserData with directions refreshed");
 	}
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.services;
+
+import org.traffic.database.SpeedAggregator;
+
+/**
+ * This service writes the speeds aggregated by the {@link SpeedAggregator} to
+ * the database, so they survive a restart of the server.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 247 $
+ */
+public class SpeedSnapshotService extends TimedService {
+
+	/**
+	 * Custom-Constructor
+	 * 
+	 * @param time
+	 *            Time to pause between the runs
+	 */
+	public SpeedSnapshotService(long time) {
+		super(time);
+	}
+
+	@Override
+	protected void serve() {
+		SpeedAggregator.getInstance().snapshot();
+	}
+
+}
@@ -18,19 +18,30 @@
  */
 package org.traffic.services;
 
+import org.traffic.database.Database;
 import org.traffic.logging.Log;
+import org.traffic.metrics.Metrics;
 
 /**
- * Superclass of all Services which make a pause between each run.
+ * Superclass of all Services which make a pause between each run. The
+ * duration, the database-time and the touched rows of each run are stored in
+ * the {@link ServiceStatistics} of the service. A run ending with an
+ * exception is logged and the service continues after the pause.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 264 $
  */
 public abstract class TimedService extends Service {
 
 	/** The time to pause */
 	private long timeInMillis;
 
+	/** The figures of the runs */
+	private final ServiceStatistics statistics;
+
+	/** Rows touched by the current run */
+	private long rows = 0;
+
 	/**
 	 * Custom-Constructor of a TimedService.
 	 * 
@@ -39,12 +50,47 @@ public abstract class TimedService extends Service {
 	 */
 	public TimedService(long time) {
 		timeInMillis = time;
+		statistics = new ServiceStatistics(getClass().getSimpleName());
+		Metrics.getInstance().register(statistics);
+	}
+
+	/**
+	 * Adds rows touched by the current run, e.g. the number of updated or
+	 * deleted lines.
+	 * 
+	 * @param count
+	 *            The number of rows
+	 */
+	protected void touched(long count) {
+		rows += count;
+	}
+
+	/**
+	 * Returns the figures of the runs.
+	 * 
+	 * @return The statistics
+	 */
+	public ServiceStatistics getStatistics() {
+		return statistics;
 	}
 
 	@Override
 	public void run() {
 		for (;;) {
-			serve();
+			long start = System.currentTimeMillis();
+			Database.takeTransactionTime();
+			rows = 0;
+			boolean success = false;
+			try {
+				serve();
+				success = true;
+			} catch (RuntimeException e) {
+				Log.e(getClass().getSimpleName(),
+						e.getClass() + "@serve: " + e.getMessage());
+				Database.release();
+			}
+			statistics.finished(System.currentTimeMillis() - start,
+					Database.takeTransactionTime(), rows, success);
 			try {
 				Thread.sleep(timeInMillis);
 			} catch (Exception e) {
@@ -18,16 +18,27 @@
  */
 package org.traffic.services;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
 import org.hibernate.type.StandardBasicTypes;
 import org.traffic.database.Database;
+import org.traffic.database.UserDataPartitions;
+import org.traffic.logging.Log;
 import org.traffic.models.traffic.Road;
 import org.traffic.models.traffic.RoadStrip;
+import org.traffic.utils.NamedThreadFactory;
 
 /**
  * This service tries to calculate a speed limit for street where none is given.
@@ -44,9 +55,14 @@ import org.traffic.models.traffic.RoadStrip;
  * <li>Select this range as speed limit</li>
  * <li>Select the lowest value otherwise</li>
  * </ul>
+ * The messages of all strips are counted by one query, whose rows are read
+ * into arrays indexed by the id of the strip. The strips are split into
+ * <code>THREADS</code> partitions for the calculation and the changed
+ * {@link Road}s are written with JDBC-batches. Only the messages of the
+ * retained partitions of the userdata are read.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 143 $
+ * @version $LastChangedRevision: 264 $
  */
 public class UpdateSpeedService extends TimedService {
 
@@ -65,6 +81,15 @@ public class UpdateSpeedService extends TimedService {
 	/** Minimal distance in percentage between to values */
 	private static final double PERCENTAGE_DISTANCE = 0.2;
 
+	/** The speed limit of each range */
+	private static final int[] RANGES = { 10, 30, 50, 70, 100, 110 };
+
+	/** Number of threads for the calculation */
+	private static final int THREADS = 4;
+
+	/** Number of updates per JDBC-batch */
+	private static final int BATCH_SIZE = 500;
+
 	/**
 	 * Custom-Constructor
 	 * 
@@ -75,101 +100,248 @@ public class UpdateSpeedService extends TimedService {
 		super(time);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	protected void serve() {
+		long start = System.currentTimeMillis();
 		Session s = Database.session();
 		s.beginTransaction();
-		// getting all strips with more than MINIMAL_MESSAGES_TOTAL messages
-		List<Object[]> strips = (List<Object[]>) s
+
+		// counting the messages of all strips for each range
+		ScrollableResults rows = s
 				.createSQLQuery(
-						"SELECT r.id, Count(*) AS count "
+						"SELECT r.id, r.road_id, CASE "
+								+ "WHEN u.speed BETWEEN 0 AND 20 THEN 0 "
+								+ "WHEN u.speed BETWEEN 20 AND 40 THEN 1 "
+								+ "WHEN u.speed BETWEEN 40 AND 60 THEN 2 "
+								+ "WHEN u.speed BETWEEN 60 AND 85 THEN 3 "
+								+ "WHEN u.speed BETWEEN 85 AND 110 THEN 4 "
+								+ "ELSE 5 END AS range, Count(*) AS count "
 								+ "FROM data.roadstrips r "
 								+ "INNER JOIN data.userdata u ON u.road_id = r.id "
-								+ "WHERE ST_Distance(ST_StartPoint(r.way), u.position) > :distance "
-								+ "OR st_distance(ST_endPoint(r.way), u.position) > :distance "
-								+ "GROUP BY r.id " + "HAVING Count(*) >= :min")
+								+ "WHERE u.time >= :since "
+								+ "AND (ST_Distance(ST_StartPoint(r.way), u.position) > :distance "
+								+ "OR ST_Distance(ST_EndPoint(r.way), u.position) > :distance) "
+								+ "GROUP BY r.id, r.road_id, range")
 				.addScalar("id", StandardBasicTypes.INTEGER)
+				.addScalar("road_id", StandardBasicTypes.INTEGER)
+				.addScalar("range", StandardBasicTypes.INTEGER)
 				.addScalar("count", StandardBasicTypes.INTEGER)
-				.setParameter("min", MINIMAL_MESSAGES_TOTAL)
-				.setParameter("distance", MINIMAL_DISTANCE).list();
-		for (Object[] o : strips) {
-			int total = (Integer) o[1];
-
-			// getting the messages for each range
-			List<Object[]> speeds = (List<Object[]>) s
-					.createSQLQuery(
-							"SELECT tmp.road_id, tmp.range, Count(*) AS count "
-									+ "FROM (SELECT u.road_id, CASE "
-									+ "WHEN u.speed BETWEEN 0 AND 20 THEN 10 "
-									+ "WHEN u.speed BETWEEN 20 AND 40 THEN 30 "
-									+ "WHEN u.speed BETWEEN 40 AND 60 THEN 50 "
-									+ "WHEN u.speed BETWEEN 60 AND 85 THEN 70 "
-									+ "WHEN u.speed BETWEEN 85 AND 110 THEN 100 "
-									+ "ELSE 110 END AS range "
-									+ "FROM data.roadstrips r "
-									+ "INNER JOIN data.userdata u ON u.road_id = r.id WHERE u.road_id = "
-									+ (Integer) o[0]
-									+ " AND (ST_Distance(ST_StartPoint(r.way), u.position) > "
-									+ MINIMAL_DISTANCE
-									+ " OR st_distance(ST_endPoint(r.way), u.position) > "
-									+ MINIMAL_DISTANCE + ") ) tmp "
-									+ "GROUP BY tmp.road_id, tmp.range")
-					.addScalar("road_id", StandardBasicTypes.INTEGER)
-					.addScalar("range", StandardBasicTypes.INTEGER)
-					.addScalar("count", StandardBasicTypes.INTEGER).list();
-
-			// storing ranges with more than MINIMAL_MESSAGES_BORDER messages
-			Map<Integer, Double> amountMessages = new HashMap<Integer, Double>();
-			Integer speedlimit = null;
-			for (Object[] messages : speeds) {
-				int amount = (Integer) messages[2];
-				if (amount >= MINIMAL_MESSAGES_BORDER) {
-					amountMessages.put((Integer) messages[1],
-							(1.0 * amount / total));
-					if ((1.0 * amount / total) > PERCENTAGE_BORDER)
-						speedlimit = (Integer) messages[1];
-				}
+				.setParameter("distance", MINIMAL_DISTANCE)
+				.setTimestamp("since",
+						UserDataPartitions.since(UserDataPartitions.RETENTION_DAYS))
+				.scroll(ScrollMode.FORWARD_ONLY);
+		int[] histograms = new int[1024 * RANGES.length];
+		int[] roads = new int[1024];
+		int maxId = -1;
+		while (rows.next()) {
+			int id = (Integer) rows.get(0);
+			if (id >= roads.length) {
+				int length = Math.max(id + 1, roads.length * 2);
+				int[] r = new int[length];
+				System.arraycopy(roads, 0, r, 0, roads.length);
+				roads = r;
+				int[] h = new int[length * RANGES.length];
+				System.arraycopy(histograms, 0, h, 0, histograms.length);
+				histograms = h;
+			}
+			roads[id] = (rows.get(1) != null) ? (Integer) rows.get(1) : -1;
+			histograms[id * RANGES.length + (Integer) rows.get(2)] += (Integer) rows
+					.get(3);
+			maxId = Math.max(maxId, id);
+		}
+		rows.close();
+		long counted = System.currentTimeMillis();
 
+		// calculating the speed limits in partitions
+		int[] limits = new int[maxId + 1];
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS,
+				new NamedThreadFactory("UpdateSpeed"));
+		try {
+			List<Future<?>> parts = new ArrayList<Future<?>>();
+			int size = (maxId + THREADS) / THREADS;
+			for (int from = 0; from <= maxId; from += size) {
+				parts.add(pool.submit(new Partition(histograms, limits, from,
+						Math.min(maxId + 1, from + size))));
 			}
+			for (Future<?> f : parts) {
+				f.get();
+			}
+		} catch (Exception e) {
+			Log.e("UpdateSpeedService", e.getClass() + "@serve: "
+					+ e.getMessage());
+			Database.end(false);
+			return;
+		} finally {
+			pool.shutdown();
+		}
 
-			// checking the distance between the measures
-			if (speedlimit == null && amountMessages.size() > 1) {
-				for (Map.Entry<Integer, Double> entryX : amountMessages
-						.entrySet()) {
-					boolean check = true;
-					for (Map.Entry<Integer, Double> entryY : amountMessages
-							.entrySet()) {
-						if (entryX.getKey() != entryY.getKey()
-								&& entryX.getValue() < (entryY.getValue() + PERCENTAGE_DISTANCE)) {
-							check = false;
+		// save the values of the roads, the last strip of a road wins
+		final int[] roadLimits = new int[2 * (maxId + 1)];
+		int count = 0;
+		for (int id = 0; id <= maxId; id++) {
+			if (limits[id] > 0 && roads[id] >= 0) {
+				roadLimits[2 * count] = roads[id];
+				roadLimits[2 * count + 1] = limits[id];
+				count++;
+			}
+		}
+		final int updates = count;
+		final int[] changed = new int[1];
+		s.doWork(new Work() {
+			@Override
+			public void execute(Connection cn) throws SQLException {
+				PreparedStatement ps = cn
+						.prepareStatement("UPDATE data.roads SET maxspeed = ? "
+								+ "WHERE id = ? AND (calculated IS NULL OR calculated) "
+								+ "AND (maxspeed IS NULL OR maxspeed <> ?)");
+				try {
+					for (int i = 0; i < updates; i++) {
+						ps.setInt(1, roadLimits[2 * i + 1]);
+						ps.setInt(2, roadLimits[2 * i]);
+						ps.setInt(3, roadLimits[2 * i + 1]);
+						ps.addBatch();
+						if ((i + 1) % BATCH_SIZE == 0) {
+							changed[0] += sum(ps.executeBatch());
 						}
 					}
+					changed[0] += sum(ps.executeBatch());
+				} finally {
+					ps.close();
+				}
+			}
+		});
+		Database.end(true);
+		touched(changed[0]);
 
-					if (check) {
-						speedlimit = entryX.getKey();
-						break;
-					}
+		long time = System.currentTimeMillis() - start;
+		Log.i("UpdateSpeedService", (maxId + 1) + " strip(s) counted in "
+				+ (counted - start) + "ms, " + updates + " limit(s) found, "
+				+ changed[0] + " road(s) changed in " + time + "ms ("
+				+ ((maxId + 1) * 1000L / Math.max(1, time)) + " strips/s)");
+	}
 
-				}
+	/**
+	 * Sums the update counts of a batch.
+	 * 
+	 * @param results
+	 *            The results of the batch
+	 * @return The number of changed rows
+	 */
+	private static int sum(int[] results) {
+		int sum = 0;
+		for (int r : results) {
+			if (r > 0) {
+				sum += r;
+			}
+		}
+		return sum;
+	}
 
-				// selecting the smallest value
-				if (speedlimit == null) {
-					speedlimit = Collections.min(amountMessages.keySet());
+	/**
+	 * Calculates the speed limit of a strip from the number of messages in
+	 * each range.
+	 * 
+	 * @param histograms
+	 *            The numbers of all strips
+	 * @param offset
+	 *            The index of the first range of the strip
+	 * @return The speed limit or <code>0</code>, if none was found
+	 */
+	private static int speedLimit(int[] histograms, int offset) {
+		int total = 0;
+		for (int i = 0; i < RANGES.length; i++) {
+			total += histograms[offset + i];
+		}
+		if (total < MINIMAL_MESSAGES_TOTAL) {
+			return 0;
+		}
+
+		// storing ranges with more than MINIMAL_MESSAGES_BORDER messages
+		double[] shares = new double[RANGES.length];
+		int accepted = 0;
+		int speedlimit = 0;
+		for (int i = 0; i < RANGES.length; i++) {
+			int amount = histograms[offset + i];
+			if (amount >= MINIMAL_MESSAGES_BORDER) {
+				shares[i] = 1.0 * amount / total;
+				accepted++;
+				if (shares[i] > PERCENTAGE_BORDER)
+					speedlimit = RANGES[i];
+			} else {
+				shares[i] = -1;
+			}
+		}
+
+		// checking the distance between the measures
+		if (speedlimit == 0 && accepted > 1) {
+			for (int x = 0; x < RANGES.length && speedlimit == 0; x++) {
+				if (shares[x] < 0) {
+					continue;
+				}
+				boolean check = true;
+				for (int y = 0; y < RANGES.length; y++) {
+					if (x != y && shares[y] >= 0
+							&& shares[x] < (shares[y] + PERCENTAGE_DISTANCE)) {
+						check = false;
+					}
+				}
+				if (check) {
+					speedlimit = RANGES[x];
 				}
 			}
 
-			// save the value and set the flag
-			if (speedlimit != null) {
-				RoadStrip rs = (RoadStrip) s.load(RoadStrip.class,
-						(Integer) o[0]);
-				Road r = rs.getRoad();
-				if (r.getCalculated() == null || r.getCalculated()) {
-					r.setMaxspeed(speedlimit);
-					s.save(r);
+			// selecting the smallest value
+			for (int i = 0; i < RANGES.length && speedlimit == 0; i++) {
+				if (shares[i] >= 0) {
+					speedlimit = RANGES[i];
 				}
 			}
 		}
-		Database.end(true);
+		return speedlimit;
+	}
+
+	/**
+	 * Calculates the speed limits of a range of strips.
+	 */
+	private static class Partition implements Callable<Object> {
+
+		/** The numbers of messages of all strips */
+		private final int[] histograms;
+
+		/** The speed limits of all strips */
+		private final int[] limits;
+
+		/** The first id of the partition */
+		private final int from;
+
+		/** The id after the partition */
+		private final int to;
+
+		/**
+		 * Custom-Constructor with the arrays and the range of ids.
+		 * 
+		 * @param histograms
+		 *            The numbers of messages of all strips
+		 * @param limits
+		 *            The speed limits of all strips
+		 * @param from
+		 *            The first id of the partition
+		 * @param to
+		 *            The id after the partition
+		 */
+		private Partition(int[] histograms, int[] limits, int from, int to) {
+			this.histograms = histograms;
+			this.limits = limits;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Object call() {
+			for (int id = from; id < to; id++) {
+				limits[id] = speedLimit(histograms, id * RANGES.length);
+			}
+			return null;
+		}
 	}
 }
@@ -22,21 +22,45 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.PrecisionModel;
-import com.vividsolutions.jts.io.ParseException;
-import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
 
 /**
  * This class contains a bunch of methods that help to deal with the PostGIS
  * geometry-types.
+ * <p>
+ * All geometries are created by one shared {@link GeometryFactory} with the
+ * SRID 4326. Linestrings and polygons keep their coordinates in a packed
+ * double-array, so no {@link Coordinate}-object is allocated per point.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 220 $
+ * @version $LastChangedRevision: 261 $
  */
 public class GeomHelper {
 
+	/** Meters per degree latitude */
+	private static final double METERS_PER_DEGREE_LAT = 111320;
+
+	/** Meters per degree longitude at the equator */
+	private static final double METERS_PER_DEGREE_LNG = 2.0 * Math.PI
+			* 6370000 / 360.0;
+
+	/** The factory of all geometries, which is immutable and thread-safe */
+	private static final GeometryFactory FACTORY = new GeometryFactory(
+			new PrecisionModel(PrecisionModel.FLOATING), 4326);
+
+	/**
+	 * Returns the factory used for all geometries.
+	 * 
+	 * @return The factory
+	 */
+	public static GeometryFactory getFactory() {
+		return FACTORY;
+	}
+
 	/**
 	 * Creates a geometry of the type {@link Point} from a longitude and
 	 * latitude value
@@ -48,10 +72,7 @@ public class GeomHelper {
 	 * @return The new point
 	 */
 	public static Point createPoint(double lng, double lat) {
-		PrecisionModel prec = new PrecisionModel(PrecisionModel.FLOATING);
-		GeometryFactory factory = new GeometryFactory(prec, 4326);
-		Coordinate coord = new Coordinate(lng, lat);
-		return factory.createPoint(coord);
+		return FACTORY.createPoint(new Coordinate(lng, lat));
 	}
 
 	/**
@@ -64,15 +85,11 @@ public class GeomHelper {
 	 * @return A polygon in the shape of a rectangle
 	 */
 	public static Polygon createRectangle(Point center, double diameter) {
-		double left = center.getX()
-				- GeomHelper.convertM2Lng(diameter / 2, center);
-		double right = center.getX()
-				+ GeomHelper.convertM2Lng(diameter / 2, center);
-		double bottom = center.getY()
-				- GeomHelper.convertM2Lat(diameter / 2, center);
-		double top = center.getY()
-				+ GeomHelper.convertM2Lat(diameter / 2, center);
-		return createRectangle(left, bottom, right, top);
+		double lng = center.getX();
+		double lat = center.getY();
+		double dLng = convertM2Lng(diameter / 2, lat);
+		double dLat = convertM2Lat(diameter / 2);
+		return createRectangle(lng - dLng, lat - dLat, lng + dLng, lat + dLat);
 	}
 
 	/**
@@ -84,35 +101,32 @@ public class GeomHelper {
 	 * @return A polygon that consists of the given points.
 	 */
 	public static Polygon createPolygon(Point... points) {
-		PrecisionModel prec = new PrecisionModel(PrecisionModel.FLOATING);
-		GeometryFactory factory = new GeometryFactory(prec, 4326);
-		WKTReader reader = new WKTReader(factory);
-
-		StringBuffer sb = new StringBuffer();
-		sb.append("POLYGON((");
-
-		// add all polygons to the string
+		double[] coords = new double[(points.length + 1) * 2];
 		for (int i = 0; i < points.length; ++i) {
-			Point p = points[i];
-
-			sb.append(p.getX());
-			sb.append(" ");
-			sb.append(p.getY());
-			sb.append(", ");
-
+			coords[2 * i] = points[i].getX();
+			coords[2 * i + 1] = points[i].getY();
 		}
 
 		// finally add the first point again
-		sb.append(points[0].getX());
-		sb.append(" ");
-		sb.append(points[0].getY());
-		sb.append("))");
-
-		try {
-			return (Polygon) reader.read(sb.toString());
-		} catch (ParseException e) {
-			throw new RuntimeException(e);
-		}
+		coords[coords.length - 2] = coords[0];
+		coords[coords.length - 1] = coords[1];
+		return createPolygon(coords);
+	}
+
+	/**
+	 * Creates a {@link Polygon} from a closed ring of longitude- and
+	 * latitude-pairs.
+	 * 
+	 * @param coords
+	 *            The coordinates as <code>lng, lat, lng, lat, ...</code>,
+	 *            the last pair equals the first one
+	 * @return A polygon that consists of the given coordinates.
+	 */
+	public static Polygon createPolygon(double[] coords) {
+		LinearRing shell = FACTORY
+				.createLinearRing(new PackedCoordinateSequence.Double(coords,
+						2));
+		return FACTORY.createPolygon(shell, null);
 	}
 
 	/**
@@ -123,31 +137,25 @@ public class GeomHelper {
 	 * @return A LineString that consists of the given points.
 	 */
 	public static LineString createLineString(Point... points) {
-		PrecisionModel prec = new PrecisionModel(PrecisionModel.FLOATING);
-		GeometryFactory factory = new GeometryFactory(prec, 4326);
-		WKTReader reader = new WKTReader(factory);
-
-		StringBuffer sb = new StringBuffer();
-		sb.append("LINESTRING (");
-
-		// add all polygons to the string
+		double[] coords = new double[points.length * 2];
 		for (int i = 0; i < points.length; ++i) {
-			Point p = points[i];
-
-			sb.append(p.getX());
-			sb.append(" ");
-			sb.append(p.getY());
-			sb.append(", ");
-
+			coords[2 * i] = points[i].getX();
+			coords[2 * i + 1] = points[i].getY();
 		}
-		sb.delete(sb.length() - 2, sb.length());
-		sb.append(")");
+		return createLineString(coords);
+	}
 
-		try {
-			return (LineString) reader.read(sb.toString());
-		} catch (ParseException e) {
-			throw new RuntimeException(e);
-		}
+	/**
+	 * Creates a {@link LineString} from longitude- and latitude-pairs. The
+	 * array is used by the linestring and must not be changed afterwards.
+	 * 
+	 * @param coords
+	 *            The coordinates as <code>lng, lat, lng, lat, ...</code>
+	 * @return A LineString that consists of the given coordinates.
+	 */
+	public static LineString createLineString(double[] coords) {
+		return FACTORY.createLineString(new PackedCoordinateSequence.Double(
+				coords, 2));
 	}
 
 	/**
@@ -166,13 +174,19 @@ public class GeomHelper {
 	 */
 	public static Polygon createRectangle(double min_lng, double min_lat,
 			double max_lng, double max_lat) {
+		return createPolygon(new double[] { min_lng, max_lat, max_lng,
+				max_lat, max_lng, min_lat, min_lng, min_lat, min_lng, max_lat });
+	}
 
-		Point top_left = createPoint(min_lng, max_lat);
-		Point top_right = createPoint(max_lng, max_lat);
-		Point bottom_right = createPoint(max_lng, min_lat);
-		Point bottom_left = createPoint(min_lng, min_lat);
-
-		return createPolygon(top_left, top_right, bottom_right, bottom_left);
+	/**
+	 * Converts a given distance from meters into latitude.
+	 * 
+	 * @param m
+	 *            Distance in meters
+	 * @return Distance in degree
+	 */
+	public static double convertM2Lat(double m) {
+		return m / METERS_PER_DEGREE_LAT;
 	}
 
 	/**
@@ -185,7 +199,21 @@ public class GeomHelper {
 	 * @return Distance in degree
 	 */
 	public static double convertM2Lat(double m, Geometry point) {
-		return m / 111320;
+		return convertM2Lat(m);
+	}
+
+	/**
+	 * Converts a given distance from meters to longitude at the given
+	 * latitude.
+	 * 
+	 * @param m
+	 *            Distance in meters
+	 * @param lat
+	 *            Latitude of the reference point
+	 * @return Distance in degree
+	 */
+	public static double convertM2Lng(double m, double lat) {
+		return m / (METERS_PER_DEGREE_LNG * Math.cos(Math.toRadians(lat)));
 	}
 
 	/**
@@ -198,8 +226,21 @@ public class GeomHelper {
 	 * @return Distance in degree
 	 */
 	public static double convertM2Lng(double m, Geometry point) {
-		return (m * 360.0 / (2.0 * Math.PI * 6370000 * Math.cos(Math
-				.toRadians(point.getCoordinate().y))));
+		return convertM2Lng(m, point.getCoordinate().y);
+	}
+
+	/**
+	 * Converts a given distance from longitude to meters at the given
+	 * latitude.
+	 * 
+	 * @param degree
+	 *            Distance in degree
+	 * @param lat
+	 *            Latitude of the reference point
+	 * @return Distance in meters
+	 */
+	public static double convertLng2M(double degree, double lat) {
+		return degree * METERS_PER_DEGREE_LNG * Math.cos(Math.toRadians(lat));
 	}
 
 	/**
@@ -212,9 +253,7 @@ public class GeomHelper {
 	 * @return Distance in meters
 	 */
 	public static double convertLng2M(double degree, Geometry point) {
-		return (degree
-				* (2.0 * Math.PI * 6370000 * Math.cos(Math.toRadians(point
-						.getCoordinate().y))) / 360.0);
+		return convertLng2M(degree, point.getCoordinate().y);
 	}
 
 }
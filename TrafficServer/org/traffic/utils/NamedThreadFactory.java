@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2011, Daniel Kuenne
+ * 
+ * This file is part of TrafficJamDroid.
+ *
+ * TrafficJamDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrafficJamDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrafficJamDroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.traffic.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the threads of a pool to identify them in thread-dumps.
+ * 
+ * @author Daniel Kuenne
+ * @version $LastChangedRevision: 250 $
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	/** Prefix of the names */
+	private final String prefix;
+
+	/** Number of the next thread */
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Custom-Constructor with the prefix of the names.
+	 * 
+	 * @param prefix
+	 *            The prefix
+	 */
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		return new Thread(r, prefix + "-" + count.incrementAndGet());
+	}
+}
@@ -42,7 +42,7 @@ import org.traffic.server.data.Request;
  * Helper-class to communicate over a {@link Socket}.
  * 
  * @author Daniel Kuenne
- * @version $LastChangedRevision: 223 $
+ * @version $LastChangedRevision: 259 $
  */
 public class SocketCommunicator {
 
@@ -81,6 +81,26 @@ public class SocketCommunicator {
 		out.flush();
 	}
 
+	/**
+	 * Writes the given bytes gzip-compressed to the given socket.
+	 * 
+	 * @param socket
+	 *            The socket to write to
+	 * @param data
+	 *            The data to write to the socket
+	 */
+	public static void writeBytes(Socket socket, byte[] data) {
+		try {
+			GZIPOutputStream out = new GZIPOutputStream(
+					socket.getOutputStream());
+			out.write(data, 0, data.length);
+			out.finish();
+			out.flush();
+		} catch (Exception e) {
+			Log.e("Server", e.getClass() + "@writeBytes: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Parses the incoming plain text and creates a {@link Request}-object with
 	 * {@link Meta}-information and a {@link JSONObject}.
@@ -91,7 +111,7 @@ public class SocketCommunicator {
 	 * @throws Exception
 	 *             Error in the JSON-structure
 	 */
-	private static Request parseInput(String input) throws Exception {
+	public static Request parseInput(String input) throws Exception {
 		if (input == null || input.replace("\n", "").equals(""))
 			throw new RuntimeException(
 					"empty_input: The input may not be empty");